@@ -0,0 +1,61 @@
+package com.chatwave.ChatWave;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+// One command through ClientHandler, parsing plus dispatch : the text line (trim, split, upper-case,
+// switch) against the same command as a binary frame. Delivery to the recipient's queue is included.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CommandParsingBenchmark {
+    private static final String TEXT = "hello there, are we still on for the standup at ten?";
+
+    private Object textSender;
+    private Object binarySender;
+    private ByteBuffer privateFrame;
+    private ByteBuffer groupFrame;
+
+    @Setup
+    public void setUp() {
+        Object server = Sockets.newServer();
+        textSender = Sockets.textUser(server, "alice");
+        binarySender = Sockets.binaryUser(server, "carol");
+        Sockets.textUser(server, "bob");
+        Sockets.textUser(server, "dave");
+        Sockets.handleLine(textSender, "CREATE_GROUP team bob,carol,dave");
+
+        byte[] body = TEXT.getBytes(StandardCharsets.UTF_8);
+        privateFrame = Sockets.frame((byte) 0x02, ByteBuffer.allocate(4 + body.length).putInt(Sockets.id(server, "bob")).put(body));
+        groupFrame = Sockets.frame((byte) 0x04, ByteBuffer.allocate(4 + body.length).putInt(Sockets.id(server, "team")).put(body));
+    }
+
+    @Benchmark
+    public boolean textPrivateMessage() {
+        return Sockets.handleLine(textSender, "MSG bob " + TEXT);
+    }
+
+    @Benchmark
+    public boolean binaryPrivateMessage() {
+        return Sockets.handleFrame(binarySender, privateFrame.clear());
+    }
+
+    @Benchmark
+    public boolean textGroupMessage() {
+        return Sockets.handleLine(textSender, "GROUP_MSG team " + TEXT);
+    }
+
+    @Benchmark
+    public boolean binaryGroupMessage() {
+        return Sockets.handleFrame(binarySender, groupFrame.clear());
+    }
+}
@@ -0,0 +1,79 @@
+package com.chatwave.ChatWave;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.data.domain.Limit;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// ChatService.getPrivateConversations against the whole application running on an in-memory H2,
+// one conversation of <history> messages among ten times as many in other conversations.
+// recentPerConversation = 0 turns RecentMessageCache off, so latestPage measures the query too.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ConversationQueryBenchmark {
+    @Param({"1000", "10000"})
+    private int history;
+
+    @Param({"64", "0"})
+    private int recentPerConversation;
+
+    private ConfigurableApplicationContext context;
+    private ChatService chatService;
+    private Message middle;
+
+    @Setup
+    public void setUp() throws InterruptedException {
+        // command line arguments, so they win over application.properties
+        context = new SpringApplicationBuilder(ChatWaveApplication.class)
+                .run("--spring.datasource.url=jdbc:h2:mem:bench;MODE=MySQL;DATABASE_TO_LOWER=TRUE;NON_KEYWORDS=USER,VALUE;DB_CLOSE_DELAY=-1",
+                        "--spring.datasource.username=sa",
+                        "--spring.datasource.password=",
+                        "--spring.jpa.hibernate.ddl-auto=create-drop",
+                        "--spring.jpa.show-sql=false",
+                        "--server.port=0",
+                        "--chatwave.presence.persist=false",
+                        "--chatwave.migration.conversation-backfill=false",
+                        "--chatwave.history.cache.per-conversation=" + recentPerConversation,
+                        "--spring.main.banner-mode=off",
+                        "--logging.level.root=WARN");
+        chatService = context.getBean(ChatService.class);
+        MessageRepository messageRepository = context.getBean(MessageRepository.class);
+
+        for(int i = 0; i < history; i++) {
+            chatService.saveMessage(i % 2 == 0 ? "alice" : "bob", i % 2 == 0 ? "bob" : "alice", "message " + i);
+            for(int other = 0; other < 10; other++) chatService.saveMessage("user" + other, "alice", "noise " + i);
+        }
+        // the write-behind flusher inserts in batches, wait until everything is in
+        while(messageRepository.count() < 11L * history) Thread.sleep(50);
+
+        List<Message> newest = messageRepository.findLatest(ConversationKey.direct("alice", "bob"), Limit.of(history / 2));
+        middle = newest.get(newest.size() - 1);
+    }
+
+    @TearDown
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    public MessagePage latestPage() {
+        return chatService.getPrivateConversations("alice", "bob", null, null, ChatService.DEFAULT_PAGE_SIZE);
+    }
+
+    @Benchmark
+    public MessagePage pageFromTheMiddle() {
+        return chatService.getPrivateConversations("alice", "bob", middle.getTimestamp(), middle.getMsgId(), ChatService.DEFAULT_PAGE_SIZE);
+    }
+}
@@ -0,0 +1,45 @@
+package com.chatwave.ChatWave;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.StringJoiner;
+import java.util.concurrent.TimeUnit;
+
+// Server.sendGroupMessage to every member's outbound queue, for groups of text or binary members.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class GroupFanoutBenchmark {
+    @Param({"10", "100", "1000"})
+    private int groupSize;
+
+    @Param({"TEXT", "BINARY"})
+    private String protocol;
+
+    private Object server;
+
+    @Setup
+    public void setUp() {
+        server = Sockets.newServer();
+        Object owner = Sockets.textUser(server, "u0");
+        StringJoiner members = new StringJoiner(",");
+        for(int i = 1; i < groupSize; i++) {
+            if(protocol.equals("BINARY")) Sockets.binaryUser(server, "u" + i);
+            else Sockets.textUser(server, "u" + i);
+            members.add("u" + i);
+        }
+        Sockets.handleLine(owner, "CREATE_GROUP bench " + members);
+    }
+
+    @Benchmark
+    public boolean sendGroupMessage() {
+        return Sockets.sendGroupMessage(server, "u0", "bench", "the quick brown fox jumps over the lazy dog, 0123456789");
+    }
+}
@@ -0,0 +1,70 @@
+package com.chatwave.ChatWave;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// What the STOMP message converter does to every payload ChatController sends, with an ObjectMapper
+// configured like the one Spring Boot hands to it.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class JsonSerializationBenchmark {
+    private ObjectMapper objectMapper;
+    private Message message;
+    private User user;
+    private MessagePage page;
+    private PresenceDelta delta;
+
+    @Setup
+    public void setUp() {
+        objectMapper = Jackson2ObjectMapperBuilder.json().featuresToDisable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS).build();
+        message = message(1);
+        user = new User("alice");
+        List<Message> messages = new ArrayList<>();
+        for(int i = 0; i < ChatService.DEFAULT_PAGE_SIZE; i++) messages.add(message(i));
+        page = new MessagePage(messages, true);
+        List<String> joined = new ArrayList<>();
+        for(int i = 0; i < 100; i++) joined.add("user" + i);
+        delta = new PresenceDelta(42, joined, List.of("bob"));
+    }
+
+    private static Message message(int i) {
+        Message message = new Message("alice", "bob", "hello there, are we still on for the standup at ten? #" + i);
+        message.setMsgId(123_456_789L + i);
+        message.setConversationId(ConversationKey.direct("alice", "bob"));
+        return message;
+    }
+
+    @Benchmark
+    public byte[] message() throws JsonProcessingException {
+        return objectMapper.writeValueAsBytes(message);
+    }
+
+    @Benchmark
+    public byte[] user() throws JsonProcessingException {
+        return objectMapper.writeValueAsBytes(user);
+    }
+
+    @Benchmark
+    public byte[] historyPage() throws JsonProcessingException {
+        return objectMapper.writeValueAsBytes(page);
+    }
+
+    @Benchmark
+    public byte[] presenceDelta() throws JsonProcessingException {
+        return objectMapper.writeValueAsBytes(delta);
+    }
+}
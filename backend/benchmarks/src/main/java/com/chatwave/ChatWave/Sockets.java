@@ -0,0 +1,128 @@
+package com.chatwave.ChatWave;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// The socket server lives in the default package, which JMH can't generate benchmark code for, so the
+// benchmarks reach it through these method handles. They are static finals, the JIT inlines them like calls.
+final class Sockets {
+    private static final MethodHandle NEW_SERVER;
+    private static final MethodHandle NEW_HANDLER;
+    private static final MethodHandle HANDLE_LINE;
+    private static final MethodHandle HANDLE_FRAME;
+    private static final MethodHandle SEND_GROUP_MESSAGE;
+    private static final MethodHandle NAME_ID;
+
+    static {
+        // nobody reads the benchmark connections, their queues just forget the oldest lines
+        System.setProperty("chatwave.outbound.policy", "DROP_OLDEST");
+        try {
+            Class<?> server = Class.forName("Server");
+            Class<?> handler = Class.forName("Server$ClientHandler");
+            Class<?> ioMode = Class.forName("Server$IoMode");
+            Class<?> nameTable = Class.forName("NameTable");
+            MethodHandles.Lookup serverLookup = MethodHandles.privateLookupIn(server, MethodHandles.lookup());
+            MethodHandles.Lookup handlerLookup = MethodHandles.privateLookupIn(handler, MethodHandles.lookup());
+
+            Object nio = null;
+            for(Object mode : ioMode.getEnumConstants()) if(mode.toString().equals("NIO")) nio = mode;
+            NEW_SERVER = MethodHandles.insertArguments(
+                    serverLookup.findConstructor(server, MethodType.methodType(void.class, ioMode, int.class, int.class)), 0, nio, 1, 0)
+                    .asType(MethodType.methodType(Object.class));
+            NEW_HANDLER = handlerLookup.findConstructor(handler, MethodType.methodType(void.class, server))
+                    .asType(MethodType.methodType(Object.class, Object.class));
+            HANDLE_LINE = handlerLookup.findVirtual(handler, "handleLine", MethodType.methodType(boolean.class, String.class))
+                    .asType(MethodType.methodType(boolean.class, Object.class, String.class));
+            HANDLE_FRAME = handlerLookup.findVirtual(handler, "handleFrame", MethodType.methodType(boolean.class, ByteBuffer.class))
+                    .asType(MethodType.methodType(boolean.class, Object.class, ByteBuffer.class));
+            SEND_GROUP_MESSAGE = serverLookup.findVirtual(server, "sendGroupMessage",
+                            MethodType.methodType(boolean.class, String.class, String.class, String.class))
+                    .asType(MethodType.methodType(boolean.class, Object.class, String.class, String.class, String.class));
+            MethodHandle names = serverLookup.findGetter(server, "names", nameTable);
+            MethodHandle id = MethodHandles.privateLookupIn(nameTable, MethodHandles.lookup())
+                    .findVirtual(nameTable, "id", MethodType.methodType(int.class, String.class));
+            NAME_ID = MethodHandles.filterArguments(id, 0, names)
+                    .asType(MethodType.methodType(int.class, Object.class, String.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private Sockets() {}
+
+    // an NIO server on an ephemeral port that is never started, handlers are driven directly
+    static Object newServer() {
+        try {
+            return (Object) NEW_SERVER.invokeExact();
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    static Object newHandler(Object server) {
+        try {
+            return (Object) NEW_HANDLER.invokeExact(server);
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    // a text connection logged in as username
+    static Object textUser(Object server, String username) {
+        Object handler = newHandler(server);
+        handleLine(handler, "LOGIN " + username);
+        return handler;
+    }
+
+    // a connection that switched to the binary protocol and logged in as username
+    static Object binaryUser(Object server, String username) {
+        Object handler = newHandler(server);
+        handleLine(handler, "PROTOCOL BINARY");
+        byte[] name = username.getBytes(StandardCharsets.UTF_8);
+        handleFrame(handler, frame((byte) 0x01, ByteBuffer.allocate(2 + name.length).putShort((short) name.length).put(name)));
+        return handler;
+    }
+
+    static boolean handleLine(Object handler, String line) {
+        try {
+            return (boolean) HANDLE_LINE.invokeExact(handler, line);
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    // frame holds opcode onwards, as the transports hand it over
+    static boolean handleFrame(Object handler, ByteBuffer frame) {
+        try {
+            return (boolean) HANDLE_FRAME.invokeExact(handler, frame);
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    static boolean sendGroupMessage(Object server, String from, String group, String msg) {
+        try {
+            return (boolean) SEND_GROUP_MESSAGE.invokeExact(server, from, group, msg);
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    static int id(Object server, String name) {
+        try {
+            return (int) NAME_ID.invokeExact(server, name);
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    // opcode, correlation 1 and the payload written so far, without the length prefix
+    static ByteBuffer frame(byte opcode, ByteBuffer payload) {
+        payload.flip();
+        ByteBuffer frame = ByteBuffer.allocate(5 + payload.remaining()).put(opcode).putInt(1).put(payload);
+        return frame.flip();
+    }
+}
@@ -0,0 +1,100 @@
+package com.chatwave.ChatWave;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.messaging.SessionDisconnectEvent;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// Token buckets in front of the message path, one per user and one per STOMP session, so a single
+// client can't use up the inbound executor and the write-behind queue for everyone. A message has to
+// get its tokens from both buckets before it is saved : a private message costs 1 token, a group
+// message 1 more for every members-per-token recipients it fans out to.
+// Limits can be changed at runtime through the actuator endpoint "admission" (AdmissionEndpoint, off by default),
+// buckets keep what they have left.
+@Component
+public class AdmissionControl {
+    static final String USER = "user";
+    static final String CONNECTION = "connection";
+
+    private final boolean enabled;
+    private volatile TokenBucket.Limit userLimit;
+    private volatile TokenBucket.Limit connectionLimit;
+    private volatile int membersPerToken;
+    private final ConcurrentHashMap<String, TokenBucket> users = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, TokenBucket> connections = new ConcurrentHashMap<>();
+    private final LongAdder throttledByUser = new LongAdder();
+    private final LongAdder throttledByConnection = new LongAdder();
+
+    public AdmissionControl(@Value("${chatwave.admission.enabled:true}") boolean enabled,
+                            @Value("${chatwave.admission.user-rate:20}") double userRate,
+                            @Value("${chatwave.admission.user-burst:40}") int userBurst,
+                            @Value("${chatwave.admission.connection-rate:20}") double connectionRate,
+                            @Value("${chatwave.admission.connection-burst:40}") int connectionBurst,
+                            @Value("${chatwave.admission.members-per-token:10}") int membersPerToken) {
+        this.enabled = enabled;
+        applyLimits(userRate, userBurst, connectionRate, connectionBurst, membersPerToken);
+    }
+
+    public boolean isEnabled() {return this.enabled;}
+    public TokenBucket.Limit getUserLimit() {return this.userLimit;}
+    public TokenBucket.Limit getConnectionLimit() {return this.connectionLimit;}
+    public int getMembersPerToken() {return this.membersPerToken;}
+    public long getThrottledByUser() {return this.throttledByUser.sum();}
+    public long getThrottledByConnection() {return this.throttledByConnection.sum();}
+    public int getUserBuckets() {return this.users.size();}
+
+    public void setLimits(double userRate, int userBurst, double connectionRate, int connectionBurst, int membersPerToken) {
+        applyLimits(userRate, userBurst, connectionRate, connectionBurst, membersPerToken);
+    }
+
+    private void applyLimits(double userRate, int userBurst, double connectionRate, int connectionBurst, int membersPerToken) {
+        this.userLimit = new TokenBucket.Limit(userRate, userBurst);
+        this.connectionLimit = new TokenBucket.Limit(connectionRate, connectionBurst);
+        this.membersPerToken = Math.max(1, membersPerToken);
+    }
+
+    // what a message to that many recipients costs, the sender not counted
+    public int cost(int recipients) {
+        return 1 + Math.max(0, recipients) / membersPerToken;
+    }
+
+    // takes the tokens from the session's and the user's bucket, or throws ThrottledException and takes none
+    public void admit(String username, String sessionId, int tokens) {
+        if(!enabled) return;
+        long now = System.nanoTime();
+        TokenBucket.Limit connectionLimit = this.connectionLimit;
+        TokenBucket connection = sessionId == null ? null : bucket(connections, sessionId);
+        long wait = connection == null ? 0 : connection.tryTake(tokens, connectionLimit, now);
+        if(wait > 0) {
+            throttledByConnection.increment();
+            throw new ThrottledException(CONNECTION, wait);
+        }
+        wait = bucket(users, username).tryTake(tokens, userLimit, now);
+        if(wait > 0) {
+            if(connection != null) connection.giveBack(tokens, connectionLimit);
+            throttledByUser.increment();
+            throw new ThrottledException(USER, wait);
+        }
+    }
+
+    private static TokenBucket bucket(ConcurrentHashMap<String, TokenBucket> buckets, String key) {
+        TokenBucket bucket = buckets.get(key);
+        return bucket != null ? bucket : buckets.computeIfAbsent(key, k -> new TokenBucket());
+    }
+
+    @EventListener
+    public void onDisconnect(SessionDisconnectEvent event) {
+        connections.remove(event.getSessionId());
+    }
+
+    // a full bucket is the same as no bucket, dropping those keeps the map to the users sending right now
+    @Scheduled(fixedDelayString = "${chatwave.admission.sweep-interval-ms:60000}")
+    public void sweep() {
+        long now = System.nanoTime();
+        users.values().removeIf(bucket -> bucket.isFull(now));
+    }
+}
@@ -0,0 +1,60 @@
+package com.chatwave.ChatWave;
+
+import org.springframework.boot.actuate.endpoint.InvalidEndpointRequestException;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// GET /actuator/admission shows AdmissionControl's limits, POST changes any of them, e.g.
+//   curl -X POST localhost:8081/actuator/admission -H 'Content-Type: application/json' -d '{"userRate":5,"userBurst":10}'
+// Every value has to be positive, only chatwave.admission.* can lift a limit (a rate of 0).
+// Changes aren't persisted, a restart is back to chatwave.admission.*
+// It isn't authenticated : it is only served on the management port (127.0.0.1:8081) and only once
+// "admission" is added to management.endpoints.web.exposure.include, see application.properties
+@Component
+@Endpoint(id = "admission")
+public class AdmissionEndpoint {
+    private final AdmissionControl admissionControl;
+
+    public AdmissionEndpoint(AdmissionControl admissionControl) {
+        this.admissionControl = admissionControl;
+    }
+
+    @ReadOperation
+    public Map<String, Object> limits() {
+        Map<String, Object> limits = new LinkedHashMap<>();
+        limits.put("enabled", admissionControl.isEnabled());
+        limits.put("userRate", admissionControl.getUserLimit().getRate());
+        limits.put("userBurst", admissionControl.getUserLimit().getBurst());
+        limits.put("connectionRate", admissionControl.getConnectionLimit().getRate());
+        limits.put("connectionBurst", admissionControl.getConnectionLimit().getBurst());
+        limits.put("membersPerToken", admissionControl.getMembersPerToken());
+        return limits;
+    }
+
+    @WriteOperation
+    public Map<String, Object> update(@Nullable Double userRate, @Nullable Integer userBurst, @Nullable Double connectionRate,
+                                      @Nullable Integer connectionBurst, @Nullable Integer membersPerToken) {
+        if(!positive(userRate) || !positive(connectionRate) || !positive(userBurst) || !positive(connectionBurst) || !positive(membersPerToken)) {
+            throw new InvalidEndpointRequestException("Rates, bursts and membersPerToken have to be positive", "non-positive limit");
+        }
+        TokenBucket.Limit user = admissionControl.getUserLimit();
+        TokenBucket.Limit connection = admissionControl.getConnectionLimit();
+        admissionControl.setLimits(userRate != null ? userRate : user.getRate(),
+                userBurst != null ? userBurst : user.getBurst(),
+                connectionRate != null ? connectionRate : connection.getRate(),
+                connectionBurst != null ? connectionBurst : connection.getBurst(),
+                membersPerToken != null ? membersPerToken : admissionControl.getMembersPerToken());
+        return limits();
+    }
+
+    // null leaves the value as it is
+    private static boolean positive(@Nullable Number value) {
+        return value == null || (value.doubleValue() > 0 && !Double.isInfinite(value.doubleValue()));
+    }
+}
@@ -1,28 +1,63 @@
 package com.chatwave.ChatWave;
 
+import org.springframework.messaging.handler.annotation.Header;
+import org.springframework.messaging.handler.annotation.MessageExceptionHandler;
 import org.springframework.messaging.handler.annotation.MessageMapping;
 import org.springframework.messaging.handler.annotation.Payload;
 import org.springframework.messaging.handler.annotation.SendTo;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.messaging.simp.annotation.SendToUser;
+import org.springframework.messaging.simp.annotation.SubscribeMapping;
 import org.springframework.stereotype.Controller;
 
+import java.security.Principal;
+import java.util.Map;
+import java.util.Set;
+
 @Controller
 public class ChatController {
+    static final String PRIVATE_QUEUE = "/queue/messages";
+
     private final ChatService chatService;
+    private final SimpMessagingTemplate messagingTemplate;
+    private final AdmissionControl admissionControl;
+    private final ConversationSignals conversationSignals;
 
-    public ChatController(ChatService chatService) {
+    public ChatController(ChatService chatService, SimpMessagingTemplate messagingTemplate, AdmissionControl admissionControl,
+                          ConversationSignals conversationSignals) {
         this.chatService = chatService;
+        this.messagingTemplate = messagingTemplate;
+        this.admissionControl = admissionControl;
+        this.conversationSignals = conversationSignals;
     }
 
+    // presence isn't broadcast from here anymore, joins and leaves go out as deltas on /topic/presence,
+    // the caller gets the snapshot to apply them to
     @MessageMapping("/login")
-    @SendTo("topic/users")
-    public User login(@Payload String username) {
-        return chatService.createOrLogin(username);
+    @SendToUser("/queue/presence")
+    public PresenceSnapshot login(Principal principal) {
+        chatService.createOrLogin(principal.getName());
+        return chatService.getPresence();
     }
 
+    // SUBSCRIBE /app/presence answers once with the current snapshot, used again to resync after a gap
+    @SubscribeMapping("/presence")
+    public PresenceSnapshot presence() {
+        return chatService.getPresence();
+    }
+
+    // delivered to the recipient's and the sender's own sessions only, via /user/queue/messages
     @MessageMapping("/sendPrivate")
-    @SendTo("/topic/messages")
-    public Message sendPrivateMessage(@Payload Message message) {
-        return chatService.saveMessage(message.getSender(),message.getRecipient(),message.getMsg());
+    public void sendPrivateMessage(@Payload Message message, Principal principal,
+                                   @Header(name = SimpMessageHeaderAccessor.SESSION_ID_HEADER, required = false) String sessionId) {
+        admissionControl.admit(principal.getName(), sessionId, admissionControl.cost(1));
+        Message saved = chatService.saveMessage(principal.getName(),message.getRecipient(),message.getMsg());
+        messagingTemplate.convertAndSendToUser(saved.getRecipient(), PRIVATE_QUEUE, saved);
+        if(!saved.getRecipient().equals(saved.getSender())) {
+            messagingTemplate.convertAndSendToUser(saved.getSender(), PRIVATE_QUEUE, saved);
+        }
+        conversationSignals.messageSent(saved.getSender(), saved.getRecipient(), false);
     }
 
     @MessageMapping("/createGroup")
@@ -31,10 +66,88 @@ public class ChatController {
         return chatService.createGroup(group.getGroupName(), group.getMembers());
     }
 
+    // delivered on /topic/group/{groupName}, which only members may subscribe to
     @MessageMapping("/sendGroup")
-    @SendTo("topic/messages")
-    public Message sendGroupMessage(@Payload Message message) {
-        return chatService.saveMessage(message.getSender(),message.getRecipient(),message.getMsg());
+    public void sendGroupMessage(@Payload Message message, Principal principal,
+                                 @Header(name = SimpMessageHeaderAccessor.SESSION_ID_HEADER, required = false) String sessionId) {
+        Set<String> members = chatService.getGroupMembers(message.getRecipient());
+        if(members == null || !members.contains(principal.getName())) {
+            throw new IllegalStateException("You're not a member of the group " + message.getRecipient());
+        }
+        admissionControl.admit(principal.getName(), sessionId, admissionControl.cost(members.size() - 1));
+        Message saved = chatService.saveGroupMessage(principal.getName(),message.getRecipient(),message.getMsg());
+        messagingTemplate.convertAndSend(StompAuthInterceptor.GROUP_TOPIC_PREFIX + saved.getRecipient(), saved);
+        conversationSignals.messageSent(saved.getSender(), saved.getRecipient(), true);
+    }
+
+    @MessageMapping("/history")
+    @SendToUser("/queue/history")
+    public MessagePage history(@Payload HistoryRequest request, Principal principal) {
+        if(request.isGroup()) {
+            if(!chatService.isGroupMember(request.getWith(), principal.getName())) {
+                throw new IllegalStateException("You're not a member of the group " + request.getWith());
+            }
+            return chatService.getGroupMessages(request.getWith(), request.getBeforeTimestamp(), request.getBeforeMsgId(), request.getLimit());
+        }
+        return chatService.getPrivateConversations(principal.getName(), request.getWith(),
+                request.getBeforeTimestamp(), request.getBeforeMsgId(), request.getLimit());
+    }
+
+    @MessageMapping("/search")
+    @SendToUser("/queue/search")
+    public SearchPage search(@Payload SearchRequest request, Principal principal) {
+        if(request.isGroup() && request.getWith() != null && !chatService.isGroupMember(request.getWith(), principal.getName())) {
+            throw new IllegalStateException("You're not a member of the group " + request.getWith());
+        }
+        return chatService.searchMessages(principal.getName(), request);
+    }
+
+    // typing and read signals are neither saved nor admitted, ConversationSignals coalesces them per sender
+    // and conversation and publishes the net change to the participants on /user/queue/signals or
+    // /topic/signals/group/{groupName}
+    @MessageMapping("/typing")
+    public void typing(@Payload SignalRequest request, Principal principal) {
+        checkParticipant(request, principal);
+        conversationSignals.typing(principal.getName(), request.getWith(), request.isGroup(), request.isTyping());
+    }
+
+    @MessageMapping("/read")
+    public void read(@Payload SignalRequest request, Principal principal) {
+        checkParticipant(request, principal);
+        if(request.getMsgId() != null) {
+            conversationSignals.read(principal.getName(), request.getWith(), request.isGroup(), request.getMsgId());
+        }
+    }
+
+    // the read-up-to msgId of everyone who has read the conversation, what readUpTo signals move on from
+    @MessageMapping("/watermarks")
+    @SendToUser("/queue/watermarks")
+    public Map<String, Long> watermarks(@Payload SignalRequest request, Principal principal) {
+        checkParticipant(request, principal);
+        return conversationSignals.watermarks(principal.getName(), request.getWith(), request.isGroup());
+    }
+
+    private void checkParticipant(SignalRequest request, Principal principal) {
+        if(request.getWith() == null || request.getWith().isBlank()) {
+            throw new IllegalStateException("A signal needs the user or group it is for.");
+        }
+        if(request.isGroup() && !chatService.isGroupMember(request.getWith(), principal.getName())) {
+            throw new IllegalStateException("You're not a member of the group " + request.getWith());
+        }
+    }
+
+    @MessageExceptionHandler
+    @SendToUser("/queue/errors")
+    public String handleException(IllegalStateException e) {
+        return e.getMessage();
+    }
+
+    // only the session that sent the refused message is told, with when its next one would be admitted
+    @MessageExceptionHandler
+    @SendToUser(destinations = "/queue/throttled", broadcast = false)
+    public Throttled handleThrottled(ThrottledException e,
+                                     @Header(name = SimpMessageHeaderAccessor.DESTINATION_HEADER, required = false) String destination) {
+        return new Throttled(destination, e.getScope(), e.getRetryAfterMs());
     }
 
 }
@@ -0,0 +1,107 @@
+package com.chatwave.ChatWave;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.springframework.stereotype.Component;
+
+// Gauges and counters read off the components' own state when scraped, nothing is recorded on
+// the message path. The STOMP channel executors (executor.* tagged name=clientInboundChannelExecutor,
+// clientOutboundChannelExecutor, brokerChannelExecutor) and repository call timings
+// (spring.data.repository.invocations) are bound by Spring Boot itself.
+@Component
+public class ChatMetrics implements MeterBinder {
+    private final PresenceRegistry presenceRegistry;
+    private final GroupMembershipCache groupMembershipCache;
+    private final MessageWriteBehind messageWriteBehind;
+    private final MessageSearchIndex messageSearchIndex;
+    private final RecentMessageCache recentMessageCache;
+    private final WebSocketCompression webSocketCompression;
+    private final AdmissionControl admissionControl;
+    private final MessageArchive messageArchive;
+    private final ConversationSignals conversationSignals;
+    private final ReadWatermarks readWatermarks;
+
+    public ChatMetrics(PresenceRegistry presenceRegistry, GroupMembershipCache groupMembershipCache,
+                       MessageWriteBehind messageWriteBehind, MessageSearchIndex messageSearchIndex,
+                       RecentMessageCache recentMessageCache, WebSocketCompression webSocketCompression,
+                       AdmissionControl admissionControl, MessageArchive messageArchive,
+                       ConversationSignals conversationSignals, ReadWatermarks readWatermarks) {
+        this.presenceRegistry = presenceRegistry;
+        this.groupMembershipCache = groupMembershipCache;
+        this.messageWriteBehind = messageWriteBehind;
+        this.messageSearchIndex = messageSearchIndex;
+        this.recentMessageCache = recentMessageCache;
+        this.webSocketCompression = webSocketCompression;
+        this.admissionControl = admissionControl;
+        this.messageArchive = messageArchive;
+        this.conversationSignals = conversationSignals;
+        this.readWatermarks = readWatermarks;
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("chatwave.sessions.active", presenceRegistry, PresenceRegistry::sessionCount)
+                .description("Connected STOMP sessions with a user").register(registry);
+        Gauge.builder("chatwave.users.online", presenceRegistry, PresenceRegistry::onlineCount)
+                .description("Users with at least one connected session").register(registry);
+        Gauge.builder("chatwave.websocket.sessions", webSocketCompression, WebSocketCompression::getDeflatingSessions)
+                .description("Open WebSocket sessions").tag("compression", "deflate").register(registry);
+        Gauge.builder("chatwave.websocket.sessions", webSocketCompression, WebSocketCompression::getPlainSessions)
+                .description("Open WebSocket sessions").tag("compression", "none").register(registry);
+
+        FunctionCounter.builder("chatwave.groups.cache.gets", groupMembershipCache, GroupMembershipCache::getHits)
+                .tag("result", "hit").register(registry);
+        FunctionCounter.builder("chatwave.groups.cache.gets", groupMembershipCache, GroupMembershipCache::getMisses)
+                .tag("result", "miss").register(registry);
+        FunctionCounter.builder("chatwave.groups.cache.evictions", groupMembershipCache, GroupMembershipCache::getEvictions)
+                .register(registry);
+        Gauge.builder("chatwave.groups.cache.size", groupMembershipCache, GroupMembershipCache::getSize)
+                .register(registry);
+
+        FunctionCounter.builder("chatwave.history.cache.gets", recentMessageCache, RecentMessageCache::getHits)
+                .tag("result", "hit").register(registry);
+        FunctionCounter.builder("chatwave.history.cache.gets", recentMessageCache, RecentMessageCache::getMisses)
+                .tag("result", "miss").register(registry);
+        FunctionCounter.builder("chatwave.history.cache.evictions", recentMessageCache, RecentMessageCache::getEvictions)
+                .register(registry);
+        Gauge.builder("chatwave.history.cache.conversations", recentMessageCache, RecentMessageCache::getConversations)
+                .register(registry);
+        Gauge.builder("chatwave.history.cache.messages", recentMessageCache, RecentMessageCache::getMessages)
+                .register(registry);
+
+        Gauge.builder("chatwave.persistence.pending", messageWriteBehind, MessageWriteBehind::pending)
+                .description("Messages waiting for the write-behind flusher").register(registry);
+
+        Gauge.builder("chatwave.search.documents", messageSearchIndex, MessageSearchIndex::getDocuments)
+                .description("Messages in the search index").register(registry);
+        Gauge.builder("chatwave.search.pending", messageSearchIndex, MessageSearchIndex::getPendingBatches)
+                .description("Committed batches waiting to be indexed").register(registry);
+
+        Gauge.builder("chatwave.archive.messages", messageArchive, MessageArchive::getMessages)
+                .description("Messages in the archive segments").register(registry);
+        Gauge.builder("chatwave.archive.segments", messageArchive, MessageArchive::getSegments)
+                .register(registry);
+        Gauge.builder("chatwave.archive.size", messageArchive, MessageArchive::getBytes)
+                .description("Archive segments on disk").baseUnit("bytes").register(registry);
+
+        FunctionCounter.builder("chatwave.admission.throttled", admissionControl, AdmissionControl::getThrottledByUser)
+                .description("Messages refused by AdmissionControl").tag("scope", AdmissionControl.USER).register(registry);
+        FunctionCounter.builder("chatwave.admission.throttled", admissionControl, AdmissionControl::getThrottledByConnection)
+                .description("Messages refused by AdmissionControl").tag("scope", AdmissionControl.CONNECTION).register(registry);
+        Gauge.builder("chatwave.admission.user.buckets", admissionControl, AdmissionControl::getUserBuckets)
+                .description("Users with a token bucket, full ones are dropped by the periodic sweep").register(registry);
+
+        FunctionCounter.builder("chatwave.signals.received", conversationSignals, ConversationSignals::getTypingReceived)
+                .description("Signals sent by clients, before coalescing").tag("type", "typing").register(registry);
+        FunctionCounter.builder("chatwave.signals.received", conversationSignals, ConversationSignals::getReadReceived)
+                .description("Signals sent by clients, before coalescing").tag("type", "read").register(registry);
+        FunctionCounter.builder("chatwave.signals.published", conversationSignals, ConversationSignals::getPublished)
+                .description("Coalesced signals published to conversation participants").register(registry);
+        Gauge.builder("chatwave.signals.typing", conversationSignals, ConversationSignals::getTyping)
+                .description("Senders the receivers have been told are typing").register(registry);
+        Gauge.builder("chatwave.signals.read.pending", readWatermarks, ReadWatermarks::getPending)
+                .description("Read watermarks advanced and not written yet").register(registry);
+    }
+}
@@ -0,0 +1,26 @@
+package com.chatwave.ChatWave;
+
+import java.security.Principal;
+import java.util.Objects;
+
+public class ChatPrincipal implements Principal {
+    private final String username;
+
+    public ChatPrincipal(String username) {
+        this.username = username;
+    }
+
+    @Override
+    public String getName() {return this.username;}
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof ChatPrincipal other && Objects.equals(username, other.username);
+    }
+
+    @Override
+    public int hashCode() {return Objects.hashCode(username);}
+
+    @Override
+    public String toString() {return this.username;}
+}
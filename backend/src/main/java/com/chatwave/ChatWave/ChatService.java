@@ -1,56 +1,108 @@
 package com.chatwave.ChatWave;
 
+import org.springframework.data.domain.Limit;
 import org.springframework.stereotype.Service;
 
-import java.util.Comparator;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 @Service
 public class ChatService {
+    static final int DEFAULT_PAGE_SIZE = 50;
+    static final int MAX_PAGE_SIZE = 200;
+    static final int DEFAULT_SEARCH_PAGE_SIZE = 20;
+    static final int MAX_SEARCH_PAGE_SIZE = 50;
+    // ranking keeps the best (page + 1) * size matches in memory, pages beyond this aren't served
+    static final int MAX_SEARCH_RESULTS = 1000;
+
     private final UserRepository userRepository;
     private final MessageRepository messageRepository;
     private final GroupRepository groupRepository;
+    private final MessageIdGenerator messageIdGenerator;
+    private final MessageWriteBehind messageWriteBehind;
+    private final PresenceRegistry presenceRegistry;
+    private final PresenceBroadcaster presenceBroadcaster;
+    private final GroupMembershipCache groupMembershipCache;
+    private final MessageSearchIndex messageSearchIndex;
+    private final RecentMessageCache recentMessageCache;
+    private final MessageArchive messageArchive;
 
-    public ChatService(UserRepository userRepository, MessageRepository messageRepository, GroupRepository groupRepository) {
+    public ChatService(UserRepository userRepository, MessageRepository messageRepository, GroupRepository groupRepository,
+                       MessageIdGenerator messageIdGenerator, MessageWriteBehind messageWriteBehind,
+                       PresenceRegistry presenceRegistry, PresenceBroadcaster presenceBroadcaster,
+                       GroupMembershipCache groupMembershipCache, MessageSearchIndex messageSearchIndex,
+                       RecentMessageCache recentMessageCache, MessageArchive messageArchive) {
         this.userRepository = userRepository;
         this.messageRepository = messageRepository;
         this.groupRepository = groupRepository;
+        this.messageIdGenerator = messageIdGenerator;
+        this.messageWriteBehind = messageWriteBehind;
+        this.presenceRegistry = presenceRegistry;
+        this.presenceBroadcaster = presenceBroadcaster;
+        this.groupMembershipCache = groupMembershipCache;
+        this.messageSearchIndex = messageSearchIndex;
+        this.recentMessageCache = recentMessageCache;
+        this.messageArchive = messageArchive;
     }
 
+    // the user came online when their STOMP session connected (PresenceRegistry), nothing to look up here,
+    // the users table catches up in the background (PresencePersister)
     public User createOrLogin(String username) {
-        User user = userRepository.findByUsername(username);
-        if(user == null) { user = new User(username); }
-        else {
-            if(user.isOnline()) {
-                throw new IllegalStateException("User is already logged in from another session.");
-            }
-            user.setOnline(true);
-        }
-        return userRepository.save(user);
+        User user = new User(username);
+        user.setOnline(presenceRegistry.isOnline(username));
+        return user;
     }
 
-    public void logoutUser(String username) {
-        User user = userRepository.findByUsername(username);
-        if(user != null) {
-            user.setOnline(false);
-            userRepository.save(user);
-        }
+    public Set<String> getOnlineUsers() {
+        return presenceRegistry.onlineUsers();
+    }
+
+    // what /topic/presence subscribers have been told, versioned for applying the deltas on top
+    public PresenceSnapshot getPresence() {
+        return presenceBroadcaster.snapshot();
     }
 
     public List<User> getAllUsers() {
         return userRepository.findAll();
     }
 
+    // members are matched by username, names nobody ever logged in with are left out. Someone online right now
+    // may not have a users row yet (PresencePersister writes it in the background), that row is created here.
     public Group createGroup(String groupName, Set<User> members) {
-        Group group = groupRepository.getGroupByName(groupName);
-        if(group != null) { return null; }
-        group = new Group(groupName,members);
-        return groupRepository.save(group);
+        if(groupRepository.existsByGroupName(groupName)) { return null; }
+        Set<String> usernames = new HashSet<>();
+        if(members != null) members.forEach(user -> { if(user.getUserName() != null) usernames.add(user.getUserName()); });
+
+        Set<User> found = new HashSet<>(userRepository.findByUsernameIn(usernames));
+        found.forEach(user -> usernames.remove(user.getUserName()));
+        for(String username : usernames) {
+            if(presenceRegistry.isOnline(username)) found.add(userRepository.save(new User(username)));
+        }
+        Group group = groupRepository.save(new Group(groupName, found));
+
+        Set<String> memberNames = new HashSet<>();
+        group.getMembers().forEach(user -> memberNames.add(user.getUserName()));
+        groupMembershipCache.put(groupName, memberNames);
+        return group;
     }
 
     public Group getGroupByName(String groupName) {
-        return groupRepository.getGroupByName(groupName);
+        return groupRepository.findByGroupName(groupName);
+    }
+
+    // served from GroupMembershipCache, null when there is no such group
+    public Set<String> getGroupMembers(String groupName) {
+        return groupMembershipCache.getMembers(groupName);
+    }
+
+    public boolean isGroupMember(String groupName, String username) {
+        return groupMembershipCache.isMember(groupName, username);
     }
 
     public List<Group> getAllGroups() {
@@ -58,19 +110,89 @@ public class ChatService {
     }
 
     public Message saveMessage(String sender, String receiver, String message) {
-        Message msg = new Message(sender, receiver, message);
-        return messageRepository.save(msg);
+        return save(new Message(sender, receiver, message), ConversationKey.direct(sender, receiver));
+    }
+
+    public Message saveGroupMessage(String sender, String groupName, String message) {
+        return save(new Message(sender, groupName, message), ConversationKey.group(groupName));
+    }
+
+    // returns as soon as the message has its id, the insert itself is batched by MessageWriteBehind
+    private Message save(Message msg, String conversationId) {
+        msg.setMsgId(messageIdGenerator.nextId());
+        msg.setConversationId(conversationId);
+        messageWriteBehind.save(msg);
+        recentMessageCache.add(msg);
+        return msg;
+    }
+
+    public MessagePage getPrivateConversations(String user1, String user2, LocalDateTime beforeTimestamp, Long beforeMsgId, int limit) {
+        return getConversation(ConversationKey.direct(user1, user2), beforeTimestamp, beforeMsgId, limit);
+    }
+
+    public MessagePage getGroupMessages(String groupName, LocalDateTime beforeTimestamp, Long beforeMsgId, int limit) {
+        return getConversation(ConversationKey.group(groupName), beforeTimestamp, beforeMsgId, limit);
+    }
+
+    // pages within the newest messages come from RecentMessageCache, older ones are one range scan on
+    // (conversation_id, timestamp), beforeTimestamp == null reads the latest page. A page that runs past
+    // the oldest message left in the table goes on in MessageArchive, the cursor works the same in both.
+    private MessagePage getConversation(String conversationId, LocalDateTime beforeTimestamp, Long beforeMsgId, int limit) {
+        limit = pageSize(limit);
+        MessagePage cached = recentMessageCache.page(conversationId, beforeTimestamp, beforeMsgId, limit);
+        if(cached != null) return cached;
+        List<Message> newestFirst = new ArrayList<>(beforeTimestamp == null
+                ? messageRepository.findLatest(conversationId, Limit.of(limit + 1))
+                : messageRepository.findBefore(conversationId, beforeTimestamp, cursorId(beforeMsgId), Limit.of(limit + 1)));
+        if(newestFirst.size() <= limit && messageArchive.hasConversation(conversationId)) {
+            Message oldest = newestFirst.isEmpty() ? null : newestFirst.get(newestFirst.size() - 1);
+            newestFirst.addAll(oldest != null
+                    ? messageArchive.before(conversationId, oldest.getTimestamp(), oldest.getMsgId(), limit + 1 - newestFirst.size())
+                    : messageArchive.before(conversationId, beforeTimestamp, cursorId(beforeMsgId), limit + 1));
+        }
+        return MessagePage.of(newestFirst, limit);
+    }
+
+    // ranked by MessageSearchIndex, over the one conversation named by the request or all of the user's.
+    // Group membership of a single group conversation is checked by the caller.
+    public SearchPage searchMessages(String username, SearchRequest request) {
+        int size = request.getSize() <= 0 ? DEFAULT_SEARCH_PAGE_SIZE : Math.min(request.getSize(), MAX_SEARCH_PAGE_SIZE);
+        int page = Math.max(0, request.getPage());
+        // (page + 1) * size > MAX_SEARCH_RESULTS, without overflowing for huge pages
+        if(page >= MAX_SEARCH_RESULTS / size) {
+            throw new IllegalStateException("Only the first " + MAX_SEARCH_RESULTS + " search results can be paged through");
+        }
+        Collection<String> conversations;
+        if(request.getWith() != null) {
+            conversations = List.of(request.isGroup() ? ConversationKey.group(request.getWith()) : ConversationKey.direct(username, request.getWith()));
+        } else {
+            conversations = new HashSet<>(messageSearchIndex.directConversationsOf(username));
+            for(String groupName : groupRepository.findGroupNamesOf(username)) conversations.add(ConversationKey.group(groupName));
+        }
+
+        MessageSearchIndex.Hits hits = messageSearchIndex.search(conversations, request.getQuery(), page, size);
+        Map<Long, Message> byId = new HashMap<>();
+        messageRepository.findAllById(hits.getMsgIds()).forEach(message -> byId.put(message.getMsgId(), message));
+        if(byId.size() < hits.getMsgIds().size() && messageArchive.getSegments() > 0) {
+            List<Long> archived = new ArrayList<>();
+            for(Long msgId : hits.getMsgIds()) if(!byId.containsKey(msgId)) archived.add(msgId);
+            messageArchive.findAll(archived).forEach(message -> byId.put(message.getMsgId(), message));
+        }
+        List<Message> messages = new ArrayList<>(hits.getMsgIds().size());
+        for(Long msgId : hits.getMsgIds()) {
+            Message message = byId.get(msgId);
+            if(message != null) messages.add(message);
+        }
+        return new SearchPage(messages, page, hits.getTotal(), (page + 1) * size < hits.getTotal());
     }
 
-    public List<Message> getPrivateConversations(String user1, String user2) {
-        List<Message> conv1 = messageRepository.findBySenderAndRecipient(user1, user2);
-        List<Message> conv2 = messageRepository.findBySenderAndRecipient(user2, user1);
-        conv1.addAll(conv2);
-        conv1.sort((m1, m2) -> m1.getTimestamp().compareTo(m2.getTimestamp()));
-        return conv1;
+    private static int pageSize(int limit) {
+        if(limit <= 0) { return DEFAULT_PAGE_SIZE; }
+        return Math.min(limit, MAX_PAGE_SIZE);
     }
 
-    public List<Message> getGroupMessages(String groupName) {
-        return messageRepository.findByRecipient(groupName);
+    // a timestamp without an id takes every message at that exact timestamp as older
+    private static long cursorId(Long beforeMsgId) {
+        return beforeMsgId == null ? Long.MAX_VALUE : beforeMsgId;
     }
 }
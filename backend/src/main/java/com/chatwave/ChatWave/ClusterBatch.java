@@ -0,0 +1,146 @@
+package com.chatwave.ChatWave;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+// Everything one node has for another since its last batch : changes to which of its users are online,
+// groups whose membership changed, and the messages for users or groups with sessions on the receiver.
+// Transports between processes send it as written by write(), see TcpClusterTransport.
+public class ClusterBatch {
+    // a batch is at most chatwave.cluster.batch-size messages, this only guards against garbage on the wire
+    private static final int MAX_LENGTH = 64 * 1024 * 1024;
+
+    private final String from;
+    // the sender just joined and wants the receiver's users in return
+    private final boolean hello;
+    // all users online on the sender, replacing what the receiver knew, null when there is none
+    private final Set<String> snapshot;
+    // applied after the snapshot, in order
+    private final List<RouteChange> routes;
+    private final List<String> changedGroups;
+    private final List<ForwardedMessage> messages;
+
+    public ClusterBatch(String from, boolean hello, Set<String> snapshot, List<RouteChange> routes,
+                        List<String> changedGroups, List<ForwardedMessage> messages) {
+        this.from = from;
+        this.hello = hello;
+        this.snapshot = snapshot;
+        this.routes = routes;
+        this.changedGroups = changedGroups;
+        this.messages = messages;
+    }
+
+    public String getFrom() {return this.from;}
+    public boolean isHello() {return this.hello;}
+    public Set<String> getSnapshot() {return this.snapshot;}
+    public List<RouteChange> getRoutes() {return this.routes;}
+    public List<String> getChangedGroups() {return this.changedGroups;}
+    public List<ForwardedMessage> getMessages() {return this.messages;}
+
+    static void write(DataOutputStream out, ClusterBatch batch) throws IOException {
+        writeString(out, batch.from);
+        out.writeBoolean(batch.hello);
+        out.writeInt(batch.snapshot == null ? -1 : batch.snapshot.size());
+        if(batch.snapshot != null) for(String username : batch.snapshot) writeString(out, username);
+        out.writeInt(batch.routes.size());
+        for(RouteChange change : batch.routes) {
+            writeString(out, change.username);
+            out.writeBoolean(change.online);
+        }
+        out.writeInt(batch.changedGroups.size());
+        for(String groupName : batch.changedGroups) writeString(out, groupName);
+        out.writeInt(batch.messages.size());
+        for(ForwardedMessage message : batch.messages) {
+            writeString(out, message.destination);
+            writeString(out, message.contentType);
+            out.writeInt(message.payload.length);
+            out.write(message.payload);
+        }
+    }
+
+    static ClusterBatch read(DataInputStream in) throws IOException {
+        String from = readString(in);
+        boolean hello = in.readBoolean();
+        int snapshotSize = in.readInt();
+        Set<String> snapshot = null;
+        if(snapshotSize >= 0) {
+            snapshot = new HashSet<>();
+            for(int i = checkLength(snapshotSize); i > 0; i--) snapshot.add(readString(in));
+        }
+        List<RouteChange> routes = new ArrayList<>();
+        for(int i = checkLength(in.readInt()); i > 0; i--) routes.add(new RouteChange(readString(in), in.readBoolean()));
+        List<String> changedGroups = new ArrayList<>();
+        for(int i = checkLength(in.readInt()); i > 0; i--) changedGroups.add(readString(in));
+        List<ForwardedMessage> messages = new ArrayList<>();
+        for(int i = checkLength(in.readInt()); i > 0; i--) {
+            String destination = readString(in);
+            String contentType = readString(in);
+            messages.add(new ForwardedMessage(destination, contentType, readBytes(in, in.readInt())));
+        }
+        return new ClusterBatch(from, hello, snapshot, routes, changedGroups, messages);
+    }
+
+    // -1 for null
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if(s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(utf8.length);
+        out.write(utf8);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if(length < 0) return null;
+        return new String(readBytes(in, length), StandardCharsets.UTF_8);
+    }
+
+    private static byte[] readBytes(DataInputStream in, int length) throws IOException {
+        byte[] bytes = new byte[checkLength(length)];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private static int checkLength(int length) throws IOException {
+        if(length < 0 || length > MAX_LENGTH) throw new IOException("Not a cluster batch, length " + length);
+        return length;
+    }
+
+    public static class RouteChange {
+        private final String username;
+        private final boolean online;
+
+        public RouteChange(String username, boolean online) {
+            this.username = username;
+            this.online = online;
+        }
+
+        public String getUsername() {return this.username;}
+        public boolean isOnline() {return this.online;}
+    }
+
+    // a message as it was sent to the broker, payload already converted, sent again on the receiver's broker
+    public static class ForwardedMessage {
+        private final String destination;
+        private final String contentType;
+        private final byte[] payload;
+
+        public ForwardedMessage(String destination, String contentType, byte[] payload) {
+            this.destination = destination;
+            this.contentType = contentType;
+            this.payload = payload;
+        }
+
+        public String getDestination() {return this.destination;}
+        public String getContentType() {return this.contentType;}
+        public byte[] getPayload() {return this.payload;}
+    }
+}
@@ -0,0 +1,30 @@
+package com.chatwave.ChatWave;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.List;
+
+// The transport named by chatwave.cluster.transport unless another ClusterTransport bean is defined :
+// loopback between the nodes in this JVM, tcp between processes.
+@Configuration
+@ConditionalOnProperty(name = "chatwave.cluster.enabled", havingValue = "true")
+public class ClusterConfig {
+
+    @Bean
+    @ConditionalOnMissingBean
+    public ClusterTransport clusterTransport(@Value("${chatwave.cluster.transport:loopback}") String transport,
+                                             @Value("${chatwave.cluster.name:chatwave}") String clusterName,
+                                             @Value("${chatwave.cluster.address:127.0.0.1:7600}") String address,
+                                             @Value("${chatwave.cluster.peers:}") List<String> peers,
+                                             @Value("${chatwave.cluster.reconnect-ms:1000}") long reconnectMs) {
+        return switch (transport) {
+            case "loopback" -> new LoopbackClusterTransport(clusterName);
+            case "tcp" -> new TcpClusterTransport(clusterName, address, peers, reconnectMs);
+            default -> throw new IllegalStateException("chatwave.cluster.transport is loopback or tcp, not " + transport);
+        };
+    }
+}
@@ -0,0 +1,272 @@
+package com.chatwave.ChatWave;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.messaging.support.ChannelInterceptor;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.util.MimeType;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Lets several instances share delivery on top of their in-process simple brokers. Every message sent
+// to the broker for /user/{name}/... or a group's topics is also forwarded to the other nodes that user, or
+// one of the group's members, has sessions on, where it is sent to the local broker again.
+// Which users are on which node is gossiped along : every node tells all others about its users coming
+// and going, and answers a joining node with a snapshot. Everything for a node is batched per flush.
+// A node is named after its chatwave.node-id, the node bits of the message ids it hands out, so two nodes
+// of one cluster can't write colliding message ids : the second one with the same id isn't let in.
+@Component
+@ConditionalOnProperty(name = "chatwave.cluster.enabled", havingValue = "true")
+public class ClusterFanout implements ChannelInterceptor, PresenceListener, ClusterTransport.Receiver, SmartLifecycle {
+    // set on messages that came from another node, so they are only delivered locally
+    static final String FROM_NODE_HEADER = "chatwave.fromNode";
+    private static final String USER_PREFIX = "/user/";
+
+    private final ClusterTransport transport;
+    private final PresenceRegistry presenceRegistry;
+    private final GroupMembershipCache groupMembershipCache;
+    private final MessageChannel brokerChannel;
+    private final String nodeId;
+    private final int batchSize;
+    private final ClusterRoutingTable routes = new ClusterRoutingTable();
+    private final ConcurrentHashMap<String, Outbox> outboxes = new ConcurrentHashMap<>();
+    private final Counter forwarded;
+    private final Counter batchesSent;
+    private volatile boolean running;
+
+    public ClusterFanout(ClusterTransport transport, PresenceRegistry presenceRegistry, GroupMembershipCache groupMembershipCache,
+                         @Lazy @Qualifier("brokerChannel") MessageChannel brokerChannel,
+                         MessageIdGenerator idGenerator,
+                         @Value("${chatwave.cluster.batch-size:256}") int batchSize,
+                         MeterRegistry meterRegistry) {
+        this.transport = transport;
+        this.presenceRegistry = presenceRegistry;
+        this.groupMembershipCache = groupMembershipCache;
+        this.brokerChannel = brokerChannel;
+        if(!idGenerator.isNodeIdSet()) {
+            throw new IllegalStateException("chatwave.cluster.enabled needs chatwave.node-id, distinct on every node of the cluster");
+        }
+        this.nodeId = "node-" + idGenerator.getNodeId();
+        this.batchSize = Math.max(1, batchSize);
+        this.forwarded = Counter.builder("chatwave.cluster.forwarded")
+                .description("Messages queued for another node, once per node").register(meterRegistry);
+        this.batchesSent = Counter.builder("chatwave.cluster.batches").register(meterRegistry);
+    }
+
+    public String getNodeId() {return this.nodeId;}
+    ClusterRoutingTable getRoutes() {return this.routes;}
+
+    // on the broker channel, on whichever thread sends to the broker
+    @Override
+    public Message<?> preSend(Message<?> message, MessageChannel channel) {
+        MessageHeaders headers = message.getHeaders();
+        if(!running || headers.containsKey(FROM_NODE_HEADER)
+                || SimpMessageHeaderAccessor.getMessageType(headers) != SimpMessageType.MESSAGE
+                || !(message.getPayload() instanceof byte[] payload)) {
+            return message;
+        }
+        String destination = SimpMessageHeaderAccessor.getDestination(headers);
+        if(destination == null) return message;
+
+        Set<String> nodes;
+        String groupName = StompAuthInterceptor.groupOf(destination);
+        if(destination.startsWith(USER_PREFIX)) {
+            // a reply to one particular session, that session is on this node
+            if(SimpMessageHeaderAccessor.getSessionId(headers) != null) return message;
+            int end = destination.indexOf('/', USER_PREFIX.length());
+            if(end < 0) return message;
+            nodes = routes.nodesOf(destination.substring(USER_PREFIX.length(), end).replace("%2F", "/"));
+        } else if(groupName != null) {
+            Set<String> members = groupMembershipCache.getMembers(groupName);
+            if(members == null) return message;
+            nodes = routes.nodesOf(members);
+        } else {
+            return message;
+        }
+        if(nodes.isEmpty()) return message;
+
+        Object contentType = headers.get(MessageHeaders.CONTENT_TYPE);
+        ClusterBatch.ForwardedMessage forward = new ClusterBatch.ForwardedMessage(destination,
+                contentType == null ? null : contentType.toString(), payload);
+        for(String node : nodes) {
+            if(node.equals(nodeId)) continue;
+            forwarded.increment();
+            if(outbox(node).addMessage(forward) >= batchSize) tryFlush(node);
+        }
+        return message;
+    }
+
+    @Override
+    public void presenceChanged(String username, boolean online) {
+        if(!running) return;
+        for(String node : otherNodes()) outbox(node).addRoute(new ClusterBatch.RouteChange(username, online));
+    }
+
+    // other nodes may have cached the old member list, or none at all
+    private void groupChanged(String groupName) {
+        if(!running) return;
+        for(String node : otherNodes()) outbox(node).addGroup(groupName);
+    }
+
+    @Override
+    public void receive(ClusterBatch batch) {
+        String from = batch.getFrom();
+        if(batch.getSnapshot() != null) routes.replaceNode(from, batch.getSnapshot());
+        for(ClusterBatch.RouteChange change : batch.getRoutes()) {
+            if(change.isOnline()) routes.add(change.getUsername(), from);
+            else routes.remove(change.getUsername(), from);
+        }
+        batch.getChangedGroups().forEach(groupMembershipCache::invalidate);
+        for(ClusterBatch.ForwardedMessage message : batch.getMessages()) deliverLocally(from, message);
+        if(batch.isHello()) {
+            outbox(from).addSnapshot(false);
+            tryFlush(from);
+        }
+    }
+
+    // a node we couldn't reach when joining, greeted like the ones we could
+    @Override
+    public void nodeJoined(String node) {
+        outbox(node).addSnapshot(true);
+        tryFlush(node);
+    }
+
+    @Override
+    public void nodeLeft(String node) {
+        routes.removeNode(node);
+        outboxes.remove(node);
+    }
+
+    private void deliverLocally(String from, ClusterBatch.ForwardedMessage message) {
+        SimpMessageHeaderAccessor accessor = SimpMessageHeaderAccessor.create(SimpMessageType.MESSAGE);
+        accessor.setDestination(message.getDestination());
+        if(message.getContentType() != null) accessor.setContentType(MimeType.valueOf(message.getContentType()));
+        accessor.setHeader(FROM_NODE_HEADER, from);
+        brokerChannel.send(MessageBuilder.createMessage(message.getPayload(), accessor.getMessageHeaders()));
+    }
+
+    @Scheduled(fixedDelayString = "${chatwave.cluster.flush-interval-ms:5}")
+    public void flush() {
+        for(String node : outboxes.keySet()) {
+            Outbox outbox = outboxes.get(node);
+            if(outbox == null) continue;
+            outbox.sending.lock();
+            try {
+                send(node, outbox);
+            } finally {
+                outbox.sending.unlock();
+            }
+        }
+    }
+
+    // never waits, a batch that is being sent already or the next flush takes care of it
+    private void tryFlush(String node) {
+        Outbox outbox = outboxes.get(node);
+        if(outbox == null || !outbox.sending.tryLock()) return;
+        try {
+            send(node, outbox);
+        } finally {
+            outbox.sending.unlock();
+        }
+    }
+
+    // called holding outbox.sending, so batches to one node leave in the order they were taken
+    private void send(String node, Outbox outbox) {
+        ClusterBatch batch = outbox.take();
+        if(batch == null) return;
+        batchesSent.increment();
+        transport.send(node, batch);
+    }
+
+    private Outbox outbox(String node) {
+        return outboxes.computeIfAbsent(node, n -> new Outbox());
+    }
+
+    private List<String> otherNodes() {
+        List<String> nodes = new ArrayList<>();
+        for(String node : transport.nodes()) if(!node.equals(nodeId)) nodes.add(node);
+        return nodes;
+    }
+
+    @Override
+    public void start() {
+        presenceRegistry.addListener(this);
+        groupMembershipCache.addListener(this::groupChanged);
+        transport.join(nodeId, this);
+        running = true;
+        for(String node : otherNodes()) {
+            outbox(node).addSnapshot(true);
+            tryFlush(node);
+        }
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        flush();
+        transport.leave(nodeId);
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    // what is waiting for one node, guarded by itself
+    private final class Outbox {
+        private final ReentrantLock sending = new ReentrantLock();
+        private boolean hello;
+        private Set<String> snapshot;
+        private List<ClusterBatch.RouteChange> routes = new ArrayList<>();
+        private List<String> groups = new ArrayList<>();
+        private List<ClusterBatch.ForwardedMessage> messages = new ArrayList<>();
+
+        synchronized int addMessage(ClusterBatch.ForwardedMessage message) {
+            messages.add(message);
+            return messages.size();
+        }
+
+        synchronized void addRoute(ClusterBatch.RouteChange change) {
+            routes.add(change);
+        }
+
+        synchronized void addGroup(String groupName) {
+            groups.add(groupName);
+        }
+
+        // taken while holding the outbox, so every route change queued before is part of it
+        // and every one queued after is applied on top
+        synchronized void addSnapshot(boolean hello) {
+            this.hello |= hello;
+            snapshot = presenceRegistry.onlineUsers();
+            routes = new ArrayList<>();
+        }
+
+        synchronized ClusterBatch take() {
+            if(!hello && snapshot == null && routes.isEmpty() && groups.isEmpty() && messages.isEmpty()) return null;
+            ClusterBatch batch = new ClusterBatch(nodeId, hello, snapshot, routes, groups, messages);
+            hello = false;
+            snapshot = null;
+            routes = new ArrayList<>();
+            groups = new ArrayList<>();
+            messages = new ArrayList<>();
+            return batch;
+        }
+    }
+}
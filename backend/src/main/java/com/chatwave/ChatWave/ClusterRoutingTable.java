@@ -0,0 +1,63 @@
+package com.chatwave.ChatWave;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Which other nodes each user has sessions on, fed by the nodes' route changes and snapshots.
+// Node sets are immutable and replaced on every change, so a lookup on the send path never locks.
+public class ClusterRoutingTable {
+    private final ConcurrentHashMap<String, Set<String>> userNodes = new ConcurrentHashMap<>();
+    // reverse index, so a snapshot or a node leaving only touches that node's users
+    private final ConcurrentHashMap<String, Set<String>> nodeUsers = new ConcurrentHashMap<>();
+
+    public void add(String username, String node) {
+        userNodes.compute(username, (u, nodes) -> {
+            if(nodes != null && nodes.contains(node)) return nodes;
+            Set<String> more = nodes == null ? new HashSet<>() : new HashSet<>(nodes);
+            more.add(node);
+            return Set.copyOf(more);
+        });
+        nodeUsers.computeIfAbsent(node, n -> ConcurrentHashMap.newKeySet()).add(username);
+    }
+
+    public void remove(String username, String node) {
+        userNodes.computeIfPresent(username, (u, nodes) -> {
+            if(!nodes.contains(node)) return nodes;
+            Set<String> rest = new HashSet<>(nodes);
+            rest.remove(node);
+            return rest.isEmpty() ? null : Set.copyOf(rest);
+        });
+        Set<String> users = nodeUsers.get(node);
+        if(users != null) users.remove(username);
+    }
+
+    // everything known about node is replaced by users
+    public void replaceNode(String node, Set<String> users) {
+        Set<String> previous = nodeUsers.get(node);
+        if(previous != null) {
+            for(String username : previous) {
+                if(!users.contains(username)) remove(username, node);
+            }
+        }
+        for(String username : users) add(username, node);
+    }
+
+    public void removeNode(String node) {
+        Set<String> users = nodeUsers.remove(node);
+        if(users == null) return;
+        for(String username : users) remove(username, node);
+    }
+
+    public Set<String> nodesOf(String username) {
+        Set<String> nodes = userNodes.get(username);
+        return nodes == null ? Set.of() : nodes;
+    }
+
+    public Set<String> nodesOf(Collection<String> usernames) {
+        Set<String> nodes = new HashSet<>();
+        for(String username : usernames) nodes.addAll(nodesOf(username));
+        return nodes;
+    }
+}
@@ -0,0 +1,28 @@
+package com.chatwave.ChatWave;
+
+import java.util.Set;
+
+// How ClusterFanout nodes reach each other. Batches from one node to another have to arrive at most
+// once and in the order they were sent. LoopbackClusterTransport does that inside one JVM,
+// TcpClusterTransport between processes (chatwave.cluster.transport).
+public interface ClusterTransport {
+    interface Receiver {
+        void receive(ClusterBatch batch);
+        // nodeId can be sent to from now on. Only for nodes that become reachable after join(), the ones in
+        // nodes() when joining aren't announced
+        void nodeJoined(String nodeId);
+        // the node left or can't be reached anymore, whatever it told us is stale
+        void nodeLeft(String nodeId);
+    }
+
+    // batches for nodeId are handed to receiver from now on, fails when another node joined with that id.
+    // A transport that only learns about other nodes later refuses them instead
+    void join(String nodeId, Receiver receiver);
+
+    void leave(String nodeId);
+
+    // every node that joined and didn't leave, this one included
+    Set<String> nodes();
+
+    void send(String toNode, ClusterBatch batch);
+}
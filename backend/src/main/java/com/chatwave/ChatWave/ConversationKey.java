@@ -0,0 +1,20 @@
+package com.chatwave.ChatWave;
+
+// Message.conversationId values. Usernames and group names share one namespace in
+// Message.recipient, the prefix keeps a user and a group with the same name apart.
+// A direct chat is keyed by the ordered user pair, the length prefix makes the key unambiguous
+// whatever characters the usernames contain.
+public final class ConversationKey {
+    private ConversationKey() {}
+
+    public static String direct(String user1, String user2) {
+        boolean ordered = user1.compareTo(user2) <= 0;
+        String first = ordered ? user1 : user2;
+        String second = ordered ? user2 : user1;
+        return "dm:" + first.length() + ":" + first + ":" + second;
+    }
+
+    public static String group(String groupName) {
+        return "group:" + groupName;
+    }
+}
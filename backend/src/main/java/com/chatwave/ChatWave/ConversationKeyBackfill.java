@@ -0,0 +1,57 @@
+package com.chatwave.ChatWave;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.domain.Limit;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+// Fills Message.conversationId for rows written before the column existed, in small transactions
+// so the table is never locked for long. The key is computed here rather than in SQL because the
+// user pair has to be ordered the way String.compareTo orders it, not by the column collation.
+// Old rows can't tell a group from a user, a recipient naming an existing group is taken as the group.
+@Component
+@ConditionalOnProperty(name = "chatwave.migration.conversation-backfill", havingValue = "true", matchIfMissing = true)
+public class ConversationKeyBackfill implements ApplicationRunner {
+    private static final Logger log = LoggerFactory.getLogger(ConversationKeyBackfill.class);
+    private static final int BATCH_SIZE = 1000;
+
+    private final MessageRepository messageRepository;
+    private final GroupRepository groupRepository;
+    private final TransactionTemplate transactionTemplate;
+
+    public ConversationKeyBackfill(MessageRepository messageRepository, GroupRepository groupRepository,
+                                   PlatformTransactionManager transactionManager) {
+        this.messageRepository = messageRepository;
+        this.groupRepository = groupRepository;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+    }
+
+    @Override
+    public void run(ApplicationArguments args) {
+        Set<String> groupNames = groupRepository.findAll().stream().map(Group::getGroupName).collect(Collectors.toSet());
+        long total = 0;
+        int updated;
+        do {
+            updated = transactionTemplate.execute(status -> {
+                List<Message> batch = messageRepository.findWithoutConversation(Limit.of(BATCH_SIZE));
+                for(Message message : batch) {
+                    message.setConversationId(groupNames.contains(message.getRecipient())
+                            ? ConversationKey.group(message.getRecipient())
+                            : ConversationKey.direct(message.getSender(), message.getRecipient()));
+                }
+                return batch.size();
+            });
+            total += updated;
+        } while(updated == BATCH_SIZE);
+        if(total > 0) log.info("Backfilled conversationId on {} messages", total);
+    }
+}
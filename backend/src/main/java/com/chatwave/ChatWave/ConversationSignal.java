@@ -0,0 +1,26 @@
+package com.chatwave.ChatWave;
+
+// What ConversationSignals publishes on /user/queue/signals and /topic/signals/group/{name}, sender and
+// recipient as in Message. Only what changed is set : typing when the sender started or stopped typing,
+// readUpTo when their read watermark moved, the id of the newest message they have read.
+public class ConversationSignal {
+    private final String sender;
+    private final String recipient;
+    private final boolean group;
+    private final Boolean typing;
+    private final Long readUpTo;
+
+    public ConversationSignal(String sender, String recipient, boolean group, Boolean typing, Long readUpTo) {
+        this.sender = sender;
+        this.recipient = recipient;
+        this.group = group;
+        this.typing = typing;
+        this.readUpTo = readUpTo;
+    }
+
+    public String getSender() {return this.sender;}
+    public String getRecipient() {return this.recipient;}
+    public boolean isGroup() {return this.group;}
+    public Boolean getTyping() {return this.typing;}
+    public Long getReadUpTo() {return this.readUpTo;}
+}
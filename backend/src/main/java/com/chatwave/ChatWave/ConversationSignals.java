@@ -0,0 +1,185 @@
+package com.chatwave.ChatWave;
+
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.messaging.simp.SimpMessageSendingOperations;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Typing indicators and read receipts. They come far more often than messages and aren't worth a row each,
+// so they never go through ChatService.saveMessage. What a sender signals in a conversation is collected
+// between flushes and only the net change goes out every flush-interval-ms : saying "typing" again while
+// typing costs nothing, starting and stopping within one interval costs nothing, and any number of read
+// receipts become one readUpTo, the watermark ReadWatermarks keeps and writes in batches.
+// Signals only go to the conversation's participants : the other user's /user/queue/signals (the reader's own
+// sessions too for read receipts) or /topic/signals/group/{name}, which only members may subscribe to.
+// Someone is typing until they say they stopped, send a message to the conversation (the receivers drop the
+// indicator with the message, nothing is published), go offline or don't repeat it for typing-timeout-ms.
+@Component
+public class ConversationSignals implements PresenceListener {
+    static final String SIGNAL_QUEUE = "/queue/signals";
+    // ids are handed out from the node's clock, nothing later than this can have been read yet
+    private static final long MAX_CLOCK_SKEW_MS = 60_000;
+
+    private final SimpMessageSendingOperations messagingTemplate;
+    private final ReadWatermarks readWatermarks;
+    private final PresenceRegistry presenceRegistry;
+    private final long typingTimeoutNanos;
+    // what each sender signalled per conversation since the last flush, guarded by this
+    private Map<Key, Pending> pending = new HashMap<>();
+    private Set<String> wentOffline = new HashSet<>();
+    // who the receivers have been told is typing and when they last said so, only touched by flush
+    private final Map<Key, Long> typing = new HashMap<>();
+    private volatile int typingCount;
+    private final LongAdder typingReceived = new LongAdder();
+    private final LongAdder readReceived = new LongAdder();
+    private final LongAdder published = new LongAdder();
+
+    public ConversationSignals(SimpMessageSendingOperations messagingTemplate, ReadWatermarks readWatermarks,
+                               PresenceRegistry presenceRegistry,
+                               @Value("${chatwave.signals.typing-timeout-ms:6000}") long typingTimeoutMs) {
+        this.messagingTemplate = messagingTemplate;
+        this.readWatermarks = readWatermarks;
+        this.presenceRegistry = presenceRegistry;
+        this.typingTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(typingTimeoutMs);
+    }
+
+    // presence events come from other threads as soon as it is registered
+    @PostConstruct
+    void register() {
+        presenceRegistry.addListener(this);
+    }
+
+    public void typing(String sender, String with, boolean group, boolean typing) {
+        typingReceived.increment();
+        long now = System.nanoTime();
+        synchronized (this) {
+            Pending change = pending.computeIfAbsent(new Key(sender, with, group), k -> new Pending());
+            change.typing = typing;
+            change.typedAt = now;
+        }
+    }
+
+    public void read(String sender, String with, boolean group, long msgId) {
+        readReceived.increment();
+        // an id nobody has been handed would hold the watermark above every message still to come
+        if(msgId <= 0 || MessageIdGenerator.epochMillisOf(msgId) > System.currentTimeMillis() + MAX_CLOCK_SKEW_MS) return;
+        synchronized (this) {
+            Pending change = pending.computeIfAbsent(new Key(sender, with, group), k -> new Pending());
+            change.readUpTo = Math.max(change.readUpTo, msgId);
+        }
+    }
+
+    // sending ends typing, called for every message ChatController delivers
+    public void messageSent(String sender, String with, boolean group) {
+        synchronized (this) {
+            Pending change = pending.computeIfAbsent(new Key(sender, with, group), k -> new Pending());
+            change.sent = true;
+            change.typing = null;
+        }
+    }
+
+    // reader -> read-up-to msgId in the conversation of sender and with
+    public Map<String, Long> watermarks(String sender, String with, boolean group) {
+        return readWatermarks.watermarks(new Key(sender, with, group).conversationId());
+    }
+
+    @Override
+    public synchronized void presenceChanged(String username, boolean online) {
+        if(!online) wentOffline.add(username);
+    }
+
+    @Scheduled(fixedDelayString = "${chatwave.signals.flush-interval-ms:200}")
+    public void flush() {
+        Map<Key, Pending> changes;
+        Set<String> offline;
+        synchronized (this) {
+            if(pending.isEmpty() && wentOffline.isEmpty() && typing.isEmpty()) { return; }
+            changes = pending;
+            offline = wentOffline;
+            pending = new HashMap<>();
+            wentOffline = new HashSet<>();
+        }
+        changes.forEach((key, change) -> {
+            Boolean typingChanged = null;
+            if(change.sent) typing.remove(key);
+            if(Boolean.TRUE.equals(change.typing)) {
+                if(typing.put(key, change.typedAt) == null) typingChanged = true;
+            }
+            else if(Boolean.FALSE.equals(change.typing) && typing.remove(key) != null) typingChanged = false;
+            Long readUpTo = change.readUpTo > 0 && readWatermarks.advance(key.conversationId(), key.sender, change.readUpTo)
+                    ? change.readUpTo : null;
+            if(typingChanged != null || readUpTo != null) publish(key, typingChanged, readUpTo);
+        });
+        long now = System.nanoTime();
+        for(Iterator<Map.Entry<Key, Long>> it = typing.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<Key, Long> entry = it.next();
+            if(offline.contains(entry.getKey().sender) || now - entry.getValue() > typingTimeoutNanos) {
+                it.remove();
+                publish(entry.getKey(), false, null);
+            }
+        }
+        typingCount = typing.size();
+    }
+
+    private void publish(Key key, Boolean typing, Long readUpTo) {
+        ConversationSignal signal = new ConversationSignal(key.sender, key.with, key.group, typing, readUpTo);
+        if(key.group) {
+            messagingTemplate.convertAndSend(StompAuthInterceptor.GROUP_SIGNAL_PREFIX + key.with, signal);
+        }
+        else {
+            messagingTemplate.convertAndSendToUser(key.with, SIGNAL_QUEUE, signal);
+            if(readUpTo != null && !key.with.equals(key.sender)) messagingTemplate.convertAndSendToUser(key.sender, SIGNAL_QUEUE, signal);
+        }
+        published.increment();
+    }
+
+    public long getTypingReceived() {return this.typingReceived.sum();}
+    public long getReadReceived() {return this.readReceived.sum();}
+    public long getPublished() {return this.published.sum();}
+    public int getTyping() {return this.typingCount;}
+
+    // a sender in a conversation, with is the other user or the group name
+    private static final class Key {
+        final String sender;
+        final String with;
+        final boolean group;
+
+        Key(String sender, String with, boolean group) {
+            this.sender = sender;
+            this.with = with;
+            this.group = group;
+        }
+
+        String conversationId() {
+            return group ? ConversationKey.group(with) : ConversationKey.direct(sender, with);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key other && group == other.group && sender.equals(other.sender) && with.equals(other.with);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(sender, with, group);
+        }
+    }
+
+    private static final class Pending {
+        // the latest typing state said, null when none since the last flush or a message came after it
+        Boolean typing;
+        long typedAt;
+        boolean sent;
+        long readUpTo;
+    }
+}
@@ -0,0 +1,111 @@
+package com.chatwave.ChatWave;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.MessageHandler;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.messaging.simp.stomp.StompCommand;
+import org.springframework.messaging.simp.stomp.StompHeaderAccessor;
+import org.springframework.messaging.support.ExecutorChannelInterceptor;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.messaging.support.MessageHeaderAccessor;
+import org.springframework.stereotype.Component;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Time from a client's SEND frame arriving on the inbound channel to every frame it caused being
+// written to a WebSocket session, per destination type (chatwave.message.delivery).
+// The arrival time travels as a header : stamped on the inbound channel, handed to the messages the
+// handler sends through a thread local (handlers send on the thread that handles the frame) and read
+// back once the outbound channel has written the message.
+@Component
+public class DeliveryMetrics {
+    static final String RECEIVED_AT_HEADER = "chatwave.receivedAt";
+    private static final String[] DESTINATION_TYPES = {"private", "group", "history", "search", "presence", "signal", "error", "other"};
+
+    private final Map<String, Timer> timers;
+    private final ThreadLocal<Long> handling = new ThreadLocal<>();
+    private final Inbound inbound = new Inbound();
+    private final Outbound outbound = new Outbound();
+
+    public DeliveryMetrics(MeterRegistry registry) {
+        Map<String, Timer> byType = new HashMap<>();
+        for(String type : DESTINATION_TYPES) {
+            byType.put(type, Timer.builder("chatwave.message.delivery")
+                    .description("Client SEND frame received to the resulting frame written to a session")
+                    .tag("destination", type)
+                    .publishPercentiles(0.5, 0.95, 0.99)
+                    .register(registry));
+        }
+        this.timers = Map.copyOf(byType);
+    }
+
+    public ExecutorChannelInterceptor inbound() {return this.inbound;}
+    public ExecutorChannelInterceptor outbound() {return this.outbound;}
+
+    // user destinations arrive here resolved, e.g. /queue/messages-user<sessionId>
+    static String destinationType(String destination) {
+        if(destination == null) return "other";
+        if(destination.startsWith(StompAuthInterceptor.GROUP_TOPIC_PREFIX)) return "group";
+        if(destination.startsWith(ChatController.PRIVATE_QUEUE)) return "private";
+        if(destination.startsWith("/queue/history")) return "history";
+        if(destination.startsWith("/queue/search")) return "search";
+        if(destination.startsWith("/queue/presence") || destination.startsWith(PresenceBroadcaster.PRESENCE_TOPIC)) return "presence";
+        if(destination.startsWith(ConversationSignals.SIGNAL_QUEUE) || destination.startsWith(StompAuthInterceptor.GROUP_SIGNAL_PREFIX)
+                || destination.startsWith("/queue/watermarks")) return "signal";
+        if(destination.startsWith("/queue/errors") || destination.startsWith("/queue/throttled")) return "error";
+        return "other";
+    }
+
+    private class Inbound implements ExecutorChannelInterceptor {
+        // on the WebSocket thread, before the frame waits for an inbound executor thread
+        @Override
+        public Message<?> preSend(Message<?> message, MessageChannel channel) {
+            StompHeaderAccessor accessor = MessageHeaderAccessor.getAccessor(message, StompHeaderAccessor.class);
+            if(accessor != null && accessor.isMutable() && accessor.getCommand() == StompCommand.SEND) {
+                accessor.setHeader(RECEIVED_AT_HEADER, System.nanoTime());
+            }
+            return message;
+        }
+
+        @Override
+        public Message<?> beforeHandle(Message<?> message, MessageChannel channel, MessageHandler handler) {
+            Object receivedAt = message.getHeaders().get(RECEIVED_AT_HEADER);
+            if(receivedAt instanceof Long) handling.set((Long) receivedAt);
+            return message;
+        }
+
+        @Override
+        public void afterMessageHandled(Message<?> message, MessageChannel channel, MessageHandler handler, Exception ex) {
+            handling.remove();
+        }
+    }
+
+    private class Outbound implements ExecutorChannelInterceptor {
+        // on the thread that sent the message, i.e. the inbound thread still handling the SEND
+        @Override
+        public Message<?> preSend(Message<?> message, MessageChannel channel) {
+            Long receivedAt = handling.get();
+            if(receivedAt == null || SimpMessageHeaderAccessor.getMessageType(message.getHeaders()) != SimpMessageType.MESSAGE) {
+                return message;
+            }
+            SimpMessageHeaderAccessor accessor = SimpMessageHeaderAccessor.wrap(message);
+            accessor.setHeader(RECEIVED_AT_HEADER, receivedAt);
+            return MessageBuilder.createMessage(message.getPayload(), accessor.getMessageHeaders());
+        }
+
+        // the session's handler has written the frame by now
+        @Override
+        public void afterMessageHandled(Message<?> message, MessageChannel channel, MessageHandler handler, Exception ex) {
+            Object receivedAt = message.getHeaders().get(RECEIVED_AT_HEADER);
+            if(!(receivedAt instanceof Long) || ex != null) return;
+            String type = destinationType(SimpMessageHeaderAccessor.getDestination(message.getHeaders()));
+            timers.get(type).record(System.nanoTime() - (Long) receivedAt, TimeUnit.NANOSECONDS);
+        }
+    }
+}
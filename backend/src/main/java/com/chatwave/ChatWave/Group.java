@@ -1,18 +1,33 @@
 package com.chatwave.ChatWave;
 
+import jakarta.persistence.Column;
 import jakarta.persistence.Entity;
 import jakarta.persistence.GeneratedValue;
 import jakarta.persistence.GenerationType;
 import jakarta.persistence.Id;
+import jakarta.persistence.Index;
+import jakarta.persistence.JoinColumn;
+import jakarta.persistence.JoinTable;
+import jakarta.persistence.ManyToMany;
+import jakarta.persistence.Table;
 
 import java.util.*;
 
+// GROUP is a reserved word in SQL, hence chat_group. Membership lives in group_member,
+// keyed by (group_id, user_id) and indexed by user_id for "which groups is this user in".
 @Entity
+@Table(name = "chat_group")
 public class Group {
     @Id
     @GeneratedValue(strategy = GenerationType.IDENTITY)
     private Long groupId;
+    @Column(unique = true)
     private String groupName;
+    @ManyToMany
+    @JoinTable(name = "group_member",
+            joinColumns = @JoinColumn(name = "group_id"),
+            inverseJoinColumns = @JoinColumn(name = "user_id"),
+            indexes = @Index(name = "idx_group_member_user", columnList = "user_id"))
     private Set<User> members;
 
     public Group(){}
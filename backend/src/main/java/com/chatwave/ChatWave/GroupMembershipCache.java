@@ -0,0 +1,113 @@
+package com.chatwave.ChatWave;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+// Group name -> member usernames, so membership checks and group fan-out don't go to the database.
+// Holds at most maxSize groups, the least recently used ones are evicted in batches once it's full.
+// Groups that don't exist are cached too (as null members), a create replaces that entry.
+@Component
+public class GroupMembershipCache {
+    private final GroupRepository groupRepository;
+    private final int maxSize;
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final AtomicBoolean evicting = new AtomicBoolean();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    // told the group name after every put(), i.e. after a membership change made on this node
+    private final List<Consumer<String>> listeners = new CopyOnWriteArrayList<>();
+
+    public GroupMembershipCache(GroupRepository groupRepository,
+                                @Value("${chatwave.groups.cache-size:10000}") int maxSize) {
+        this.groupRepository = groupRepository;
+        this.maxSize = Math.max(1, maxSize);
+    }
+
+    // null when the group doesn't exist
+    public Set<String> getMembers(String groupName) {
+        Entry entry = entries.get(groupName);
+        if(entry != null) {
+            hits.increment();
+            entry.lastAccess = System.nanoTime();
+            return entry.members;
+        }
+        misses.increment();
+        Set<String> members = groupRepository.existsByGroupName(groupName)
+                ? Set.copyOf(groupRepository.findMemberNames(groupName)) : null;
+        // a concurrent put() from a membership change wins over what was just read
+        entry = entries.putIfAbsent(groupName, new Entry(members));
+        if(entry == null) evictIfFull();
+        return entry == null ? members : entry.members;
+    }
+
+    public void addListener(Consumer<String> listener) {
+        listeners.add(listener);
+    }
+
+    public boolean isMember(String groupName, String username) {
+        Set<String> members = getMembers(groupName);
+        return members != null && members.contains(username);
+    }
+
+    // called with the committed membership after every change
+    public void put(String groupName, Set<String> members) {
+        entries.put(groupName, new Entry(Set.copyOf(members)));
+        evictIfFull();
+        for(Consumer<String> listener : listeners) listener.accept(groupName);
+    }
+
+    public void invalidate(String groupName) {
+        entries.remove(groupName);
+    }
+
+    public long getHits() {return hits.sum();}
+    public long getMisses() {return misses.sum();}
+    public long getEvictions() {return evictions.sum();}
+    public int getSize() {return entries.size();}
+
+    public double getHitRate() {
+        long h = hits.sum(), total = h + misses.sum();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    // drops the least recently used tenth in one go, so a full cache doesn't sort on every miss
+    private void evictIfFull() {
+        if(entries.size() <= maxSize || !evicting.compareAndSet(false, true)) { return; }
+        try {
+            List<Map.Entry<String, Entry>> byAge = new ArrayList<>(entries.entrySet());
+            byAge.sort(Comparator.comparingLong(e -> e.getValue().lastAccess));
+            int excess = byAge.size() - maxSize + Math.max(1, maxSize / 10);
+            for(int i = 0; i < excess && i < byAge.size(); i++) {
+                if(entries.remove(byAge.get(i).getKey(), byAge.get(i).getValue())) evictions.increment();
+            }
+        } finally {
+            evicting.set(false);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "size=" + getSize() + " hits=" + getHits() + " misses=" + getMisses() + " evictions=" + getEvictions();
+    }
+
+    private static final class Entry {
+        private final Set<String> members;
+        private volatile long lastAccess = System.nanoTime();
+
+        private Entry(Set<String> members) {
+            this.members = members;
+        }
+    }
+}
@@ -1,7 +1,20 @@
 package com.chatwave.ChatWave;
 
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+
+import java.util.List;
 
 public interface GroupRepository extends JpaRepository<Group, Long> {
-    Group getGroupByName(String groupName);
+    Group findByGroupName(String groupName);
+
+    boolean existsByGroupName(String groupName);
+
+    // straight off group_member, no User entities are loaded
+    @Query("select u.username from Group g join g.members u where g.groupName = :groupName")
+    List<String> findMemberNames(@Param("groupName") String groupName);
+
+    @Query("select g.groupName from Group g join g.members u where u.username = :username")
+    List<String> findGroupNamesOf(@Param("username") String username);
 }
@@ -0,0 +1,27 @@
+package com.chatwave.ChatWave;
+
+import java.time.LocalDateTime;
+
+// Payload of /app/history. with is the other user, or the group name when group is true.
+// Leave beforeTimestamp/beforeMsgId empty for the latest page.
+public class HistoryRequest {
+    private String with;
+    private boolean group;
+    private LocalDateTime beforeTimestamp;
+    private Long beforeMsgId;
+    private int limit;
+
+    public HistoryRequest() {}
+
+    public String getWith() {return this.with;}
+    public boolean isGroup() {return this.group;}
+    public LocalDateTime getBeforeTimestamp() {return this.beforeTimestamp;}
+    public Long getBeforeMsgId() {return this.beforeMsgId;}
+    public int getLimit() {return this.limit;}
+
+    public void setWith(String with) {this.with = with;}
+    public void setGroup(boolean group) {this.group = group;}
+    public void setBeforeTimestamp(LocalDateTime beforeTimestamp) {this.beforeTimestamp = beforeTimestamp;}
+    public void setBeforeMsgId(Long beforeMsgId) {this.beforeMsgId = beforeMsgId;}
+    public void setLimit(int limit) {this.limit = limit;}
+}
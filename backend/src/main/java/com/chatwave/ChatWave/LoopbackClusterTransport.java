@@ -0,0 +1,41 @@
+package com.chatwave.ChatWave;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Cluster transport for nodes running in the same JVM, e.g. several application contexts in one test.
+// Nodes find each other by cluster name and batches are handed over on the sending thread.
+// Nothing crosses processes, separate instances need TcpClusterTransport to form a cluster.
+public class LoopbackClusterTransport implements ClusterTransport {
+    private static final ConcurrentHashMap<String, ConcurrentHashMap<String, Receiver>> CLUSTERS = new ConcurrentHashMap<>();
+
+    private final ConcurrentHashMap<String, Receiver> nodes;
+
+    public LoopbackClusterTransport(String clusterName) {
+        this.nodes = CLUSTERS.computeIfAbsent(clusterName, name -> new ConcurrentHashMap<>());
+    }
+
+    @Override
+    public void join(String nodeId, Receiver receiver) {
+        if(nodes.putIfAbsent(nodeId, receiver) != null) {
+            throw new IllegalStateException(nodeId + " already joined the cluster, chatwave.node-id has to be distinct on every node");
+        }
+    }
+
+    @Override
+    public void leave(String nodeId) {
+        if(nodes.remove(nodeId) == null) return;
+        for(Receiver receiver : nodes.values()) receiver.nodeLeft(nodeId);
+    }
+
+    @Override
+    public Set<String> nodes() {
+        return Set.copyOf(nodes.keySet());
+    }
+
+    @Override
+    public void send(String toNode, ClusterBatch batch) {
+        Receiver receiver = nodes.get(toNode);
+        if(receiver != null) receiver.receive(batch);
+    }
+}
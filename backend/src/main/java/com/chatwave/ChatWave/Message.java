@@ -1,22 +1,24 @@
 package com.chatwave.ChatWave;
 
 import jakarta.persistence.Entity;
-import jakarta.persistence.GeneratedValue;
-import jakarta.persistence.GenerationType;
 import jakarta.persistence.Id;
+import jakarta.persistence.Index;
+import jakarta.persistence.Table;
 
 import java.time.LocalDateTime;
-import java.util.function.Function;
 
 @Entity
+@Table(indexes = @Index(name = "idx_message_conversation_ts", columnList = "conversation_id, timestamp"))
 public class Message {
+    // assigned by MessageIdGenerator before the insert, so inserts can be batched
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
     private Long msgId;
     private String sender;
     private String recipient;
     private String msg;
     private LocalDateTime timestamp;
+    // see ConversationKey, set by ChatService when the message is saved
+    private String conversationId;
 
     public Message() {}
     public Message(String sender, String recipient, String msg) {
@@ -25,11 +27,21 @@ public class Message {
         this.msg = msg;
         timestamp = LocalDateTime.now();
     }
+    // read back from MessageArchive
+    Message(String sender, String recipient, String msg, LocalDateTime timestamp) {
+        this.sender = sender;
+        this.recipient = recipient;
+        this.msg = msg;
+        this.timestamp = timestamp;
+    }
 
     public Long getMsgId() {return this.msgId;}
+    void setMsgId(Long msgId) {this.msgId = msgId;}
 
     public String getSender() {return this.sender;}
     public String getRecipient() {return this.recipient;}
     public String getMsg() {return this.msg;}
     public LocalDateTime getTimestamp() {return this.timestamp;}
+    public String getConversationId() {return this.conversationId;}
+    void setConversationId(String conversationId) {this.conversationId = conversationId;}
 }
@@ -0,0 +1,391 @@
+package com.chatwave.ChatWave;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// The cold tier of message history : messages MessageRetention moved out of the message table, in
+// segment files under chatwave.retention.archive-dir. A segment is one archival batch, a run of ids
+// from a single day partition, named <day>_<first id>.cwa. Inside, its messages are grouped by
+// conversation and every conversation's block is deflated on its own, followed by an index of the
+// blocks and a trailer pointing at it :
+//   int MAGIC | block... | int n, n x (str conversationId, long offset, int length, int messages,
+//   oldest and newest (long epochSecond, int nano, long msgId)) | long firstId, long lastId, long indexOffset | int MAGIC
+// Only the indexes are kept in memory, a history page inflates the blocks of its conversation that
+// can hold messages before its cursor. A segment is written to a temporary file and renamed once it
+// is on disk, so a crash leaves either the whole segment or none of it.
+@Component
+public class MessageArchive {
+    static final String SUFFIX = ".cwa";
+    private static final int MAGIC = 0x43574131; // "CWA1"
+    private static final int TRAILER_LENGTH = 28;
+    // newest first, the order history pages are read in
+    private static final Comparator<Message> NEWEST_FIRST =
+            Comparator.comparing(Message::getTimestamp).thenComparing(Message::getMsgId).reversed();
+
+    private final Path directory;
+    // conversation id -> its blocks over all segments, newest first. Lists are replaced, never changed
+    private final ConcurrentHashMap<String, List<Block>> conversations = new ConcurrentHashMap<>();
+    // first id -> segment, for looking messages up by id
+    private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+    private final AtomicLong messages = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+
+    public MessageArchive(@Value("${chatwave.retention.archive-dir:archive}") String directory) {
+        this.directory = Path.of(directory);
+        try {
+            load();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Can't read the message archive in " + this.directory.toAbsolutePath(), e);
+        }
+    }
+
+    public Path getDirectory() {return this.directory;}
+    public int getSegments() {return this.segments.size();}
+    public long getMessages() {return this.messages.get();}
+    public long getBytes() {return this.bytes.get();}
+
+    public boolean hasConversation(String conversationId) {
+        return conversations.containsKey(conversationId);
+    }
+
+    // up to limit messages of the conversation older than the cursor, newest first; beforeTimestamp == null
+    // reads from the newest archived one. Blocks are read newest first until none can beat what was found.
+    public List<Message> before(String conversationId, LocalDateTime beforeTimestamp, long beforeMsgId, int limit) {
+        List<Block> blocks = conversations.get(conversationId);
+        if(blocks == null || limit <= 0) return List.of();
+        List<Message> found = new ArrayList<>();
+        Set<Long> ids = new HashSet<>();
+        for(Block block : blocks) {
+            if(beforeTimestamp != null && !isBefore(block.oldestTs, block.oldestId, beforeTimestamp, beforeMsgId)) continue;
+            if(found.size() >= limit) {
+                Message last = found.get(limit - 1);
+                if(isBefore(block.newestTs, block.newestId, last.getTimestamp(), last.getMsgId())) break;
+            }
+            for(Message message : block.read()) {
+                // a batch archived again after a crash is in two segments
+                if((beforeTimestamp == null || isBefore(message.getTimestamp(), message.getMsgId(), beforeTimestamp, beforeMsgId))
+                        && ids.add(message.getMsgId())) {
+                    found.add(message);
+                }
+            }
+            found.sort(NEWEST_FIRST);
+        }
+        return found.size() > limit ? new ArrayList<>(found.subList(0, limit)) : found;
+    }
+
+    // the archived ones among msgIds, in no particular order
+    public List<Message> findAll(Collection<Long> msgIds) {
+        Map<Segment, Set<Long>> bySegment = new LinkedHashMap<>();
+        for(Long msgId : msgIds) {
+            Map.Entry<Long, Segment> entry = segments.floorEntry(msgId);
+            if(entry != null && msgId <= entry.getValue().lastId) bySegment.computeIfAbsent(entry.getValue(), s -> new HashSet<>()).add(msgId);
+        }
+        List<Message> found = new ArrayList<>();
+        for(Map.Entry<Segment, Set<Long>> entry : bySegment.entrySet()) {
+            Set<Long> wanted = entry.getValue();
+            for(Block block : entry.getKey().blocks) {
+                if(wanted.isEmpty()) break;
+                for(Message message : block.read()) {
+                    if(wanted.remove(message.getMsgId())) found.add(message);
+                }
+            }
+        }
+        return found;
+    }
+
+    // writes the batch (ids ascending, all of the partition, all with a conversation id) as one segment,
+    // readable once this returns
+    public void append(LocalDate partition, List<Message> batch) throws IOException {
+        if(batch.isEmpty()) return;
+        Files.createDirectories(directory);
+        Map<String, List<Message>> byConversation = new TreeMap<>();
+        for(Message message : batch) byConversation.computeIfAbsent(message.getConversationId(), c -> new ArrayList<>()).add(message);
+
+        long firstId = batch.get(0).getMsgId();
+        Path file = directory.resolve(partition + "_" + firstId + SUFFIX);
+        Path tmp = directory.resolve(file.getFileName() + ".tmp");
+        Segment segment = new Segment(file, firstId, batch.get(batch.size() - 1).getMsgId());
+        ByteArrayOutputStream index = new ByteArrayOutputStream();
+        DataOutputStream indexOut = new DataOutputStream(index);
+        try(FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            long offset = write(channel, ByteBuffer.allocate(4).putInt(0, MAGIC));
+            indexOut.writeInt(byConversation.size());
+            for(Map.Entry<String, List<Message>> entry : byConversation.entrySet()) {
+                List<Message> chronological = entry.getValue();
+                chronological.sort(NEWEST_FIRST.reversed());
+                byte[] block = deflate(encode(chronological));
+                Block written = new Block(segment, offset, block.length, chronological.get(0), chronological.get(chronological.size() - 1));
+                segment.blocks.add(written);
+                writeBlockIndex(indexOut, entry.getKey(), written, chronological.size());
+                offset += write(channel, ByteBuffer.wrap(block));
+            }
+            indexOut.flush();
+            long indexOffset = offset;
+            write(channel, ByteBuffer.wrap(index.toByteArray()));
+            write(channel, ByteBuffer.allocate(TRAILER_LENGTH)
+                    .putLong(0, segment.firstId).putLong(8, segment.lastId).putLong(16, indexOffset).putInt(24, MAGIC));
+            channel.force(true);
+        }
+        Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE);
+        add(segment, byConversation.keySet(), batch.size(), Files.size(file));
+    }
+
+    private void load() throws IOException {
+        if(!Files.isDirectory(directory)) return;
+        try(DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for(Path file : files) {
+                String name = file.getFileName().toString();
+                // a segment that was being written when the process stopped, its rows are still in the table
+                if(name.endsWith(SUFFIX + ".tmp")) Files.delete(file);
+                else if(name.endsWith(SUFFIX)) readIndex(file);
+            }
+        }
+    }
+
+    private void readIndex(Path file) throws IOException {
+        try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            ByteBuffer trailer = size < 4 + TRAILER_LENGTH ? null : read(channel, size - TRAILER_LENGTH, TRAILER_LENGTH);
+            if(trailer == null || trailer.getInt(24) != MAGIC) throw new IOException("Not a message archive segment : " + file);
+            Segment segment = new Segment(file, trailer.getLong(0), trailer.getLong(8));
+            long indexOffset = trailer.getLong(16);
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+                    read(channel, indexOffset, (int) (size - TRAILER_LENGTH - indexOffset)).array()));
+            int count = in.readInt();
+            List<String> conversationIds = new ArrayList<>(count);
+            int total = 0;
+            for(int i = 0; i < count; i++) {
+                conversationIds.add(in.readUTF());
+                long offset = in.readLong();
+                int length = in.readInt();
+                int messages = in.readInt();
+                LocalDateTime oldestTs = readTimestamp(in);
+                long oldestId = in.readLong();
+                LocalDateTime newestTs = readTimestamp(in);
+                long newestId = in.readLong();
+                total += messages;
+                segment.blocks.add(new Block(segment, offset, length, oldestTs, oldestId, newestTs, newestId));
+            }
+            add(segment, conversationIds, total, size);
+        }
+    }
+
+    // blocks of a segment are in the order of conversationIds
+    private void add(Segment segment, Collection<String> conversationIds, int messageCount, long fileSize) {
+        int i = 0;
+        for(String conversationId : conversationIds) {
+            Block block = segment.blocks.get(i++);
+            conversations.compute(conversationId, (id, blocks) -> {
+                List<Block> updated = blocks == null ? new ArrayList<>(1) : new ArrayList<>(blocks);
+                updated.add(block);
+                updated.sort(Block.NEWEST_FIRST);
+                return List.copyOf(updated);
+            });
+        }
+        segments.put(segment.firstId, segment);
+        messages.addAndGet(messageCount);
+        bytes.addAndGet(fileSize);
+    }
+
+    private static void writeBlockIndex(DataOutputStream out, String conversationId, Block block, int messages) throws IOException {
+        out.writeUTF(conversationId);
+        out.writeLong(block.offset);
+        out.writeInt(block.length);
+        out.writeInt(messages);
+        writeTimestamp(out, block.oldestTs);
+        out.writeLong(block.oldestId);
+        writeTimestamp(out, block.newestTs);
+        out.writeLong(block.newestId);
+    }
+
+    static byte[] encode(List<Message> messages) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * messages.size());
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(messages.size());
+        for(Message message : messages) {
+            out.writeLong(message.getMsgId());
+            writeTimestamp(out, message.getTimestamp());
+            writeString(out, message.getSender());
+            writeString(out, message.getRecipient());
+            writeString(out, message.getMsg());
+            writeString(out, message.getConversationId());
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    static List<Message> decode(byte[] encoded) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(encoded));
+        int count = in.readInt();
+        List<Message> messages = new ArrayList<>(count);
+        for(int i = 0; i < count; i++) {
+            long msgId = in.readLong();
+            LocalDateTime timestamp = readTimestamp(in);
+            Message message = new Message(readString(in), readString(in), readString(in), timestamp);
+            message.setMsgId(msgId);
+            message.setConversationId(readString(in));
+            messages.add(message);
+        }
+        return messages;
+    }
+
+    private static void writeTimestamp(DataOutputStream out, LocalDateTime timestamp) throws IOException {
+        out.writeLong(timestamp.toEpochSecond(ZoneOffset.UTC));
+        out.writeInt(timestamp.getNano());
+    }
+
+    private static LocalDateTime readTimestamp(DataInputStream in) throws IOException {
+        return LocalDateTime.ofEpochSecond(in.readLong(), in.readInt(), ZoneOffset.UTC);
+    }
+
+    // -1 for null
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if(s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(utf8.length);
+        out.write(utf8);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if(length < 0) return null;
+        return new String(in.readNBytes(length), StandardCharsets.UTF_8);
+    }
+
+    private static byte[] deflate(byte[] raw) {
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+        try {
+            deflater.setInput(raw);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, raw.length / 3));
+            byte[] buffer = new byte[8192];
+            while(!deflater.finished()) out.write(buffer, 0, deflater.deflate(buffer));
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] compressed) throws IOException {
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(compressed);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(compressed.length * 3);
+            byte[] buffer = new byte[8192];
+            while(!inflater.finished()) {
+                int n = inflater.inflate(buffer);
+                if(n == 0 && (inflater.needsInput() || inflater.needsDictionary())) throw new IOException("Truncated archive block");
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt archive block", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static long write(FileChannel channel, ByteBuffer buffer) throws IOException {
+        int length = buffer.remaining();
+        while(buffer.hasRemaining()) channel.write(buffer);
+        return length;
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(Math.max(0, length));
+        while(buffer.hasRemaining()) {
+            if(channel.read(buffer, position + buffer.position()) < 0) throw new IOException("Truncated archive segment");
+        }
+        return buffer;
+    }
+
+    private static boolean isBefore(LocalDateTime timestamp, long msgId, LocalDateTime beforeTimestamp, long beforeMsgId) {
+        int order = timestamp.compareTo(beforeTimestamp);
+        return order < 0 || (order == 0 && msgId < beforeMsgId);
+    }
+
+    private static final class Segment {
+        private final Path file;
+        private final long firstId;
+        private final long lastId;
+        private final List<Block> blocks = new ArrayList<>();
+
+        private Segment(Path file, long firstId, long lastId) {
+            this.file = file;
+            this.firstId = firstId;
+            this.lastId = lastId;
+        }
+    }
+
+    // one conversation's messages within one segment
+    private static final class Block {
+        private static final Comparator<Block> NEWEST_FIRST = Comparator.comparing((Block b) -> b.newestTs)
+                .thenComparingLong(b -> b.newestId).reversed();
+
+        private final Segment segment;
+        private final long offset;
+        private final int length;
+        private final LocalDateTime oldestTs;
+        private final long oldestId;
+        private final LocalDateTime newestTs;
+        private final long newestId;
+
+        private Block(Segment segment, long offset, int length, Message oldest, Message newest) {
+            this(segment, offset, length, oldest.getTimestamp(), oldest.getMsgId(), newest.getTimestamp(), newest.getMsgId());
+        }
+
+        private Block(Segment segment, long offset, int length, LocalDateTime oldestTs, long oldestId, LocalDateTime newestTs, long newestId) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.oldestTs = oldestTs;
+            this.oldestId = oldestId;
+            this.newestTs = newestTs;
+            this.newestId = newestId;
+        }
+
+        private List<Message> read() {
+            try(FileChannel channel = FileChannel.open(segment.file, StandardOpenOption.READ)) {
+                return decode(inflate(MessageArchive.read(channel, offset, length).array()));
+            } catch (IOException e) {
+                throw new UncheckedIOException("Can't read " + segment.file, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package com.chatwave.ChatWave;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+// Message ids are handed out by the application, so a message can be acknowledged and broadcast
+// with its final id before the write-behind flusher has inserted it.
+// Layout : 41 bits of milliseconds since EPOCH | 4 bits node id | 8 bits sequence within the millisecond.
+// 53 bits in total keeps the ids exact as JSON numbers in the browser.
+// Instances that write to the same database need distinct chatwave.node-id, a single instance can leave it
+// unset (node 0). With chatwave.cluster.enabled it has to be set, ClusterFanout names its node after it.
+@Component
+public class MessageIdGenerator {
+    private static final long EPOCH = 1704067200000L; // 2024-01-01T00:00:00Z
+    private static final int NODE_BITS = 4;
+    private static final int SEQUENCE_BITS = 8;
+    private static final long MAX_SEQUENCE = (1L << SEQUENCE_BITS) - 1;
+
+    private final long nodeId;
+    private final boolean nodeIdSet;
+    private long lastMillis = -1;
+    private long sequence;
+
+    public MessageIdGenerator(@Value("${chatwave.node-id:#{null}}") Integer nodeId) {
+        if(nodeId != null && (nodeId < 0 || nodeId >= (1 << NODE_BITS))) {
+            throw new IllegalArgumentException("chatwave.node-id must be between 0 and " + ((1 << NODE_BITS) - 1));
+        }
+        this.nodeId = nodeId == null ? 0 : nodeId;
+        this.nodeIdSet = nodeId != null;
+    }
+
+    public int getNodeId() {return (int) this.nodeId;}
+    public boolean isNodeIdSet() {return this.nodeIdSet;}
+
+    // the lowest id handed out at or after epochMillis, ids below it are older (what time partitions are cut on)
+    static long firstIdAt(long epochMillis) {
+        return Math.max(0, epochMillis - EPOCH) << (NODE_BITS + SEQUENCE_BITS);
+    }
+
+    // the millisecond an id was handed out in
+    static long epochMillisOf(long id) {
+        return (id >>> (NODE_BITS + SEQUENCE_BITS)) + EPOCH;
+    }
+
+    public synchronized long nextId() {
+        // never step back, neither on a clock adjustment nor after borrowing a millisecond below
+        long now = Math.max(System.currentTimeMillis(), lastMillis);
+        if(now == lastMillis) {
+            sequence = (sequence + 1) & MAX_SEQUENCE;
+            if(sequence == 0) { now = lastMillis + 1; }
+        }
+        else { sequence = 0; }
+        lastMillis = now;
+        return ((now - EPOCH) << (NODE_BITS + SEQUENCE_BITS)) | (nodeId << SEQUENCE_BITS) | sequence;
+    }
+}
@@ -0,0 +1,37 @@
+package com.chatwave.ChatWave;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// One page of history in chronological order. While hasMore is true, beforeTimestamp/beforeMsgId
+// point at the oldest message of this page and fetch the page before it.
+public class MessagePage {
+    private final List<Message> messages;
+    private final boolean hasMore;
+
+    public MessagePage(List<Message> messages, boolean hasMore) {
+        this.messages = messages;
+        this.hasMore = hasMore;
+    }
+
+    // newestFirst holds up to limit + 1 rows, the extra one only tells whether there is more
+    static MessagePage of(List<Message> newestFirst, int limit) {
+        boolean hasMore = newestFirst.size() > limit;
+        List<Message> messages = new ArrayList<>(hasMore ? newestFirst.subList(0, limit) : newestFirst);
+        Collections.reverse(messages);
+        return new MessagePage(messages, hasMore);
+    }
+
+    public List<Message> getMessages() {return this.messages;}
+    public boolean isHasMore() {return this.hasMore;}
+
+    public LocalDateTime getBeforeTimestamp() {
+        return hasMore && !messages.isEmpty() ? messages.get(0).getTimestamp() : null;
+    }
+
+    public Long getBeforeMsgId() {
+        return hasMore && !messages.isEmpty() ? messages.get(0).getMsgId() : null;
+    }
+}
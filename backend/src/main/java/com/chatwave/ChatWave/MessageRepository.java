@@ -1,10 +1,29 @@
 package com.chatwave.ChatWave;
 
+import org.springframework.data.domain.Limit;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 
+import java.time.LocalDateTime;
 import java.util.List;
 
+// History is read newest first in keyset pages over (conversationId, timestamp), (timestamp, msgId)
+// of the oldest message of a page is the cursor for the next one.
 public interface MessageRepository extends JpaRepository<Message, Long> {
-    List<Message> findBySenderAndRecipient(String sender, String recipient);
-    List<Message> findByRecipient(String recipient);
+    @Query("select m from Message m where m.conversationId = :conversation order by m.timestamp desc, m.msgId desc")
+    List<Message> findLatest(@Param("conversation") String conversationId, Limit limit);
+
+    @Query("select m from Message m where m.conversationId = :conversation " +
+            "and (m.timestamp < :ts or (m.timestamp = :ts and m.msgId < :id)) " +
+            "order by m.timestamp desc, m.msgId desc")
+    List<Message> findBefore(@Param("conversation") String conversationId,
+                             @Param("ts") LocalDateTime beforeTimestamp, @Param("id") Long beforeMsgId, Limit limit);
+
+    // keyset pages in id order, what MessageSearchIndex rebuilds from
+    @Query("select m from Message m where m.msgId > :after and m.msgId < :before order by m.msgId")
+    List<Message> findIdRange(@Param("after") Long afterMsgId, @Param("before") Long beforeMsgId, Limit limit);
+
+    @Query("select m from Message m where m.conversationId is null order by m.msgId")
+    List<Message> findWithoutConversation(Limit limit);
 }
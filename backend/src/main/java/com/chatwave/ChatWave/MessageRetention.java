@@ -0,0 +1,179 @@
+package com.chatwave.ChatWave;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Limit;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Keeps the message table to the last hot-days days. Messages are partitioned by the UTC day their id
+// was handed out in (ids start with the millisecond, see MessageIdGenerator), which makes a partition
+// one contiguous range of the primary key InnoDB clusters the table on. Partitions that are entirely
+// older than the hot window are moved to MessageArchive, oldest first, one batch at a time : batch-size
+// rows are read in id order, written as one archive segment and deleted in one short transaction. A
+// batch runs every batch-pause-ms while there is a backlog, so the write-behind's inserts never wait for more
+// than one batch; once caught up it looks again after interval-ms. Batches run on a thread of their own,
+// not on the scheduler the flushes of ClusterFanout, ConversationSignals and presence share.
+// Rows without a conversation id (not backfilled yet) stay in the table, and so do rows whose timestamp is
+// still in the hot window : rows saved before ids were handed out by MessageIdGenerator have small
+// IDENTITY ids that decode to its first days, they are only archived once their timestamp is old enough.
+// Archived segments are read back by every instance, enabled needs an absolute archive-dir they all share.
+@Component
+public class MessageRetention implements SmartLifecycle {
+    private static final Logger log = LoggerFactory.getLogger(MessageRetention.class);
+
+    private final MessageRepository messageRepository;
+    private final MessageArchive messageArchive;
+    private final boolean enabled;
+    private final int hotDays;
+    private final int batchSize;
+    private final long intervalNanos;
+    private final long batchPauseMs;
+    private final long initialDelayMs;
+    private final Timer batchTimer;
+    private final Counter archived;
+    // everything below this id that is still in the table has no conversation id, reset by a restart
+    private long archivedUpTo = -1;
+    // nothing to archive until then
+    private long idleUntil = System.nanoTime();
+    private long movedSinceIdle;
+    private volatile ScheduledExecutorService archiver;
+
+    public MessageRetention(MessageRepository messageRepository, MessageArchive messageArchive, MeterRegistry meterRegistry,
+                            @Value("${chatwave.retention.enabled:false}") boolean enabled,
+                            @Value("${chatwave.retention.hot-days:30}") int hotDays,
+                            @Value("${chatwave.retention.batch-size:1000}") int batchSize,
+                            @Value("${chatwave.retention.interval-ms:60000}") long intervalMs,
+                            @Value("${chatwave.retention.batch-pause-ms:50}") long batchPauseMs,
+                            @Value("${chatwave.retention.initial-delay-ms:60000}") long initialDelayMs) {
+        if(enabled && !messageArchive.getDirectory().isAbsolute()) {
+            throw new IllegalStateException("chatwave.retention.enabled needs an absolute chatwave.retention.archive-dir shared by all instances, not "
+                    + messageArchive.getDirectory());
+        }
+        this.messageRepository = messageRepository;
+        this.messageArchive = messageArchive;
+        this.enabled = enabled;
+        this.hotDays = Math.max(1, hotDays);
+        this.batchSize = Math.max(1, batchSize);
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, intervalMs));
+        this.batchPauseMs = Math.max(1, batchPauseMs);
+        this.initialDelayMs = Math.max(0, initialDelayMs);
+        this.batchTimer = Timer.builder("chatwave.retention.batch")
+                .description("Archiving one batch of messages, segment write and delete")
+                .register(meterRegistry);
+        this.archived = Counter.builder("chatwave.retention.archived")
+                .description("Messages moved from the message table to the archive")
+                .register(meterRegistry);
+    }
+
+    // the partition a message id belongs to
+    static LocalDate partitionOf(long msgId) {
+        return LocalDate.ofInstant(Instant.ofEpochMilli(MessageIdGenerator.epochMillisOf(msgId)), ZoneOffset.UTC);
+    }
+
+    static long firstIdOf(LocalDate partition) {
+        return MessageIdGenerator.firstIdAt(partition.atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli());
+    }
+
+    // Message.timestamp is local time of the instance that saved it
+    static LocalDateTime startOf(LocalDate partition) {
+        return LocalDateTime.ofInstant(partition.atStartOfDay(ZoneOffset.UTC).toInstant(), ZoneId.systemDefault());
+    }
+
+    // the oldest partition that is still hot on that day, everything below its first id gets archived
+    LocalDate oldestHotPartition(LocalDate today) {
+        return today.minusDays(hotDays - 1);
+    }
+
+    // on the archiver thread, every batch-pause-ms
+    void archiveNext() {
+        if(!enabled || System.nanoTime() - idleUntil < 0) return;
+        try {
+            LocalDate oldestHot = oldestHotPartition(LocalDate.now(ZoneOffset.UTC));
+            int moved = archiveBatch(firstIdOf(oldestHot), startOf(oldestHot));
+            if(moved >= 0) {
+                movedSinceIdle += moved;
+                return;
+            }
+            if(movedSinceIdle > 0) log.info("Archived {} messages older than {}", movedSinceIdle, oldestHot);
+        } catch (IOException | RuntimeException e) {
+            log.warn("Archiving messages failed, retried in {} ms", TimeUnit.NANOSECONDS.toMillis(intervalNanos), e);
+        }
+        movedSinceIdle = 0;
+        idleUntil = System.nanoTime() + intervalNanos;
+    }
+
+    // one segment's worth of the oldest partition below cutoff, rows from cutoffTime on are left where they are.
+    // The number of rows moved or -1 when there is nothing left
+    int archiveBatch(long cutoff, LocalDateTime cutoffTime) throws IOException {
+        List<Message> rows = messageRepository.findIdRange(archivedUpTo, cutoff, Limit.of(batchSize));
+        if(rows.isEmpty()) return -1;
+        long start = System.nanoTime();
+        // a segment never spans two partitions
+        LocalDate partition = partitionOf(rows.get(0).getMsgId());
+        long partitionEnd = firstIdOf(partition.plusDays(1));
+        List<Message> batch = new ArrayList<>(rows.size());
+        List<Long> ids = new ArrayList<>(rows.size());
+        long last = archivedUpTo;
+        for(Message row : rows) {
+            if(row.getMsgId() >= partitionEnd) break;
+            last = row.getMsgId();
+            if(row.getConversationId() == null || row.getTimestamp() == null || !row.getTimestamp().isBefore(cutoffTime)) continue;
+            batch.add(row);
+            ids.add(row.getMsgId());
+        }
+        // on disk before the rows go, a crash in between archives them a second time (reads skip duplicates)
+        messageArchive.append(partition, batch);
+        if(!ids.isEmpty()) messageRepository.deleteAllByIdInBatch(ids);
+        archivedUpTo = last;
+        archived.increment(batch.size());
+        batchTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        return batch.size();
+    }
+
+    @Override
+    public void start() {
+        if(!enabled) return;
+        archiver = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "message-retention");
+            t.setDaemon(true);
+            return t;
+        });
+        archiver.scheduleWithFixedDelay(this::archiveNext, initialDelayMs, batchPauseMs, TimeUnit.MILLISECONDS);
+    }
+
+    // lets a running batch finish, its rows are either archived and deleted or still in the table
+    @Override
+    public void stop() {
+        ScheduledExecutorService archiver = this.archiver;
+        if(archiver == null) return;
+        archiver.shutdown();
+        try {
+            if(!archiver.awaitTermination(30, TimeUnit.SECONDS)) log.warn("An archiving batch was still running on shutdown");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        this.archiver = null;
+    }
+
+    @Override
+    public boolean isRunning() {
+        return archiver != null;
+    }
+}
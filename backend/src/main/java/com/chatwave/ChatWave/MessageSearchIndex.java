@@ -0,0 +1,306 @@
+package com.chatwave.ChatWave;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.Limit;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// In-memory inverted index over Message.msg, one per conversation so a search only ever looks at the
+// conversations the caller is in. Messages are indexed by one background thread, in the batches
+// MessageWriteBehind commits, so the send path never waits for it. On startup the messages already in
+// the database are read back in id order, up to the first id this node hands out after starting;
+// everything from there on comes from the write-behind batches, so nothing is indexed twice.
+// Every query term has to be in a message, matches are ranked by BM25 and then newest first.
+// Only this node's writes are indexed live, with several instances the others' show up after a restart.
+@Component
+public class MessageSearchIndex implements SmartLifecycle {
+    private static final Logger log = LoggerFactory.getLogger(MessageSearchIndex.class);
+    private static final int MAX_TERM_LENGTH = 64;
+    private static final int MAX_QUERY_TERMS = 8;
+    // BM25 term frequency saturation and length normalization
+    private static final double K1 = 1.2;
+    private static final double B = 0.75;
+
+    private final MessageRepository messageRepository;
+    private final MessageWriteBehind messageWriteBehind;
+    private final MessageIdGenerator messageIdGenerator;
+    private final int rebuildBatchSize;
+    private final ConcurrentHashMap<String, ConversationIndex> conversations = new ConcurrentHashMap<>();
+    // the direct conversations each user is in, groups are looked up in GroupRepository
+    private final ConcurrentHashMap<String, Set<String>> directConversations = new ConcurrentHashMap<>();
+    // messages containing each term, over all conversations, for the idf
+    private final ConcurrentHashMap<String, AtomicInteger> documentFrequency = new ConcurrentHashMap<>();
+    private volatile long documents;
+    private volatile long totalLength;
+    private final AtomicInteger pendingBatches = new AtomicInteger();
+    private ExecutorService indexer;
+    // ids below are read from the database by the rebuild, the rest arrive from MessageWriteBehind
+    private volatile long rebuildBefore;
+    private volatile boolean rebuilt;
+
+    public MessageSearchIndex(MessageRepository messageRepository, MessageWriteBehind messageWriteBehind,
+                              MessageIdGenerator messageIdGenerator,
+                              @Value("${chatwave.search.rebuild-batch-size:1000}") int rebuildBatchSize) {
+        this.messageRepository = messageRepository;
+        this.messageWriteBehind = messageWriteBehind;
+        this.messageIdGenerator = messageIdGenerator;
+        this.rebuildBatchSize = Math.max(1, rebuildBatchSize);
+    }
+
+    // the ids of one page of matches, best first, and how many there are in total
+    public static class Hits {
+        private final List<Long> msgIds;
+        private final int total;
+
+        public Hits(List<Long> msgIds, int total) {
+            this.msgIds = msgIds;
+            this.total = total;
+        }
+
+        public List<Long> getMsgIds() {return this.msgIds;}
+        public int getTotal() {return this.total;}
+    }
+
+    public Hits search(Collection<String> conversationIds, String query, int page, int size) {
+        List<String> terms = new ArrayList<>(new LinkedHashSet<>(tokenize(query)));
+        if(terms.isEmpty() || page < 0 || size <= 0) return new Hits(List.of(), 0);
+        if(terms.size() > MAX_QUERY_TERMS) terms = terms.subList(0, MAX_QUERY_TERMS);
+
+        double[] idf = new double[terms.size()];
+        long n = Math.max(1, documents);
+        for(int t = 0; t < idf.length; t++) {
+            AtomicInteger df = documentFrequency.get(terms.get(t));
+            if(df == null) return new Hits(List.of(), 0);
+            idf[t] = Math.log(1 + (n - df.get() + 0.5) / (df.get() + 0.5));
+        }
+        double averageLength = Math.max(1, (double) totalLength / n);
+
+        // the best (page + 1) * size matches, the worst of them on top
+        int wanted = (int) Math.min(Integer.MAX_VALUE, (page + 1L) * size);
+        PriorityQueue<Match> best = new PriorityQueue<>(Math.max(1, Math.min(wanted, 1024)));
+        int total = 0;
+        for(String conversationId : conversationIds) {
+            ConversationIndex conversation = conversations.get(conversationId);
+            if(conversation != null) total += conversation.match(terms, idf, averageLength, best, wanted);
+        }
+        List<Match> ranked = new ArrayList<>(best);
+        ranked.sort(null);
+        List<Long> ids = new ArrayList<>(size);
+        for(long i = ranked.size() - 1 - (long) page * size; i >= 0 && ids.size() < size; i--) ids.add(ranked.get((int) i).msgId);
+        return new Hits(ids, total);
+    }
+
+    // the direct conversations username has written or received a message in
+    public Set<String> directConversationsOf(String username) {
+        Set<String> ids = directConversations.get(username);
+        return ids == null ? Set.of() : Set.copyOf(ids);
+    }
+
+    public long getDocuments() {return this.documents;}
+    public int getPendingBatches() {return this.pendingBatches.get();}
+    public boolean isRebuilt() {return this.rebuilt;}
+
+    // lower case runs of letters and digits
+    static List<String> tokenize(String text) {
+        List<String> terms = new ArrayList<>();
+        if(text == null) return terms;
+        int start = -1;
+        for(int i = 0; i <= text.length(); i++) {
+            boolean inTerm = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if(inTerm && start < 0) start = i;
+            if(!inTerm && start >= 0) {
+                if(i - start <= MAX_TERM_LENGTH) terms.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+        return terms;
+    }
+
+    private void submit(List<Message> batch) {
+        // stopped, or not started yet
+        if(!isRunning()) return;
+        pendingBatches.incrementAndGet();
+        indexer.execute(() -> {
+            try {
+                index(batch);
+            } finally {
+                pendingBatches.decrementAndGet();
+            }
+        });
+    }
+
+    // indexer thread only
+    void index(List<Message> batch) {
+        for(Message message : batch) {
+            if(message.getConversationId() == null || message.getMsgId() == null) continue;
+            List<String> terms = tokenize(message.getMsg());
+            Map<String, Integer> frequencies = new HashMap<>();
+            for(String term : terms) frequencies.merge(term, 1, Integer::sum);
+
+            ConversationIndex conversation = conversations.computeIfAbsent(message.getConversationId(), id -> new ConversationIndex());
+            conversation.add(message.getMsgId(), terms.size(), frequencies);
+            for(String term : frequencies.keySet()) documentFrequency.computeIfAbsent(term, t -> new AtomicInteger()).incrementAndGet();
+            totalLength += terms.size();
+            documents++;
+            if(message.getConversationId().startsWith("dm:")) {
+                directConversations.computeIfAbsent(message.getSender(), u -> ConcurrentHashMap.newKeySet()).add(message.getConversationId());
+                directConversations.computeIfAbsent(message.getRecipient(), u -> ConcurrentHashMap.newKeySet()).add(message.getConversationId());
+            }
+        }
+    }
+
+    // after the runners, so rows ConversationKeyBackfill fills in are indexed under their conversation
+    @EventListener(ApplicationReadyEvent.class)
+    public void rebuild() {
+        indexer.execute(() -> {
+            long started = System.nanoTime();
+            long after = Long.MIN_VALUE, count = 0;
+            List<Message> batch;
+            do {
+                batch = messageRepository.findIdRange(after, rebuildBefore, Limit.of(rebuildBatchSize));
+                index(batch);
+                count += batch.size();
+                if(!batch.isEmpty()) after = batch.get(batch.size() - 1).getMsgId();
+            } while(batch.size() == rebuildBatchSize);
+            rebuilt = true;
+            log.info("Search index rebuilt from {} messages in {} ms", count, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+        });
+    }
+
+    @Override
+    public void start() {
+        // nothing can have been saved yet, the STOMP broker starts in a later phase
+        rebuildBefore = messageIdGenerator.nextId();
+        indexer = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "message-search-indexer");
+            t.setDaemon(true);
+            return t;
+        });
+        messageWriteBehind.addListener(this::submit);
+    }
+
+    @Override
+    public void stop() {
+        indexer.shutdownNow();
+    }
+
+    @Override
+    public boolean isRunning() {
+        return indexer != null && !indexer.isShutdown();
+    }
+
+    // before MessageWriteBehind (phase 0) starts, which hands us its batches, and stopped after it
+    @Override
+    public int getPhase() {
+        return -1;
+    }
+
+    private static final class Match implements Comparable<Match> {
+        private final double score;
+        private final long msgId;
+
+        private Match(double score, long msgId) {
+            this.score = score;
+            this.msgId = msgId;
+        }
+
+        @Override
+        public int compareTo(Match other) {
+            int byScore = Double.compare(score, other.score);
+            return byScore != 0 ? byScore : Long.compare(msgId, other.msgId);
+        }
+    }
+
+    // postings of one conversation. Documents are numbered in the order they were indexed, so every
+    // posting list is sorted by document number. Written by the indexer thread, read by searches.
+    private static final class ConversationIndex {
+        private long[] msgIds = new long[8];
+        private int[] lengths = new int[8];
+        private int size;
+        private final Map<String, Postings> terms = new HashMap<>();
+
+        synchronized void add(long msgId, int length, Map<String, Integer> frequencies) {
+            if(size == msgIds.length) {
+                msgIds = Arrays.copyOf(msgIds, size * 2);
+                lengths = Arrays.copyOf(lengths, size * 2);
+            }
+            msgIds[size] = msgId;
+            lengths[size] = length;
+            for(Map.Entry<String, Integer> entry : frequencies.entrySet()) {
+                terms.computeIfAbsent(entry.getKey(), t -> new Postings()).add(size, entry.getValue());
+            }
+            size++;
+        }
+
+        // offers every message containing all the terms to best, returns how many there were
+        synchronized int match(List<String> queryTerms, double[] idf, double averageLength, PriorityQueue<Match> best, int wanted) {
+            Postings[] postings = new Postings[queryTerms.size()];
+            int shortest = 0;
+            for(int t = 0; t < postings.length; t++) {
+                postings[t] = terms.get(queryTerms.get(t));
+                if(postings[t] == null) return 0;
+                if(postings[t].size < postings[shortest].size) shortest = t;
+            }
+            int matches = 0;
+            int[] found = new int[postings.length];
+            next:
+            for(int i = 0; i < postings[shortest].size; i++) {
+                int doc = postings[shortest].docs[i];
+                for(int t = 0; t < postings.length; t++) {
+                    found[t] = t == shortest ? i : Arrays.binarySearch(postings[t].docs, 0, postings[t].size, doc);
+                    if(found[t] < 0) continue next;
+                }
+                double score = 0;
+                double norm = K1 * (1 - B + B * lengths[doc] / averageLength);
+                for(int t = 0; t < postings.length; t++) {
+                    int tf = postings[t].frequencies[found[t]];
+                    score += idf[t] * tf * (K1 + 1) / (tf + norm);
+                }
+                matches++;
+                Match match = new Match(score, msgIds[doc]);
+                if(best.size() < wanted) best.add(match);
+                else if(match.compareTo(best.peek()) > 0) {
+                    best.poll();
+                    best.add(match);
+                }
+            }
+            return matches;
+        }
+    }
+
+    private static final class Postings {
+        private int[] docs = new int[4];
+        private int[] frequencies = new int[4];
+        private int size;
+
+        void add(int doc, int frequency) {
+            if(size == docs.length) {
+                docs = Arrays.copyOf(docs, size * 2);
+                frequencies = Arrays.copyOf(frequencies, size * 2);
+            }
+            docs[size] = doc;
+            frequencies[size] = frequency;
+            size++;
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package com.chatwave.ChatWave;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+// Persists chat messages off the STOMP inbound threads. Messages are queued and inserted by one
+// flusher thread in JDBC batches, once batchSize messages are waiting or flushIntervalMs after the
+// first one of the batch arrived. SYNC durability inserts on the caller's thread instead.
+@Component
+public class MessageWriteBehind implements SmartLifecycle {
+    enum Durability { WRITE_BEHIND, SYNC }
+
+    private static final Logger log = LoggerFactory.getLogger(MessageWriteBehind.class);
+    private static final int MAX_ATTEMPTS = 3;
+
+    @PersistenceContext
+    private EntityManager entityManager;
+    private final TransactionTemplate transactionTemplate;
+    private final Durability durability;
+    private final int batchSize;
+    private final long flushIntervalMs;
+    private final BlockingQueue<Message> queue;
+    // one insert transaction, a batch from the flusher or a single SYNC message
+    private final Timer persistTimer;
+    // told every batch once it is committed, on the thread that inserted it
+    private final List<Consumer<List<Message>>> listeners = new CopyOnWriteArrayList<>();
+    private volatile boolean running;
+    private Thread flusher;
+
+    public MessageWriteBehind(PlatformTransactionManager transactionManager,
+                              @Value("${chatwave.persistence.durability:WRITE_BEHIND}") Durability durability,
+                              @Value("${chatwave.persistence.batch-size:100}") int batchSize,
+                              @Value("${chatwave.persistence.flush-interval-ms:50}") long flushIntervalMs,
+                              @Value("${chatwave.persistence.queue-capacity:10000}") int queueCapacity,
+                              MeterRegistry meterRegistry) {
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.durability = durability;
+        this.batchSize = batchSize;
+        this.flushIntervalMs = flushIntervalMs;
+        this.queue = new LinkedBlockingQueue<>(queueCapacity);
+        this.persistTimer = Timer.builder("chatwave.persistence.flush")
+                .description("Inserting a batch of messages, including the commit")
+                .publishPercentiles(0.5, 0.99)
+                .register(meterRegistry);
+    }
+
+    public Message save(Message message) {
+        if(durability == Durability.SYNC || !running) {
+            persist(List.of(message));
+            return message;
+        }
+        try {
+            // a full queue means the database can't keep up, push back on the sender
+            queue.put(message);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            persist(List.of(message));
+        }
+        return message;
+    }
+
+    public void addListener(Consumer<List<Message>> listener) {
+        listeners.add(listener);
+    }
+
+    public int pending() {
+        return queue.size();
+    }
+
+    private void persist(List<Message> batch) {
+        persistTimer.record(() -> transactionTemplate.executeWithoutResult(status -> {
+            for(Message message : batch) entityManager.persist(message);
+        }));
+        if(listeners.isEmpty()) return;
+        List<Message> committed = List.copyOf(batch);
+        for(Consumer<List<Message>> listener : listeners) {
+            // the batch is committed, a failing listener must not make flushWithRetry insert it again
+            try {
+                listener.accept(committed);
+            } catch (RuntimeException e) {
+                log.warn("Listener failed on {} committed messages", committed.size(), e);
+            }
+        }
+    }
+
+    private void flushLoop() {
+        List<Message> batch = new ArrayList<>(batchSize);
+        while(running || !queue.isEmpty()) {
+            try {
+                Message first = queue.poll(flushIntervalMs, TimeUnit.MILLISECONDS);
+                if(first == null) continue;
+                batch.add(first);
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(flushIntervalMs);
+                while(batch.size() < batchSize) {
+                    if(queue.drainTo(batch, batchSize - batch.size()) > 0) continue;
+                    long remaining = deadline - System.nanoTime();
+                    if(remaining <= 0 || !running) break;
+                    Message next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if(next == null) break;
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                running = false;
+            }
+            if(!batch.isEmpty()) flushWithRetry(batch);
+            batch.clear();
+        }
+    }
+
+    private void flushWithRetry(List<Message> batch) {
+        for(int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+            try {
+                persist(batch);
+                return;
+            } catch (RuntimeException e) {
+                log.warn("Persisting {} messages failed (attempt {}/{})", batch.size(), attempt, MAX_ATTEMPTS, e);
+                try {
+                    Thread.sleep(200L * attempt);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+        log.error("Dropping {} messages after {} failed attempts, first msgId {}", batch.size(), MAX_ATTEMPTS, batch.get(0).getMsgId());
+    }
+
+    @Override
+    public void start() {
+        running = true;
+        if(durability == Durability.SYNC) { return; }
+        flusher = new Thread(this::flushLoop, "message-write-behind");
+        flusher.start();
+    }
+
+    // phase 0 stops after the web server and the STOMP broker, so nothing is queued anymore
+    // while the remaining messages are flushed, and before the DataSource is closed
+    @Override
+    public void stop() {
+        // the flusher notices within flushIntervalMs, drains the queue and exits
+        running = false;
+        if(flusher == null) return;
+        try {
+            flusher.join(TimeUnit.SECONDS.toMillis(30));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if(!queue.isEmpty()) log.error("{} messages were not persisted on shutdown", queue.size());
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    @Override
+    public int getPhase() {
+        return 0;
+    }
+}
@@ -0,0 +1,76 @@
+package com.chatwave.ChatWave;
+
+import jakarta.annotation.PostConstruct;
+import org.springframework.messaging.simp.SimpMessageSendingOperations;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Publishes presence as versioned deltas on /topic/presence. Changes are collected between
+// flushes and only the net change per user goes out, so a login storm costs one delta per interval
+// and someone who joins and leaves again within it costs nothing.
+@Component
+public class PresenceBroadcaster implements PresenceListener {
+    static final String PRESENCE_TOPIC = "/topic/presence";
+
+    private final SimpMessageSendingOperations messagingTemplate;
+    private final PresenceRegistry presenceRegistry;
+    // latest state per user since the last flush, guarded by this
+    private Map<String, Boolean> pending = new HashMap<>();
+    // what subscribers have been told so far and its version, guarded by published
+    private final Set<String> published = new HashSet<>();
+    private long version;
+    private PresenceSnapshot snapshot = new PresenceSnapshot(0, Set.of());
+
+    public PresenceBroadcaster(SimpMessageSendingOperations messagingTemplate, PresenceRegistry presenceRegistry) {
+        this.messagingTemplate = messagingTemplate;
+        this.presenceRegistry = presenceRegistry;
+    }
+
+    @PostConstruct
+    void register() {
+        presenceRegistry.addListener(this);
+    }
+
+    @Override
+    public synchronized void presenceChanged(String username, boolean online) {
+        pending.put(username, online);
+    }
+
+    // consistent with the deltas, version n is the state right after delta n was published
+    // copied only when someone asks and something changed since the last copy
+    public PresenceSnapshot snapshot() {
+        synchronized (published) {
+            if(snapshot.getVersion() != version) snapshot = new PresenceSnapshot(version, Set.copyOf(published));
+            return snapshot;
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${chatwave.presence.delta-interval-ms:250}")
+    public void flush() {
+        Map<String, Boolean> changes;
+        synchronized (this) {
+            if(pending.isEmpty()) { return; }
+            changes = pending;
+            pending = new HashMap<>();
+        }
+        List<String> joined = new ArrayList<>();
+        List<String> left = new ArrayList<>();
+        PresenceDelta delta;
+        synchronized (published) {
+            changes.forEach((username, online) -> {
+                if(online && published.add(username)) joined.add(username);
+                else if(!online && published.remove(username)) left.add(username);
+            });
+            if(joined.isEmpty() && left.isEmpty()) { return; }
+            delta = new PresenceDelta(++version, joined, left);
+        }
+        messagingTemplate.convertAndSend(PRESENCE_TOPIC, delta);
+    }
+}
@@ -0,0 +1,20 @@
+package com.chatwave.ChatWave;
+
+import java.util.List;
+
+// Presence changes between version - 1 and version, published on /topic/presence.
+public class PresenceDelta {
+    private final long version;
+    private final List<String> joined;
+    private final List<String> left;
+
+    public PresenceDelta(long version, List<String> joined, List<String> left) {
+        this.version = version;
+        this.joined = joined;
+        this.left = left;
+    }
+
+    public long getVersion() {return this.version;}
+    public List<String> getJoined() {return this.joined;}
+    public List<String> getLeft() {return this.left;}
+}
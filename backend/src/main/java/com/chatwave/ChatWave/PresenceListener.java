@@ -0,0 +1,9 @@
+package com.chatwave.ChatWave;
+
+// Told when a user's first session connects (online == true) or the last one goes away.
+// Called on the thread that handled the STOMP event while the registry holds the user's entry, so
+// implementations must not block and must not call back into the PresenceRegistry.
+@FunctionalInterface
+public interface PresenceListener {
+    void presenceChanged(String username, boolean online);
+}
@@ -0,0 +1,65 @@
+package com.chatwave.ChatWave;
+
+import jakarta.annotation.PostConstruct;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Mirrors PresenceRegistry into User.online in the background. Logins only mark the user dirty,
+// every flush writes the latest state of the dirty users in one batch and creates missing users.
+@Component
+@ConditionalOnProperty(name = "chatwave.presence.persist", havingValue = "true", matchIfMissing = true)
+public class PresencePersister implements PresenceListener {
+    private final UserRepository userRepository;
+    private final PresenceRegistry presenceRegistry;
+    private final Set<String> dirty = ConcurrentHashMap.newKeySet();
+
+    public PresencePersister(UserRepository userRepository, PresenceRegistry presenceRegistry) {
+        this.userRepository = userRepository;
+        this.presenceRegistry = presenceRegistry;
+    }
+
+    @PostConstruct
+    void register() {
+        presenceRegistry.addListener(this);
+    }
+
+    @Override
+    public void presenceChanged(String username, boolean online) {
+        dirty.add(username);
+    }
+
+    // whatever was online before a restart isn't anymore
+    @EventListener(ApplicationReadyEvent.class)
+    public void resetOnlineFlags() {
+        userRepository.markAllOffline();
+    }
+
+    @Scheduled(fixedDelayString = "${chatwave.presence.persist-interval-ms:5000}")
+    @Transactional
+    public void flush() {
+        if(dirty.isEmpty()) { return; }
+        List<String> usernames = new ArrayList<>(dirty);
+        usernames.forEach(dirty::remove);
+
+        Map<String, User> existing = new HashMap<>();
+        for(User user : userRepository.findByUsernameIn(usernames)) existing.put(user.getUserName(), user);
+        List<User> changed = new ArrayList<>(usernames.size());
+        for(String username : usernames) {
+            User user = existing.computeIfAbsent(username, User::new);
+            user.setOnline(presenceRegistry.isOnline(username));
+            changed.add(user);
+        }
+        userRepository.saveAll(changed);
+    }
+}
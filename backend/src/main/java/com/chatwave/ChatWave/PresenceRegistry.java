@@ -0,0 +1,129 @@
+package com.chatwave.ChatWave;
+
+import org.springframework.context.event.EventListener;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.messaging.SessionConnectedEvent;
+import org.springframework.web.socket.messaging.SessionDisconnectEvent;
+
+import java.security.Principal;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Who is online, kept in memory and driven by STOMP session connect/disconnect events.
+// A user is online while at least one of their sessions is connected. Listeners are told inside the update
+// of the user's entry, so the changes of one user reach them in the order they happened.
+@Component
+public class PresenceRegistry {
+    private final ConcurrentHashMap<String, String> sessionUsers = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Set<String>> userSessions = new ConcurrentHashMap<>();
+    private final List<PresenceListener> listeners = new CopyOnWriteArrayList<>();
+    private final AtomicLong version = new AtomicLong();
+    private volatile Snapshot snapshot = new Snapshot(0, Set.of());
+
+    public void addListener(PresenceListener listener) {
+        listeners.add(listener);
+    }
+
+    @EventListener
+    public void onConnected(SessionConnectedEvent event) {
+        Principal user = event.getUser();
+        String sessionId = SimpMessageHeaderAccessor.getSessionId(event.getMessage().getHeaders());
+        if(user != null && sessionId != null) connect(sessionId, user.getName());
+    }
+
+    @EventListener
+    public void onDisconnected(SessionDisconnectEvent event) {
+        disconnect(event.getSessionId());
+    }
+
+    // returns true when this was the user's first session
+    public boolean connect(String sessionId, String username) {
+        if(sessionUsers.putIfAbsent(sessionId, username) != null) { return false; }
+        boolean[] cameOnline = new boolean[1];
+        userSessions.compute(username, (name, sessions) -> {
+            if(sessions == null) {
+                sessions = ConcurrentHashMap.newKeySet();
+                cameOnline[0] = true;
+                changed(name, true);
+            }
+            sessions.add(sessionId);
+            return sessions;
+        });
+        if(cameOnline[0]) version.incrementAndGet();
+        return cameOnline[0];
+    }
+
+    // returns true when this was the user's last session
+    public boolean disconnect(String sessionId) {
+        String username = sessionUsers.remove(sessionId);
+        if(username == null) { return false; }
+        boolean[] wentOffline = new boolean[1];
+        userSessions.computeIfPresent(username, (name, sessions) -> {
+            sessions.remove(sessionId);
+            wentOffline[0] = sessions.isEmpty();
+            if(wentOffline[0]) changed(name, false);
+            return wentOffline[0] ? null : sessions;
+        });
+        if(wentOffline[0]) version.incrementAndGet();
+        return wentOffline[0];
+    }
+
+    // forgets every session of the user, the sessions themselves stay open
+    public void remove(String username) {
+        boolean[] wentOffline = new boolean[1];
+        userSessions.computeIfPresent(username, (name, sessions) -> {
+            sessions.forEach(sessionUsers::remove);
+            wentOffline[0] = true;
+            changed(name, false);
+            return null;
+        });
+        if(wentOffline[0]) version.incrementAndGet();
+    }
+
+    public boolean isOnline(String username) {
+        return userSessions.containsKey(username);
+    }
+
+    public int sessionCount() {
+        return sessionUsers.size();
+    }
+
+    public int onlineCount() {
+        return userSessions.size();
+    }
+
+    public Set<String> getSessions(String username) {
+        Set<String> sessions = userSessions.get(username);
+        return sessions == null ? Set.of() : Set.copyOf(sessions);
+    }
+
+    // immutable, rebuilt at most once per change no matter how often it is asked for
+    public Set<String> onlineUsers() {
+        Snapshot current = snapshot;
+        long v = version.get();
+        if(current.version == v) { return current.users; }
+        Set<String> users = Set.copyOf(new HashSet<>(userSessions.keySet()));
+        snapshot = new Snapshot(v, users);
+        return users;
+    }
+
+    // called inside the compute() of the user's entry, the snapshot version is bumped once the entry is updated
+    private void changed(String username, boolean online) {
+        for(PresenceListener listener : listeners) listener.presenceChanged(username, online);
+    }
+
+    private static final class Snapshot {
+        private final long version;
+        private final Set<String> users;
+
+        private Snapshot(long version, Set<String> users) {
+            this.version = version;
+            this.users = users;
+        }
+    }
+}
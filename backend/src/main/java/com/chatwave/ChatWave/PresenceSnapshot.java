@@ -0,0 +1,19 @@
+package com.chatwave.ChatWave;
+
+import java.util.Set;
+
+// Everyone online as of version. Subscribe to /topic/presence first, then fetch this (SUBSCRIBE /app/presence),
+// skip deltas up to version and apply the rest in order. A delta that doesn't follow the last applied
+// version means one was missed, fetch a new snapshot then.
+public class PresenceSnapshot {
+    private final long version;
+    private final Set<String> users;
+
+    public PresenceSnapshot(long version, Set<String> users) {
+        this.version = version;
+        this.users = users;
+    }
+
+    public long getVersion() {return this.version;}
+    public Set<String> getUsers() {return this.users;}
+}
@@ -0,0 +1,55 @@
+package com.chatwave.ChatWave;
+
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.Index;
+import jakarta.persistence.PostLoad;
+import jakarta.persistence.PostPersist;
+import jakarta.persistence.Table;
+import jakarta.persistence.Transient;
+import org.springframework.data.domain.Persistable;
+
+// How far a user has read a conversation : msgId is the newest message they have seen in it, everything
+// up to it counts as read. One row per (conversation, reader), written in batches by ReadWatermarks.
+// The id is assigned, Persistable tells saveAll which rows to insert without a select per row first.
+@Entity
+@Table(indexes = @Index(name = "idx_read_marker_conversation", columnList = "conversation_id"))
+public class ReadMarker implements Persistable<String> {
+    @Id
+    private String markerId;
+    // see ConversationKey
+    private String conversationId;
+    private String username;
+    private long msgId;
+    @Transient
+    private boolean isNew = true;
+
+    public ReadMarker() {}
+    public ReadMarker(String conversationId, String username, long msgId) {
+        this.markerId = idOf(conversationId, username);
+        this.conversationId = conversationId;
+        this.username = username;
+        this.msgId = msgId;
+    }
+
+    // the length prefix keeps it unambiguous whatever characters the conversation key contains
+    static String idOf(String conversationId, String username) {
+        return conversationId.length() + ":" + conversationId + ":" + username;
+    }
+
+    @Override
+    public String getId() {return this.markerId;}
+    public String getConversationId() {return this.conversationId;}
+    public String getUsername() {return this.username;}
+    public long getMsgId() {return this.msgId;}
+    void setMsgId(long msgId) {this.msgId = msgId;}
+
+    @Override
+    public boolean isNew() {return this.isNew;}
+
+    @PostLoad
+    @PostPersist
+    void markNotNew() {
+        this.isNew = false;
+    }
+}
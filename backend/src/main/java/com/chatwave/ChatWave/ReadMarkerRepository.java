@@ -0,0 +1,9 @@
+package com.chatwave.ChatWave;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+
+import java.util.List;
+
+public interface ReadMarkerRepository extends JpaRepository<ReadMarker, String> {
+    List<ReadMarker> findByConversationId(String conversationId);
+}
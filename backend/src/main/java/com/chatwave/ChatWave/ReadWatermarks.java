@@ -0,0 +1,122 @@
+package com.chatwave.ChatWave;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Read receipts collapsed into one read-up-to watermark per reader and conversation (ReadMarker), which only
+// moves forward. Advancing one only updates it in memory, the read_marker table catches up in the background
+// like PresencePersister : every flush loads the dirty markers by id in one query, moves the rows that are
+// behind forward and inserts the missing ones in one transaction. Watermarks of the max-conversations most
+// recently read conversations stay in memory, so receipts for what is already read are dropped without a query.
+// A conversation that isn't in memory (after a restart or once evicted) takes the first receipt as moving
+// forward, the table keeps the highest either way.
+@Component
+public class ReadWatermarks {
+    private static final Logger log = LoggerFactory.getLogger(ReadWatermarks.class);
+
+    private final ReadMarkerRepository readMarkerRepository;
+    private final TransactionTemplate transactionTemplate;
+    // conversation -> reader -> watermark, in order of the latest advance; guarded by itself
+    private final LinkedHashMap<String, Map<String, Long>> known;
+    // advanced since the last flush, by ReadMarker id; guarded by known
+    private Map<String, ReadMarker> dirty = new HashMap<>();
+    private final Timer flushTimer;
+
+    public ReadWatermarks(ReadMarkerRepository readMarkerRepository, PlatformTransactionManager transactionManager,
+                          @Value("${chatwave.signals.read.max-conversations:10000}") int maxConversations,
+                          MeterRegistry meterRegistry) {
+        this.readMarkerRepository = readMarkerRepository;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.known = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Map<String, Long>> eldest) {
+                return size() > Math.max(1, maxConversations);
+            }
+        };
+        this.flushTimer = Timer.builder("chatwave.signals.read.flush")
+                .description("Writing a batch of read watermarks, including the commit")
+                .register(meterRegistry);
+    }
+
+    // true when msgId is past the reader's watermark, which is then moved up to it
+    public boolean advance(String conversationId, String username, long msgId) {
+        synchronized (known) {
+            Map<String, Long> readers = known.computeIfAbsent(conversationId, k -> new HashMap<>());
+            Long current = readers.get(username);
+            if(current != null && current >= msgId) return false;
+            readers.put(username, msgId);
+            dirty.put(ReadMarker.idOf(conversationId, username), new ReadMarker(conversationId, username, msgId));
+            return true;
+        }
+    }
+
+    // reader -> watermark of everyone who has read anything of the conversation, written or not
+    public Map<String, Long> watermarks(String conversationId) {
+        Map<String, Long> watermarks = new HashMap<>();
+        for(ReadMarker marker : readMarkerRepository.findByConversationId(conversationId)) {
+            watermarks.put(marker.getUsername(), marker.getMsgId());
+        }
+        synchronized (known) {
+            Map<String, Long> readers = known.get(conversationId);
+            if(readers != null) readers.forEach((username, msgId) -> watermarks.merge(username, msgId, Math::max));
+        }
+        return watermarks;
+    }
+
+    public int getPending() {
+        synchronized (known) {
+            return dirty.size();
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${chatwave.signals.read.persist-interval-ms:5000}")
+    public void flush() {
+        Map<String, ReadMarker> batch;
+        synchronized (known) {
+            if(dirty.isEmpty()) { return; }
+            batch = dirty;
+            dirty = new HashMap<>();
+        }
+        long start = System.nanoTime();
+        try {
+            transactionTemplate.executeWithoutResult(status -> write(batch));
+        } catch (RuntimeException e) {
+            // e.g. another instance inserted one of them first, the next flush finds that row and moves it instead
+            log.warn("Writing {} read watermarks failed, retried with the next batch", batch.size(), e);
+            synchronized (known) {
+                batch.values().forEach(marker -> dirty.merge(marker.getId(),
+                        new ReadMarker(marker.getConversationId(), marker.getUsername(), marker.getMsgId()),
+                        (newer, failed) -> newer.getMsgId() >= failed.getMsgId() ? newer : failed));
+            }
+            return;
+        }
+        flushTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    }
+
+    private void write(Map<String, ReadMarker> batch) {
+        Map<String, ReadMarker> rows = new HashMap<>();
+        for(ReadMarker row : readMarkerRepository.findAllById(batch.keySet())) rows.put(row.getId(), row);
+        List<ReadMarker> inserted = new ArrayList<>();
+        for(ReadMarker marker : batch.values()) {
+            ReadMarker row = rows.get(marker.getId());
+            if(row == null) inserted.add(marker);
+            // managed, updated when the transaction commits
+            else if(row.getMsgId() < marker.getMsgId()) row.setMsgId(marker.getMsgId());
+        }
+        readMarkerRepository.saveAll(inserted);
+    }
+}
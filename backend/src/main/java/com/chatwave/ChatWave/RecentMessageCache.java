@@ -0,0 +1,227 @@
+package com.chatwave.ChatWave;
+
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Limit;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// The newest perConversation messages of recently read conversations, so opening a chat doesn't go
+// to the database. A conversation is loaded on the first read of its latest page, from then on
+// ChatService adds every message saved to it. Messages the write-behind commits are offered again,
+// which catches the ones saved just before the conversation was loaded but not inserted yet.
+// A ring always holds every message of its conversation newer than its oldest one, pages that reach
+// past that (while there are older messages, in the table or in MessageArchive) are read by ChatService.
+// At most maxConversations conversations and maxMessages messages in total, the least recently
+// read conversations are evicted in batches. perConversation = 0 turns the cache off.
+@Component
+public class RecentMessageCache {
+    // the order history pages use, see MessageRepository
+    private static final Comparator<Message> CHRONOLOGICAL =
+            Comparator.comparing(Message::getTimestamp).thenComparing(Message::getMsgId);
+
+    private final MessageRepository messageRepository;
+    private final MessageArchive messageArchive;
+    private final MessageWriteBehind messageWriteBehind;
+    private final int perConversation;
+    private final int maxConversations;
+    private final long maxMessages;
+    private final ConcurrentHashMap<String, Ring> rings = new ConcurrentHashMap<>();
+    // messages in all rings, a message added to a ring while it is being evicted may be miscounted
+    private final AtomicLong messages = new AtomicLong();
+    private final AtomicBoolean evicting = new AtomicBoolean();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public RecentMessageCache(MessageRepository messageRepository, MessageArchive messageArchive, MessageWriteBehind messageWriteBehind,
+                              @Value("${chatwave.history.cache.per-conversation:64}") int perConversation,
+                              @Value("${chatwave.history.cache.max-conversations:10000}") int maxConversations,
+                              @Value("${chatwave.history.cache.max-messages:200000}") long maxMessages) {
+        this.messageRepository = messageRepository;
+        this.messageArchive = messageArchive;
+        this.messageWriteBehind = messageWriteBehind;
+        this.perConversation = Math.max(0, perConversation);
+        this.maxConversations = Math.max(1, maxConversations);
+        this.maxMessages = Math.max(1, maxMessages);
+    }
+
+    // batches arrive on the write-behind thread, once they are in the table
+    @PostConstruct
+    void register() {
+        messageWriteBehind.addListener(batch -> batch.forEach(this::add));
+    }
+
+    // a message of a conversation, only kept when that conversation is cached
+    public void add(Message message) {
+        Ring ring = message.getConversationId() == null ? null : rings.get(message.getConversationId());
+        if(ring != null && ring.add(message) > 0) {
+            messages.incrementAndGet();
+            evictIfFull();
+        }
+    }
+
+    // the page from the cache, or null when it has to come from the database. Only latest pages
+    // (beforeTimestamp == null) load a conversation that isn't cached.
+    public MessagePage page(String conversationId, LocalDateTime beforeTimestamp, Long beforeMsgId, int limit) {
+        if(perConversation == 0) return null;
+        Ring ring = rings.get(conversationId);
+        if(ring == null && beforeTimestamp == null) ring = load(conversationId);
+        MessagePage page = ring == null ? null : ring.page(beforeTimestamp, beforeMsgId, limit);
+        if(page == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return page;
+    }
+
+    public void invalidate(String conversationId) {
+        Ring ring = rings.remove(conversationId);
+        if(ring != null) messages.addAndGet(-ring.size());
+    }
+
+    public long getHits() {return hits.sum();}
+    public long getMisses() {return misses.sum();}
+    public long getEvictions() {return evictions.sum();}
+    public int getConversations() {return rings.size();}
+    public long getMessages() {return messages.get();}
+
+    public double getHitRate() {
+        long h = hits.sum(), total = h + misses.sum();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    // the ring is in place before the database is read, so a message saved meanwhile lands in it too,
+    // null when another thread is loading the conversation right now
+    private Ring load(String conversationId) {
+        Ring created = new Ring(perConversation);
+        Ring ring = rings.putIfAbsent(conversationId, created);
+        if(ring != null) return ring.loaded ? ring : null;
+        try {
+            List<Message> newestFirst = messageRepository.findLatest(conversationId, Limit.of(perConversation + 1));
+            messages.addAndGet(created.load(newestFirst, messageArchive.hasConversation(conversationId)));
+        } catch (RuntimeException e) {
+            rings.remove(conversationId, created);
+            messages.addAndGet(-created.size());
+            throw e;
+        }
+        evictIfFull();
+        return created;
+    }
+
+    // drops the least recently read tenth in one go, so a full cache doesn't sort on every load
+    private void evictIfFull() {
+        if((rings.size() <= maxConversations && messages.get() <= maxMessages) || !evicting.compareAndSet(false, true)) { return; }
+        try {
+            List<Map.Entry<String, Ring>> byAge = new ArrayList<>(rings.entrySet());
+            byAge.sort(Comparator.comparingLong(e -> e.getValue().lastAccess));
+            int excess = Math.max(byAge.size() - maxConversations, 0) + Math.max(1, maxConversations / 10);
+            for(int i = 0; i < byAge.size() && (i < excess || messages.get() > maxMessages); i++) {
+                if(rings.remove(byAge.get(i).getKey(), byAge.get(i).getValue())) {
+                    messages.addAndGet(-byAge.get(i).getValue().size());
+                    evictions.increment();
+                }
+            }
+        } finally {
+            evicting.set(false);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "conversations=" + getConversations() + " messages=" + getMessages() + " hits=" + getHits() + " misses=" + getMisses();
+    }
+
+    // up to capacity messages in chronological order, the oldest at slots[head]
+    private static final class Ring {
+        private final Message[] slots;
+        private int head;
+        private int size;
+        // the conversation has messages older than the ones in here
+        private boolean hasOlder;
+        private volatile boolean loaded;
+        private volatile long lastAccess = System.nanoTime();
+
+        private Ring(int capacity) {
+            this.slots = new Message[capacity];
+        }
+
+        private Message get(int i) {
+            return slots[(head + i) % slots.length];
+        }
+
+        synchronized int size() {
+            return size;
+        }
+
+        // newestFirst holds up to capacity + 1 rows, the extra one only tells whether there are older ones,
+        // archived ones are always older. Returns by how much the ring grew.
+        synchronized int load(List<Message> newestFirst, boolean archived) {
+            int before = size;
+            if(newestFirst.size() > slots.length || archived) hasOlder = true;
+            for(int i = Math.min(newestFirst.size(), slots.length) - 1; i >= 0; i--) add(newestFirst.get(i));
+            loaded = true;
+            return size - before;
+        }
+
+        // inserted in order, a message that is already here or older than a full ring is ignored.
+        // Returns by how much the ring grew.
+        synchronized int add(Message message) {
+            int before = size;
+            int position = size;
+            while(position > 0) {
+                int order = CHRONOLOGICAL.compare(get(position - 1), message);
+                if(order == 0) return 0;
+                if(order < 0) break;
+                position--;
+            }
+            if(size == slots.length) {
+                if(position == 0) {
+                    hasOlder = true;
+                    return 0;
+                }
+                // the oldest makes room
+                slots[head] = null;
+                head = (head + 1) % slots.length;
+                size--;
+                position--;
+                hasOlder = true;
+            }
+            for(int i = size; i > position; i--) slots[(head + i) % slots.length] = get(i - 1);
+            slots[(head + position) % slots.length] = message;
+            size++;
+            return size - before;
+        }
+
+        // null when the page reaches past the oldest message here and the conversation has older ones
+        synchronized MessagePage page(LocalDateTime beforeTimestamp, Long beforeMsgId, int limit) {
+            if(!loaded) return null;
+            lastAccess = System.nanoTime();
+            int end = size;
+            if(beforeTimestamp != null) {
+                long cursorId = beforeMsgId == null ? Long.MAX_VALUE : beforeMsgId;
+                while(end > 0 && !isBefore(get(end - 1), beforeTimestamp, cursorId)) end--;
+            }
+            if(end < limit && hasOlder) return null;
+            List<Message> newestFirst = new ArrayList<>(Math.min(end, limit + 1));
+            for(int i = end - 1; i >= 0 && newestFirst.size() <= limit; i--) newestFirst.add(get(i));
+            MessagePage page = MessagePage.of(newestFirst, limit);
+            return end == limit && hasOlder ? new MessagePage(page.getMessages(), true) : page;
+        }
+
+        private static boolean isBefore(Message message, LocalDateTime timestamp, long msgId) {
+            int order = message.getTimestamp().compareTo(timestamp);
+            return order < 0 || (order == 0 && message.getMsgId() < msgId);
+        }
+    }
+}
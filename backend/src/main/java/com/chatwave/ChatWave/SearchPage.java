@@ -0,0 +1,24 @@
+package com.chatwave.ChatWave;
+
+import java.util.List;
+
+// One page of search results, best match first. total counts every match, hasMore tells whether
+// page + 1 has any.
+public class SearchPage {
+    private final List<Message> messages;
+    private final int page;
+    private final int total;
+    private final boolean hasMore;
+
+    public SearchPage(List<Message> messages, int page, int total, boolean hasMore) {
+        this.messages = messages;
+        this.page = page;
+        this.total = total;
+        this.hasMore = hasMore;
+    }
+
+    public List<Message> getMessages() {return this.messages;}
+    public int getPage() {return this.page;}
+    public int getTotal() {return this.total;}
+    public boolean isHasMore() {return this.hasMore;}
+}
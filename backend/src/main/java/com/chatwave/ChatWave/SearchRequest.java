@@ -0,0 +1,25 @@
+package com.chatwave.ChatWave;
+
+// Payload of /app/search. Searches every conversation of the caller, or only the one with the
+// user (or the group, when group is true) named by with. page counts from 0.
+public class SearchRequest {
+    private String query;
+    private String with;
+    private boolean group;
+    private int page;
+    private int size;
+
+    public SearchRequest() {}
+
+    public String getQuery() {return this.query;}
+    public String getWith() {return this.with;}
+    public boolean isGroup() {return this.group;}
+    public int getPage() {return this.page;}
+    public int getSize() {return this.size;}
+
+    public void setQuery(String query) {this.query = query;}
+    public void setWith(String with) {this.with = with;}
+    public void setGroup(boolean group) {this.group = group;}
+    public void setPage(int page) {this.page = page;}
+    public void setSize(int size) {this.size = size;}
+}
@@ -0,0 +1,23 @@
+package com.chatwave.ChatWave;
+
+// Payload of /app/typing, /app/read and /app/watermarks. with is the other user, or the group name when
+// group is true. typing is for /app/typing (false when the user stopped), msgId for /app/read : the newest
+// message of the conversation the user has seen.
+public class SignalRequest {
+    private String with;
+    private boolean group;
+    private boolean typing;
+    private Long msgId;
+
+    public SignalRequest() {}
+
+    public String getWith() {return this.with;}
+    public boolean isGroup() {return this.group;}
+    public boolean isTyping() {return this.typing;}
+    public Long getMsgId() {return this.msgId;}
+
+    public void setWith(String with) {this.with = with;}
+    public void setGroup(boolean group) {this.group = group;}
+    public void setTyping(boolean typing) {this.typing = typing;}
+    public void setMsgId(Long msgId) {this.msgId = msgId;}
+}
@@ -0,0 +1,82 @@
+package com.chatwave.ChatWave;
+
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.simp.stomp.StompCommand;
+import org.springframework.messaging.simp.stomp.StompHeaderAccessor;
+import org.springframework.messaging.support.ChannelInterceptor;
+import org.springframework.messaging.support.MessageHeaderAccessor;
+import org.springframework.stereotype.Component;
+
+import java.util.Set;
+
+// Binds the STOMP session to a user at CONNECT (login header) so /user/queue/... destinations
+// can be resolved, and decides what a session may subscribe to. The simple broker matches subscriptions
+// as Ant patterns, so anything with a wildcard or template would receive other people's messages and is
+// refused, so are the resolved /queue/...-user{session} destinations; a session subscribes to its own
+// queues through /user/queue/... Of the topics it gets presence and the group list, and a group's
+// topics only while it is a member. Clients only SEND to /app/..., the broker destinations are ours.
+@Component
+public class StompAuthInterceptor implements ChannelInterceptor {
+    static final String GROUP_TOPIC_PREFIX = "/topic/group/";
+    // typing and read signals of a group, see ConversationSignals
+    static final String GROUP_SIGNAL_PREFIX = "/topic/signals/group/";
+    private static final String APP_PREFIX = "/app/";
+    private static final String USER_QUEUE_PREFIX = "/user/queue/";
+    private static final Set<String> PUBLIC_TOPICS = Set.of(PresenceBroadcaster.PRESENCE_TOPIC, "/topic/groups");
+
+    private final GroupMembershipCache groupMembershipCache;
+
+    public StompAuthInterceptor(GroupMembershipCache groupMembershipCache) {
+        this.groupMembershipCache = groupMembershipCache;
+    }
+
+    @Override
+    public Message<?> preSend(Message<?> message, MessageChannel channel) {
+        StompHeaderAccessor accessor = MessageHeaderAccessor.getAccessor(message, StompHeaderAccessor.class);
+        if(accessor == null || accessor.getCommand() == null) return message;
+
+        if(accessor.getCommand() == StompCommand.CONNECT) {
+            String username = accessor.getLogin();
+            if(username == null || username.isBlank()) {
+                throw new IllegalStateException("CONNECT requires a login header with the username.");
+            }
+            accessor.setUser(new ChatPrincipal(username.trim()));
+        }
+        else if(accessor.getCommand() == StompCommand.SUBSCRIBE) {
+            String destination = accessor.getDestination();
+            if(!isPlain(destination)) {
+                throw new IllegalStateException("Can't subscribe to " + destination);
+            }
+            String groupName = groupOf(destination);
+            if(groupName != null) {
+                if(accessor.getUser() == null || !groupMembershipCache.isMember(groupName, accessor.getUser().getName())) {
+                    throw new IllegalStateException("You're not a member of the group " + groupName);
+                }
+            }
+            else if(!destination.startsWith(USER_QUEUE_PREFIX) && !destination.startsWith(APP_PREFIX) && !PUBLIC_TOPICS.contains(destination)) {
+                throw new IllegalStateException("Can't subscribe to " + destination);
+            }
+        }
+        else if(accessor.getCommand() == StompCommand.SEND) {
+            String destination = accessor.getDestination();
+            if(!isPlain(destination) || !destination.startsWith(APP_PREFIX)) {
+                throw new IllegalStateException("Can't send to " + destination);
+            }
+        }
+        return message;
+    }
+
+    // one destination, not a pattern the broker would match other destinations with
+    private static boolean isPlain(String destination) {
+        return destination != null && destination.indexOf('*') < 0 && destination.indexOf('?') < 0 && destination.indexOf('{') < 0;
+    }
+
+    // the group whose topic the destination is, null for any other destination
+    static String groupOf(String destination) {
+        if(destination == null) return null;
+        if(destination.startsWith(GROUP_TOPIC_PREFIX)) return destination.substring(GROUP_TOPIC_PREFIX.length());
+        if(destination.startsWith(GROUP_SIGNAL_PREFIX)) return destination.substring(GROUP_SIGNAL_PREFIX.length());
+        return null;
+    }
+}
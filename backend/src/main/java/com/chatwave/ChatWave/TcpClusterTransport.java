@@ -0,0 +1,292 @@
+package com.chatwave.ChatWave;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+// Cluster transport between processes over TCP. Every node listens on its address and dials its peers,
+// and the nodes that dialed it : they tell their address on connect, so a node's peers only have to name
+// the nodes that were there before it. A connection carries the batches of the node that dialed it, in order,
+// so two nodes talk over two connections, one each way. A node can be sent to once the connection to it
+// is up (Receiver.nodeJoined), it leaves when a connection to or from it breaks (Receiver.nodeLeft) until
+// it is dialed again. Batches in flight on a broken connection are lost, ClusterFanout forwards at most once.
+public class TcpClusterTransport implements ClusterTransport {
+    private static final Logger log = LoggerFactory.getLogger(TcpClusterTransport.class);
+    private static final int MAGIC = 0x43574331;
+    private static final byte OK = 0;
+    private static final byte WRONG_CLUSTER = 1;
+    private static final byte DUPLICATE_NODE = 2;
+    // the dialer reached its own listener, e.g. because every node has the same peers
+    private static final byte SELF = 3;
+    private static final int HANDSHAKE_TIMEOUT_MS = 5000;
+
+    private final String clusterName;
+    private final String address;
+    private final long reconnectMs;
+    // tells a node dialing itself from two nodes with the same id
+    private final long instance = ThreadLocalRandom.current().nextLong();
+    // host:port still to dial or dialed already, the configured peers and whoever dialed us
+    private final Set<String> peers = ConcurrentHashMap.newKeySet();
+    // by node id, where our batches go and where theirs come from
+    private final ConcurrentHashMap<String, Connection> outbound = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Connection> inbound = new ConcurrentHashMap<>();
+    private volatile String nodeId;
+    private volatile Receiver receiver;
+    private volatile String advertised;
+    private volatile boolean running;
+    private ServerSocket server;
+    private Thread dialer;
+
+    // address is host:port to listen on and to be dialed at, peers are host:port of other nodes
+    public TcpClusterTransport(String clusterName, String address, List<String> peers, long reconnectMs) {
+        this.clusterName = clusterName;
+        this.address = address;
+        this.reconnectMs = Math.max(10, reconnectMs);
+        for(String peer : peers) if(!peer.isBlank()) this.peers.add(peer.trim());
+    }
+
+    // the address other nodes dial, with the actual port once joined
+    public String getAddress() {return this.advertised != null ? this.advertised : this.address;}
+
+    @Override
+    public synchronized void join(String nodeId, Receiver receiver) {
+        if(running) throw new IllegalStateException(this.nodeId + " already joined the cluster through this transport");
+        this.nodeId = nodeId;
+        this.receiver = receiver;
+        InetSocketAddress bind = parse(address);
+        try {
+            server = new ServerSocket();
+            server.bind(bind);
+        } catch (IOException e) {
+            throw new IllegalStateException("Cluster transport can't listen on " + address + " (chatwave.cluster.address)", e);
+        }
+        advertised = bind.getHostString() + ":" + server.getLocalPort();
+        peers.remove(advertised);
+        running = true;
+        Thread.ofPlatform().daemon().name("cluster-acceptor").start(this::acceptLoop);
+        dialer = Thread.ofPlatform().daemon().name("cluster-dialer").start(this::dialLoop);
+    }
+
+    @Override
+    public synchronized void leave(String nodeId) {
+        if(!running || !nodeId.equals(this.nodeId)) return;
+        running = false;
+        dialer.interrupt();
+        closeQuietly(server);
+        outbound.values().forEach(Connection::close);
+        inbound.values().forEach(Connection::close);
+        outbound.clear();
+        inbound.clear();
+    }
+
+    @Override
+    public Set<String> nodes() {
+        Set<String> nodes = new HashSet<>(outbound.keySet());
+        if(running) nodes.add(nodeId);
+        return Set.copyOf(nodes);
+    }
+
+    // on the caller's thread, batches to one node are written one at a time
+    @Override
+    public void send(String toNode, ClusterBatch batch) {
+        Connection connection = outbound.get(toNode);
+        if(connection == null) return;
+        try {
+            synchronized (connection) {
+                ClusterBatch.write(connection.out, batch);
+                connection.out.flush();
+            }
+        } catch (IOException e) {
+            log.warn("Lost the connection to cluster node {} at {}: {}", toNode, connection.address, e.toString());
+            lost(toNode, connection, outbound);
+        }
+    }
+
+    private void acceptLoop() {
+        while(running) {
+            try {
+                Socket socket = server.accept();
+                Thread.ofPlatform().daemon().name("cluster-inbound").start(() -> serveInbound(socket));
+            } catch (IOException e) {
+                if(running) log.warn("Cluster transport stopped accepting: {}", e.toString());
+                return;
+            }
+        }
+    }
+
+    // handshake, then batches of the dialing node until the connection breaks
+    private void serveInbound(Socket socket) {
+        Connection connection;
+        String from;
+        try {
+            connection = new Connection(socket, null);
+            socket.setSoTimeout(HANDSHAKE_TIMEOUT_MS);
+            if(connection.in.readInt() != MAGIC) throw new IOException("not a cluster node");
+            String cluster = connection.in.readUTF();
+            from = connection.in.readUTF();
+            long theirInstance = connection.in.readLong();
+            String theirAddress = connection.in.readUTF();
+            byte status = OK;
+            if(theirInstance == instance) status = SELF;
+            else if(!cluster.equals(clusterName)) status = WRONG_CLUSTER;
+            else if(from.equals(nodeId) || !sameNode(inbound.get(from), theirAddress)) status = DUPLICATE_NODE;
+            connection.out.writeByte(status);
+            if(status == OK) connection.out.writeUTF(nodeId);
+            connection.out.flush();
+            if(status != OK) {
+                if(status != SELF) log.warn("Refused {} from {} at {}, status {}", from, cluster, theirAddress, status);
+                connection.close();
+                return;
+            }
+            socket.setSoTimeout(0);
+            connection.address = theirAddress;
+            Connection previous = inbound.put(from, connection);
+            // a node that reconnects, the old connection didn't notice yet
+            if(previous != null) previous.close();
+            peers.add(theirAddress);
+        } catch (IOException e) {
+            closeQuietly(socket);
+            return;
+        }
+
+        try {
+            while(running) receiver.receive(ClusterBatch.read(connection.in));
+        } catch (IOException e) {
+            if(running && inbound.get(from) == connection) log.info("Cluster node {} at {} went away: {}", from, connection.address, e.toString());
+        } catch (RuntimeException e) {
+            log.error("Failed on a batch from cluster node {}, dropping its connection", from, e);
+        }
+        lost(from, connection, inbound);
+    }
+
+    private void dialLoop() {
+        while(running) {
+            Set<String> connected = new HashSet<>();
+            for(Connection connection : outbound.values()) connected.add(connection.address);
+            for(String peer : peers) {
+                if(!running) return;
+                if(!connected.contains(peer)) dial(peer);
+            }
+            try {
+                Thread.sleep(reconnectMs);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void dial(String peer) {
+        Socket socket = new Socket();
+        try {
+            socket.connect(parse(peer), HANDSHAKE_TIMEOUT_MS);
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(HANDSHAKE_TIMEOUT_MS);
+            Connection connection = new Connection(socket, peer);
+            connection.out.writeInt(MAGIC);
+            connection.out.writeUTF(clusterName);
+            connection.out.writeUTF(nodeId);
+            connection.out.writeLong(instance);
+            connection.out.writeUTF(advertised);
+            connection.out.flush();
+            byte status = connection.in.readByte();
+            if(status != OK) {
+                connection.close();
+                if(status == SELF) peers.remove(peer);
+                else log.warn("Cluster node at {} refused us, {}", peer, status == WRONG_CLUSTER
+                        ? "it is in another cluster (chatwave.cluster.name)" : "it or another node has node id " + nodeId);
+                return;
+            }
+            String to = connection.in.readUTF();
+            socket.setSoTimeout(0);
+            if(outbound.putIfAbsent(to, connection) != null) {
+                // another address of a node we are connected to already
+                connection.close();
+                peers.remove(peer);
+                return;
+            }
+            if(!running) {
+                lost(to, connection, outbound);
+                return;
+            }
+            Thread.ofPlatform().daemon().name("cluster-outbound").start(() -> watchOutbound(to, connection));
+            log.info("Connected to cluster node {} at {}", to, peer);
+            receiver.nodeJoined(to);
+        } catch (IOException e) {
+            closeQuietly(socket);
+        }
+    }
+
+    // nothing is read on our side of an outbound connection, a read only returns once it is closed
+    private void watchOutbound(String to, Connection connection) {
+        try {
+            while(connection.in.read() >= 0) {
+                // the other side never writes after the handshake
+            }
+        } catch (IOException ignored) {
+        }
+        if(running && outbound.get(to) == connection) log.info("Cluster node {} at {} went away", to, connection.address);
+        lost(to, connection, outbound);
+    }
+
+    // a node is either connected both ways or not at all, the other direction is dropped too
+    private void lost(String node, Connection connection, ConcurrentHashMap<String, Connection> connections) {
+        connection.close();
+        if(!connections.remove(node, connection) || !running) return;
+        Connection out = outbound.remove(node);
+        if(out != null) out.close();
+        Connection in = inbound.remove(node);
+        if(in != null) in.close();
+        receiver.nodeLeft(node);
+    }
+
+    // the node that dialed from theirAddress isn't one with the same id connected from elsewhere
+    private static boolean sameNode(Connection existing, String theirAddress) {
+        return existing == null || theirAddress.equals(existing.address);
+    }
+
+    private static InetSocketAddress parse(String hostAndPort) {
+        int colon = hostAndPort.lastIndexOf(':');
+        if(colon < 0) throw new IllegalArgumentException("Cluster addresses are host:port, not " + hostAndPort);
+        return new InetSocketAddress(hostAndPort.substring(0, colon), Integer.parseInt(hostAndPort.substring(colon + 1)));
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            if(closeable != null) closeable.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static final class Connection {
+        private final Socket socket;
+        private final DataInputStream in;
+        private final DataOutputStream out;
+        // where the node listens, not necessarily the remote address of this socket
+        private volatile String address;
+
+        Connection(Socket socket, String address) throws IOException {
+            this.socket = socket;
+            this.address = address;
+            this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+        }
+
+        void close() {
+            closeQuietly(socket);
+        }
+    }
+}
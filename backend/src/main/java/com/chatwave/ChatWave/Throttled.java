@@ -0,0 +1,19 @@
+package com.chatwave.ChatWave;
+
+// Reply on /user/queue/throttled to the session whose message was refused by AdmissionControl.
+// scope is the bucket that ran dry ("user" or "connection"), destination the /app mapping it was sent to.
+public class Throttled {
+    private final String destination;
+    private final String scope;
+    private final long retryAfterMs;
+
+    public Throttled(String destination, String scope, long retryAfterMs) {
+        this.destination = destination;
+        this.scope = scope;
+        this.retryAfterMs = retryAfterMs;
+    }
+
+    public String getDestination() {return this.destination;}
+    public String getScope() {return this.scope;}
+    public long getRetryAfterMs() {return this.retryAfterMs;}
+}
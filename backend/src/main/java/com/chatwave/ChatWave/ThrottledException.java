@@ -0,0 +1,20 @@
+package com.chatwave.ChatWave;
+
+// thrown by AdmissionControl when a message didn't get its tokens, answered with a Throttled
+public class ThrottledException extends RuntimeException {
+    private final String scope;
+    private final long retryAfterMs;
+
+    public ThrottledException(String scope, long retryAfterNanos) {
+        super("Too many messages, retry in " + roundUpToMillis(retryAfterNanos) + " ms");
+        this.scope = scope;
+        this.retryAfterMs = roundUpToMillis(retryAfterNanos);
+    }
+
+    public String getScope() {return this.scope;}
+    public long getRetryAfterMs() {return this.retryAfterMs;}
+
+    private static long roundUpToMillis(long nanos) {
+        return Math.max(1, (nanos + 999_999) / 1_000_000);
+    }
+}
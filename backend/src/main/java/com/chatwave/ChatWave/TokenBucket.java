@@ -0,0 +1,54 @@
+package com.chatwave.ChatWave;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// A token bucket kept in one AtomicLong (GCRA) : instead of a token count it holds the time at which the
+// bucket will be full again. Taking n tokens moves that time n / rate into the future, which is allowed
+// as long as it ends up no more than burst / rate ahead of now. One CAS per take, no lock and no timer.
+final class TokenBucket {
+    private final AtomicLong fullAt = new AtomicLong(Long.MIN_VALUE);
+
+    // 0 when the tokens were taken, otherwise the nanos until they would be there and nothing is taken
+    long tryTake(int tokens, Limit limit, long now) {
+        if(limit.isUnlimited()) return 0;
+        // a message costing more than the whole burst still goes through on a full bucket
+        long need = Math.min(tokens * limit.nanosPerToken, limit.burstNanos);
+        while(true) {
+            long current = fullAt.get();
+            long next = Math.max(current, now) + need;
+            long ahead = next - now;
+            if(ahead > limit.burstNanos) return ahead - limit.burstNanos;
+            if(fullAt.compareAndSet(current, next)) return 0;
+        }
+    }
+
+    // undoes a tryTake that succeeded, when a second bucket refused the same message
+    void giveBack(int tokens, Limit limit) {
+        if(!limit.isUnlimited()) fullAt.addAndGet(-Math.min(tokens * limit.nanosPerToken, limit.burstNanos));
+    }
+
+    boolean isFull(long now) {
+        return fullAt.get() <= now;
+    }
+
+    // rate tokens per second refilled, up to burst of them; a rate of 0 or less means no limit
+    static final class Limit {
+        static final Limit UNLIMITED = new Limit(0, 0);
+
+        private final double rate;
+        private final int burst;
+        private final long nanosPerToken;
+        private final long burstNanos;
+
+        Limit(double rate, int burst) {
+            this.rate = Math.max(0, rate);
+            this.burst = Math.max(1, burst);
+            this.nanosPerToken = this.rate > 0 ? (long) Math.ceil(1e9 / this.rate) : 0;
+            this.burstNanos = this.burst * nanosPerToken;
+        }
+
+        public double getRate() {return this.rate;}
+        public int getBurst() {return this.burst;}
+        boolean isUnlimited() {return this.nanosPerToken == 0;}
+    }
+}
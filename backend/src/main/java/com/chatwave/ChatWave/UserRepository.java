@@ -1,7 +1,19 @@
 package com.chatwave.ChatWave;
 
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.Collection;
+import java.util.List;
 
 public interface UserRepository extends JpaRepository<User, Long> {
     User findByUsername(String username);
+    List<User> findByUsernameIn(Collection<String> usernames);
+
+    @Modifying
+    @Transactional
+    @Query("update User u set u.online = false where u.online = true")
+    int markAllOffline();
 }
@@ -0,0 +1,175 @@
+package com.chatwave.ChatWave;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletRequestWrapper;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.websocket.Extension;
+import jakarta.websocket.server.ServerEndpointConfig;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.server.ServerHttpRequest;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketExtension;
+import org.springframework.web.socket.WebSocketHandler;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.handler.WebSocketHandlerDecorator;
+import org.springframework.web.socket.handler.WebSocketSessionDecorator;
+import org.springframework.web.socket.server.standard.StandardWebSocketUpgradeStrategy;
+import org.springframework.web.socket.server.support.DefaultHandshakeHandler;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+
+// permessage-deflate (RFC 7692) on the WebSocket transport of /chat. Tomcat accepts it from any client
+// that offers it (browsers do), chatwave.websocket.compression.enabled=false declines the offer.
+// Tomcat then deflates every message of the connection, it has no size threshold below which a message
+// would go out as it is.
+// What deflate saves is measured on one in sample-rate outbound messages of deflating sessions, deflated
+// on their own (chatwave.websocket.compression.ratio); Tomcat keeps the window between messages, so it
+// usually does a little better. Outbound bytes are counted on the same sample, each sampled message stands
+// for sample-rate of them : the payload is only encoded to UTF-8 here for sampled messages.
+@Component
+public class WebSocketCompression {
+    static final String PERMESSAGE_DEFLATE = "permessage-deflate";
+
+    private final boolean enabled;
+    private final int sampleRate;
+    private final AtomicInteger deflatingSessions = new AtomicInteger();
+    private final AtomicInteger plainSessions = new AtomicInteger();
+    private final Counter deflatedBytes;
+    private final Counter plainBytes;
+    private final DistributionSummary ratio;
+    private final HandshakeHandler handshakeHandler = new HandshakeHandler();
+
+    public WebSocketCompression(MeterRegistry registry,
+                                @Value("${chatwave.websocket.compression.enabled:true}") boolean enabled,
+                                @Value("${chatwave.websocket.compression.sample-rate:64}") int sampleRate) {
+        this.enabled = enabled;
+        this.sampleRate = Math.max(1, sampleRate);
+        this.deflatedBytes = Counter.builder("chatwave.websocket.outbound.bytes")
+                .description("Payload handed to WebSocket sessions, before compression, estimated from sampled messages")
+                .tag("compression", "deflate").register(registry);
+        this.plainBytes = Counter.builder("chatwave.websocket.outbound.bytes")
+                .description("Payload handed to WebSocket sessions, before compression, estimated from sampled messages")
+                .tag("compression", "none").register(registry);
+        this.ratio = DistributionSummary.builder("chatwave.websocket.compression.ratio")
+                .description("Deflated size over original size of sampled outbound messages")
+                .publishPercentiles(0.5, 0.95)
+                .register(registry);
+    }
+
+    public DefaultHandshakeHandler handshakeHandler() {return this.handshakeHandler;}
+    public int getDeflatingSessions() {return this.deflatingSessions.get();}
+    public int getPlainSessions() {return this.plainSessions.get();}
+
+    // for WebSocketTransportRegistration.addDecoratorFactory
+    public WebSocketHandler decorate(WebSocketHandler handler) {
+        return new WebSocketHandlerDecorator(handler) {
+            @Override
+            public void afterConnectionEstablished(WebSocketSession session) throws Exception {
+                boolean deflate = isDeflating(session);
+                (deflate ? deflatingSessions : plainSessions).incrementAndGet();
+                // the sub-protocol handler sends through the session it is given here
+                super.afterConnectionEstablished(new MeasuredSession(session, deflate));
+            }
+
+            @Override
+            public void afterConnectionClosed(WebSocketSession session, CloseStatus closeStatus) throws Exception {
+                (isDeflating(session) ? deflatingSessions : plainSessions).decrementAndGet();
+                super.afterConnectionClosed(session, closeStatus);
+            }
+        };
+    }
+
+    static boolean isDeflating(WebSocketSession session) {
+        for(WebSocketExtension extension : session.getExtensions()) {
+            if(PERMESSAGE_DEFLATE.equalsIgnoreCase(extension.getName())) return true;
+        }
+        return false;
+    }
+
+    // deflated size over original size, as a raw deflate stream of its own
+    static double deflateRatio(byte[] payload) {
+        if(payload.length == 0) return 1;
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            deflater.setInput(payload);
+            deflater.finish();
+            byte[] buffer = new byte[Math.max(64, payload.length)];
+            long compressed = 0;
+            while(!deflater.finished()) compressed += deflater.deflate(buffer);
+            return (double) compressed / payload.length;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    // declines permessage-deflate when compression is off, everything else is negotiated as before
+    class HandshakeHandler extends DefaultHandshakeHandler {
+        HandshakeHandler() {
+            super(new UpgradeStrategy());
+        }
+
+        @Override
+        protected List<WebSocketExtension> filterRequestedExtensions(ServerHttpRequest request, List<WebSocketExtension> requested,
+                                                                     List<WebSocketExtension> supported) {
+            List<WebSocketExtension> accepted = super.filterRequestedExtensions(request, requested, supported);
+            if(enabled) return accepted;
+            return accepted.stream().filter(e -> !PERMESSAGE_DEFLATE.equalsIgnoreCase(e.getName())).toList();
+        }
+    }
+
+    // Tomcat negotiates its own extensions from the request's Sec-WebSocket-Extensions header, whatever
+    // was selected here, so when deflate was declined it doesn't get to see the client's offer
+    private static class UpgradeStrategy extends StandardWebSocketUpgradeStrategy {
+        private static final String EXTENSIONS_HEADER = "Sec-WebSocket-Extensions";
+
+        @Override
+        protected void upgradeHttpToWebSocket(HttpServletRequest request, HttpServletResponse response,
+                                              ServerEndpointConfig endpointConfig, Map<String, String> pathParams) throws Exception {
+            boolean deflate = false;
+            for(Extension extension : endpointConfig.getExtensions()) deflate |= PERMESSAGE_DEFLATE.equalsIgnoreCase(extension.getName());
+            super.upgradeHttpToWebSocket(deflate ? request : new HttpServletRequestWrapper(request) {
+                @Override
+                public String getHeader(String name) {
+                    return EXTENSIONS_HEADER.equalsIgnoreCase(name) ? null : super.getHeader(name);
+                }
+
+                @Override
+                public Enumeration<String> getHeaders(String name) {
+                    return EXTENSIONS_HEADER.equalsIgnoreCase(name) ? Collections.emptyEnumeration() : super.getHeaders(name);
+                }
+            }, response, endpointConfig, pathParams);
+        }
+    }
+
+    private class MeasuredSession extends WebSocketSessionDecorator {
+        private final boolean deflate;
+
+        MeasuredSession(WebSocketSession session, boolean deflate) {
+            super(session);
+            this.deflate = deflate;
+        }
+
+        @Override
+        public void sendMessage(WebSocketMessage<?> message) throws IOException {
+            if(message instanceof TextMessage text && ThreadLocalRandom.current().nextInt(sampleRate) == 0) {
+                byte[] payload = text.asBytes();
+                (deflate ? deflatedBytes : plainBytes).increment((double) payload.length * sampleRate);
+                if(deflate) ratio.record(deflateRatio(payload));
+            }
+            super.sendMessage(message);
+        }
+    }
+}
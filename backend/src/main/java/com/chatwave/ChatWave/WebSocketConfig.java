@@ -1,24 +1,58 @@
 package com.chatwave.ChatWave;
 
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.messaging.simp.config.ChannelRegistration;
 import org.springframework.messaging.simp.config.MessageBrokerRegistry;
 import org.springframework.web.socket.config.annotation.EnableWebSocketMessageBroker;
 import org.springframework.web.socket.config.annotation.StompEndpointRegistry;
 import org.springframework.web.socket.config.annotation.WebSocketConfigurer;
 import org.springframework.web.socket.config.annotation.WebSocketMessageBrokerConfigurer;
+import org.springframework.web.socket.config.annotation.WebSocketTransportRegistration;
 
 @Configuration
 @EnableWebSocketMessageBroker
 public class WebSocketConfig implements WebSocketMessageBrokerConfigurer{
+    private final StompAuthInterceptor stompAuthInterceptor;
+    private final DeliveryMetrics deliveryMetrics;
+    // only with chatwave.cluster.enabled=true
+    private final ObjectProvider<ClusterFanout> clusterFanout;
+    private final WebSocketCompression webSocketCompression;
+
+    public WebSocketConfig(StompAuthInterceptor stompAuthInterceptor, DeliveryMetrics deliveryMetrics,
+                           ObjectProvider<ClusterFanout> clusterFanout, WebSocketCompression webSocketCompression) {
+        this.stompAuthInterceptor = stompAuthInterceptor;
+        this.deliveryMetrics = deliveryMetrics;
+        this.clusterFanout = clusterFanout;
+        this.webSocketCompression = webSocketCompression;
+    }
 
     @Override
     public void configureMessageBroker(MessageBrokerRegistry registry) {
         registry.enableSimpleBroker("/topic","/queue");
         registry.setApplicationDestinationPrefixes("/app");
+        registry.setUserDestinationPrefix("/user");
+        clusterFanout.ifAvailable(fanout -> registry.configureBrokerChannel().interceptors(fanout));
+    }
+
+    @Override
+    public void configureClientInboundChannel(ChannelRegistration registration) {
+        registration.interceptors(deliveryMetrics.inbound(), stompAuthInterceptor);
+    }
+
+    @Override
+    public void configureClientOutboundChannel(ChannelRegistration registration) {
+        registration.interceptors(deliveryMetrics.outbound());
+    }
+
+    @Override
+    public void configureWebSocketTransport(WebSocketTransportRegistration registration) {
+        registration.addDecoratorFactory(webSocketCompression::decorate);
     }
 
     @Override
     public void registerStompEndpoints(StompEndpointRegistry registry) {
-        registry.addEndpoint("/chat").setAllowedOrigins("*").withSockJS();
+        registry.addEndpoint("/chat").setHandshakeHandler(webSocketCompression.handshakeHandler())
+                .setAllowedOrigins("*").withSockJS();
     }
 }
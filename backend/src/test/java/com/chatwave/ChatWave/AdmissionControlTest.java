@@ -0,0 +1,56 @@
+package com.chatwave.ChatWave;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class AdmissionControlTest {
+    // one token a second refills nothing worth mentioning while a test runs
+    private final AdmissionControl admission = new AdmissionControl(true, 1, 10, 1, 4, 10);
+
+    @Test
+    void sessionIsThrottledOnceItsBurstIsUsedUp() {
+        for(int i = 0; i < 4; i++) admission.admit("alice", "s1", 1);
+
+        assertThatThrownBy(() -> admission.admit("alice", "s1", 1))
+                .isInstanceOfSatisfying(ThrottledException.class, e -> {
+                    assertThat(e.getScope()).isEqualTo(AdmissionControl.CONNECTION);
+                    assertThat(e.getRetryAfterMs()).isBetween(1L, 1000L);
+                });
+        // another session of the same user still has tokens of its own, the user's bucket too
+        admission.admit("alice", "s2", 1);
+        assertThat(admission.getThrottledByConnection()).isEqualTo(1);
+    }
+
+    @Test
+    void userIsThrottledAcrossSessionsAndRefusedTokensAreGivenBack() {
+        for(int s = 0; s < 5; s++) {
+            for(int i = 0; i < 2; i++) admission.admit("bob", "s" + s, 1);
+        }
+
+        assertThatThrownBy(() -> admission.admit("bob", "s5", 1))
+                .isInstanceOfSatisfying(ThrottledException.class, e -> assertThat(e.getScope()).isEqualTo(AdmissionControl.USER));
+        // s5 got its token back when the user's bucket refused, carol can use the full burst of her session
+        for(int i = 0; i < 4; i++) admission.admit("carol", "s5", 1);
+        assertThat(admission.getThrottledByUser()).isEqualTo(1);
+    }
+
+    @Test
+    void fanOutCostsMoreThanAPrivateMessage() {
+        admission.setLimits(1, 10, 0, 0, 10);
+        assertThat(admission.cost(1)).isEqualTo(1);
+        assertThat(admission.cost(49)).isEqualTo(5);
+
+        admission.admit("dave", "s1", admission.cost(49));
+        admission.admit("dave", "s1", admission.cost(49));
+        assertThatThrownBy(() -> admission.admit("dave", "s1", 1)).isInstanceOf(ThrottledException.class);
+    }
+
+    @Test
+    void zeroRateTurnsABucketOff() {
+        admission.setLimits(0, 1, 0, 1, 10);
+        for(int i = 0; i < 1000; i++) admission.admit("erin", "s1", admission.cost(1000));
+        assertThat(admission.getThrottledByUser() + admission.getThrottledByConnection()).isZero();
+    }
+}
@@ -0,0 +1,245 @@
+package com.chatwave.ChatWave;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.messaging.converter.MappingJackson2MessageConverter;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.messaging.simp.broker.SimpleBrokerMessageHandler;
+import org.springframework.messaging.simp.user.DefaultUserDestinationResolver;
+import org.springframework.messaging.simp.user.UserDestinationMessageHandler;
+import org.springframework.messaging.support.ExecutorSubscribableChannel;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.web.socket.messaging.DefaultSimpUserRegistry;
+import org.springframework.web.socket.messaging.SessionConnectedEvent;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+// Three nodes, each with its own simple broker, user destination handling and ClusterFanout, joined
+// through the loopback transport, and two more over TCP. Frames written to a node's client outbound channel count as delivered.
+class ClusterFanoutTest {
+    private final String cluster = "test-" + UUID.randomUUID();
+    private final GroupRepository groupRepository = mock(GroupRepository.class);
+    private final List<Node> nodes = new ArrayList<>();
+    private Node a, b, c;
+
+    @BeforeEach
+    void setUp() {
+        when(groupRepository.existsByGroupName("team")).thenReturn(true);
+        when(groupRepository.findMemberNames("team")).thenReturn(List.of("alice", "bob"));
+        a = node(1);
+        b = node(2);
+        c = node(3);
+        a.connect("alice", "/user" + ChatController.PRIVATE_QUEUE);
+        b.connect("bob", "/user" + ChatController.PRIVATE_QUEUE);
+        c.connect("carol", "/user" + ChatController.PRIVATE_QUEUE);
+        flushAll();
+    }
+
+    @AfterEach
+    void tearDown() {
+        nodes.forEach(node -> node.fanout.stop());
+    }
+
+    @Test
+    void privateMessageOnlyGoesToTheNodesOfSenderAndRecipient() {
+        a.controller.sendPrivateMessage(new Message(null, "bob", "hi bob"), new ChatPrincipal("alice"), "alice-0");
+        flushAll();
+
+        assertThat(a.delivered).containsExactly("alice:hi bob");
+        assertThat(b.delivered).containsExactly("bob:hi bob");
+        assertThat(c.delivered).isEmpty();
+    }
+
+    @Test
+    void messagesForANodeAreBatched() {
+        for(int i = 0; i < 10; i++) {
+            a.controller.sendPrivateMessage(new Message(null, "bob", "message " + i), new ChatPrincipal("alice"), "alice-0");
+        }
+        double batchesBefore = a.meters.get("chatwave.cluster.batches").counter().count();
+        flushAll();
+
+        assertThat(b.delivered).hasSize(10).startsWith("bob:message 0").endsWith("bob:message 9");
+        assertThat(a.meters.get("chatwave.cluster.batches").counter().count() - batchesBefore).isEqualTo(1);
+        assertThat(a.meters.get("chatwave.cluster.forwarded").counter().count()).isEqualTo(10);
+    }
+
+    @Test
+    void groupMessageOnlyGoesToNodesWithMembers() {
+        a.connect("alice", StompAuthInterceptor.GROUP_TOPIC_PREFIX + "team");
+        b.connect("bob", StompAuthInterceptor.GROUP_TOPIC_PREFIX + "team");
+        c.connect("carol", StompAuthInterceptor.GROUP_TOPIC_PREFIX + "team");
+
+        a.controller.sendGroupMessage(new Message(null, "team", "standup"), new ChatPrincipal("alice"), "alice-0");
+        flushAll();
+
+        assertThat(a.delivered).containsExactly("alice:standup");
+        assertThat(b.delivered).containsExactly("bob:standup");
+        assertThat(c.delivered).isEmpty();
+        assertThat(c.meters.get("chatwave.cluster.forwarded").counter().count()).isZero();
+    }
+
+    @Test
+    void aNodeJoiningLaterLearnsWhereEveryoneIs() {
+        Node d = node(4);
+        flushAll();
+
+        assertThat(d.fanout.getRoutes().nodesOf("alice")).containsExactly("node-1");
+        assertThat(d.fanout.getRoutes().nodesOf("carol")).containsExactly("node-3");
+        assertThat(a.fanout.getRoutes().nodesOf("bob")).containsExactly("node-2");
+    }
+
+    @Test
+    void aNodeWithoutADistinctNodeIdIsRefused() {
+        assertThatThrownBy(() -> node(2)).isInstanceOf(IllegalStateException.class);
+        assertThatThrownBy(() -> new ClusterFanout(new LoopbackClusterTransport(cluster), new PresenceRegistry(),
+                new GroupMembershipCache(groupRepository, 100), new ExecutorSubscribableChannel(),
+                new MessageIdGenerator(null), 100, new SimpleMeterRegistry())).isInstanceOf(IllegalStateException.class);
+        assertThat(a.fanout.getRoutes().nodesOf("bob")).containsExactly("node-2");
+    }
+
+    @Test
+    void usersLeavingAndNodesLeavingAreForgotten() {
+        c.disconnect("carol");
+        flushAll();
+        assertThat(a.fanout.getRoutes().nodesOf("carol")).isEmpty();
+
+        b.fanout.stop();
+        assertThat(a.fanout.getRoutes().nodesOf("bob")).isEmpty();
+        a.controller.sendPrivateMessage(new Message(null, "bob", "anyone?"), new ChatPrincipal("alice"), "alice-0");
+        flushAll();
+        assertThat(b.delivered).isEmpty();
+    }
+
+    @Test
+    void membershipChangesInvalidateTheOtherNodesCaches() {
+        assertThat(b.groups.isMember("team", "carol")).isFalse();
+        when(groupRepository.findMemberNames("team")).thenReturn(List.of("alice", "bob", "carol"));
+        a.groups.put("team", Set.of("alice", "bob", "carol"));
+        flushAll();
+
+        assertThat(b.groups.isMember("team", "carol")).isTrue();
+        verify(groupRepository, times(2)).findMemberNames("team");
+    }
+
+    @Test
+    void nodesJoinedOverTcpLearnWhereEveryoneIsAndForward() throws InterruptedException {
+        TcpClusterTransport first = new TcpClusterTransport(cluster, "127.0.0.1:0", List.of(), 50);
+        Node d = node(5, first);
+        Node e = node(6, new TcpClusterTransport(cluster, "127.0.0.1:0", List.of(first.getAddress()), 50));
+        d.connect("dave", "/user" + ChatController.PRIVATE_QUEUE);
+        e.connect("erin", "/user" + ChatController.PRIVATE_QUEUE);
+
+        for(long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10); System.nanoTime() < deadline; ) {
+            flushAll();
+            if(!d.fanout.getRoutes().nodesOf("erin").isEmpty() && !e.fanout.getRoutes().nodesOf("dave").isEmpty()) break;
+            Thread.sleep(20);
+        }
+        assertThat(d.fanout.getRoutes().nodesOf("erin")).containsExactly("node-6");
+        assertThat(e.fanout.getRoutes().nodesOf("dave")).containsExactly("node-5");
+
+        d.controller.sendPrivateMessage(new Message(null, "erin", "over tcp"), new ChatPrincipal("dave"), "dave-0");
+        flushAll();
+        for(long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10); e.delivered.isEmpty() && System.nanoTime() < deadline; ) {
+            Thread.sleep(20);
+        }
+        assertThat(e.delivered).containsExactly("erin:over tcp");
+    }
+
+    private void flushAll() {
+        // a flush can queue answers on other nodes (snapshots for a joining node)
+        for(int round = 0; round < 2; round++) nodes.forEach(node -> node.fanout.flush());
+    }
+
+    private Node node(int id) {
+        return node(id, new LoopbackClusterTransport(cluster));
+    }
+
+    private Node node(int id, ClusterTransport transport) {
+        Node node = new Node(id, transport);
+        nodes.add(node);
+        return node;
+    }
+
+    private class Node {
+        final ExecutorSubscribableChannel clientInbound = new ExecutorSubscribableChannel();
+        final DefaultSimpUserRegistry userRegistry = new DefaultSimpUserRegistry();
+        final PresenceRegistry presence = new PresenceRegistry();
+        final GroupMembershipCache groups = new GroupMembershipCache(groupRepository, 100);
+        final SimpleMeterRegistry meters = new SimpleMeterRegistry();
+        final List<String> delivered = new CopyOnWriteArrayList<>();
+        final ClusterFanout fanout;
+        final ChatController controller;
+        private int sessions;
+
+        Node(int id, ClusterTransport transport) {
+            ExecutorSubscribableChannel clientOutbound = new ExecutorSubscribableChannel();
+            ExecutorSubscribableChannel brokerChannel = new ExecutorSubscribableChannel();
+            clientOutbound.subscribe(message -> {
+                if(SimpMessageHeaderAccessor.getMessageType(message.getHeaders()) != SimpMessageType.MESSAGE) return;
+                String sessionId = SimpMessageHeaderAccessor.getSessionId(message.getHeaders());
+                String json = new String((byte[]) message.getPayload(), StandardCharsets.UTF_8);
+                delivered.add(sessionId.substring(0, sessionId.indexOf('-')) + ":" + json.replaceAll(".*\"msg\":\"([^\"]*)\".*", "$1"));
+            });
+            new SimpleBrokerMessageHandler(clientInbound, clientOutbound, brokerChannel, List.of("/topic", "/queue")).start();
+            new UserDestinationMessageHandler(clientInbound, brokerChannel, new DefaultUserDestinationResolver(userRegistry)).start();
+
+            fanout = new ClusterFanout(transport, presence, groups, brokerChannel, new MessageIdGenerator(id), 100, meters);
+            brokerChannel.addInterceptor(fanout);
+            SimpMessagingTemplate template = new SimpMessagingTemplate(brokerChannel);
+            template.setMessageConverter(new MappingJackson2MessageConverter(Jackson2ObjectMapperBuilder.json().build()));
+
+            ChatService chatService = mock(ChatService.class);
+            when(chatService.saveMessage(anyString(), anyString(), anyString()))
+                    .thenAnswer(inv -> new Message(inv.getArgument(0), inv.getArgument(1), inv.getArgument(2)));
+            when(chatService.saveGroupMessage(anyString(), anyString(), anyString()))
+                    .thenAnswer(inv -> new Message(inv.getArgument(0), inv.getArgument(1), inv.getArgument(2)));
+            when(chatService.getGroupMembers("team")).thenReturn(Set.of("alice", "bob", "carol"));
+            controller = new ChatController(chatService, template, new AdmissionControl(true, 20, 40, 20, 40, 10), mock(ConversationSignals.class));
+            fanout.start();
+        }
+
+        // a session of username subscribed to destination, session ids start with the username
+        void connect(String username, String destination) {
+            ChatPrincipal principal = new ChatPrincipal(username);
+            String sessionId = username + "-" + (sessions++);
+
+            SimpMessageHeaderAccessor connect = SimpMessageHeaderAccessor.create(SimpMessageType.CONNECT);
+            connect.setSessionId(sessionId);
+            connect.setUser(principal);
+            org.springframework.messaging.Message<byte[]> connectMessage = MessageBuilder.createMessage(new byte[0], connect.getMessageHeaders());
+            clientInbound.send(connectMessage);
+            userRegistry.onApplicationEvent(new SessionConnectedEvent(this, connectMessage, principal));
+            presence.connect(sessionId, username);
+
+            SimpMessageHeaderAccessor subscribe = SimpMessageHeaderAccessor.create(SimpMessageType.SUBSCRIBE);
+            subscribe.setSessionId(sessionId);
+            subscribe.setSubscriptionId("sub" + sessionId);
+            subscribe.setDestination(destination);
+            subscribe.setUser(principal);
+            clientInbound.send(MessageBuilder.createMessage(new byte[0], subscribe.getMessageHeaders()));
+        }
+
+        void disconnect(String username) {
+            presence.remove(username);
+        }
+    }
+}
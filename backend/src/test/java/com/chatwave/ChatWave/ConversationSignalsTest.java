@@ -0,0 +1,122 @@
+package com.chatwave.ChatWave;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.messaging.simp.SimpMessageSendingOperations;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.clearInvocations;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class ConversationSignalsTest {
+    private static final String TEAM_SIGNALS = StompAuthInterceptor.GROUP_SIGNAL_PREFIX + "team";
+
+    private final SimpMessageSendingOperations template = mock(SimpMessageSendingOperations.class);
+    private final ReadWatermarks watermarks = mock(ReadWatermarks.class);
+    private final PresenceRegistry registry = new PresenceRegistry();
+    private final ConversationSignals signals = new ConversationSignals(template, watermarks, registry, 60_000);
+
+    @BeforeEach
+    void setUp() {
+        signals.register();
+    }
+
+    @Test
+    void typingIsPublishedOnceWhileItLasts() {
+        for(int i = 0; i < 50; i++) signals.typing("alice", "team", true, true);
+        signals.flush();
+        signals.typing("alice", "team", true, true);
+        signals.flush();
+
+        ConversationSignal signal = published(TEAM_SIGNALS);
+        assertThat(signal.getSender()).isEqualTo("alice");
+        assertThat(signal.getTyping()).isTrue();
+        assertThat(signal.getReadUpTo()).isNull();
+        assertThat(signals.getTyping()).isEqualTo(1);
+
+        signals.typing("alice", "team", true, false);
+        signals.flush();
+        verify(template, times(2)).convertAndSend(eq(TEAM_SIGNALS), any(Object.class));
+        assertThat(signals.getTyping()).isZero();
+    }
+
+    @Test
+    void startingAndStoppingWithinOneIntervalCostsNothing() {
+        signals.typing("alice", "bob", false, true);
+        signals.typing("alice", "bob", false, false);
+        signals.flush();
+
+        verify(template, never()).convertAndSendToUser(anyString(), anyString(), any(Object.class));
+    }
+
+    @Test
+    void aMessageEndsTypingWithoutASignal() {
+        signals.typing("alice", "bob", false, true);
+        signals.flush();
+        clearInvocations(template);
+
+        signals.messageSent("alice", "bob", false);
+        signals.flush();
+        verify(template, never()).convertAndSendToUser(anyString(), anyString(), any(Object.class));
+
+        // bob dropped the indicator with the message, typing again has to tell him again
+        signals.typing("alice", "bob", false, true);
+        signals.flush();
+        assertThat(published("bob").getTyping()).isTrue();
+    }
+
+    @Test
+    void typingEndsWhenItIsNotRepeatedOrTheSenderLeaves() throws InterruptedException {
+        ConversationSignals quick = new ConversationSignals(template, watermarks, registry, 1);
+        quick.typing("alice", "bob", false, true);
+        quick.flush();
+        Thread.sleep(5);
+        quick.flush();
+        verify(template, times(2)).convertAndSendToUser(eq("bob"), eq(ConversationSignals.SIGNAL_QUEUE), any(Object.class));
+        assertThat(quick.getTyping()).isZero();
+
+        registry.connect("s1", "carol");
+        signals.typing("carol", "team", true, true);
+        signals.flush();
+        registry.disconnect("s1");
+        signals.flush();
+        ArgumentCaptor<Object> payload = ArgumentCaptor.forClass(Object.class);
+        verify(template, times(2)).convertAndSend(eq(TEAM_SIGNALS), payload.capture());
+        assertThat(((ConversationSignal) payload.getValue()).getTyping()).isFalse();
+    }
+
+    @Test
+    void readReceiptsCollapseIntoTheHighestAndGoToBothSides() {
+        long first = new MessageIdGenerator(0).nextId();
+        long second = first + 1;
+        when(watermarks.advance(ConversationKey.direct("alice", "bob"), "alice", second)).thenReturn(true);
+
+        signals.read("alice", "bob", false, second);
+        signals.read("alice", "bob", false, first);
+        // not handed out yet, ignored
+        signals.read("alice", "bob", false, Long.MAX_VALUE >>> 11);
+        signals.flush();
+
+        verify(watermarks).advance(ConversationKey.direct("alice", "bob"), "alice", second);
+        assertThat(published("bob").getReadUpTo()).isEqualTo(second);
+        // alice's other sessions mark the conversation read as well
+        assertThat(published("alice").getReadUpTo()).isEqualTo(second);
+        assertThat(signals.getReadReceived()).isEqualTo(3);
+        assertThat(signals.getPublished()).isEqualTo(1);
+    }
+
+    private ConversationSignal published(String userOrTopic) {
+        ArgumentCaptor<Object> payload = ArgumentCaptor.forClass(Object.class);
+        if(userOrTopic.startsWith("/topic/")) verify(template).convertAndSend(eq(userOrTopic), payload.capture());
+        else verify(template).convertAndSendToUser(eq(userOrTopic), eq(ConversationSignals.SIGNAL_QUEUE), payload.capture());
+        return (ConversationSignal) payload.getValue();
+    }
+}
@@ -0,0 +1,89 @@
+package com.chatwave.ChatWave;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.messaging.simp.stomp.StompCommand;
+import org.springframework.messaging.simp.stomp.StompHeaderAccessor;
+import org.springframework.messaging.support.ExecutorSubscribableChannel;
+import org.springframework.messaging.support.MessageBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class DeliveryMetricsTest {
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private final ExecutorSubscribableChannel inbound = new ExecutorSubscribableChannel();
+    private final ExecutorSubscribableChannel outbound = new ExecutorSubscribableChannel();
+    private final List<Message<?>> written = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() {
+        DeliveryMetrics metrics = new DeliveryMetrics(registry);
+        inbound.addInterceptor(metrics.inbound());
+        outbound.addInterceptor(metrics.outbound());
+        outbound.subscribe(written::add);
+        // what ChatController does for a group message and a private one
+        inbound.subscribe(message -> {
+            outbound.send(outboundMessage(StompAuthInterceptor.GROUP_TOPIC_PREFIX + "team"));
+            outbound.send(outboundMessage(ChatController.PRIVATE_QUEUE + "-usersession1"));
+        });
+    }
+
+    @Test
+    void framesCausedByASendAreTimedPerDestinationType() {
+        inbound.send(sendFrame());
+
+        assertThat(written).hasSize(2);
+        assertThat(written).allSatisfy(message -> assertThat(message.getHeaders()).containsKey(DeliveryMetrics.RECEIVED_AT_HEADER));
+        assertThat(timerCount("group")).isEqualTo(1);
+        assertThat(timerCount("private")).isEqualTo(1);
+        assertThat(registry.get("chatwave.message.delivery").tag("destination", "group").timer().totalTime(TimeUnit.NANOSECONDS))
+                .isPositive();
+    }
+
+    @Test
+    void messagesSentOutsideOfASendAreNotTimed() {
+        outbound.send(outboundMessage(PresenceBroadcaster.PRESENCE_TOPIC));
+        inbound.send(sendFrame());
+        outbound.send(outboundMessage(PresenceBroadcaster.PRESENCE_TOPIC));
+
+        assertThat(timerCount("presence")).isZero();
+        assertThat(written.get(0).getHeaders()).doesNotContainKey(DeliveryMetrics.RECEIVED_AT_HEADER);
+        assertThat(written.get(3).getHeaders()).doesNotContainKey(DeliveryMetrics.RECEIVED_AT_HEADER);
+    }
+
+    @Test
+    void destinationTypes() {
+        assertThat(DeliveryMetrics.destinationType("/queue/messages-user3f2a")).isEqualTo("private");
+        assertThat(DeliveryMetrics.destinationType("/topic/group/team")).isEqualTo("group");
+        assertThat(DeliveryMetrics.destinationType("/queue/history-user3f2a")).isEqualTo("history");
+        assertThat(DeliveryMetrics.destinationType("/topic/presence")).isEqualTo("presence");
+        assertThat(DeliveryMetrics.destinationType("/queue/errors-user3f2a")).isEqualTo("error");
+        assertThat(DeliveryMetrics.destinationType(null)).isEqualTo("other");
+    }
+
+    private long timerCount(String destinationType) {
+        return registry.get("chatwave.message.delivery").tag("destination", destinationType).timer().count();
+    }
+
+    private static Message<byte[]> sendFrame() {
+        StompHeaderAccessor send = StompHeaderAccessor.create(StompCommand.SEND);
+        send.setDestination("/app/sendGroup");
+        send.setSessionId("session1");
+        send.setLeaveMutable(true);
+        return MessageBuilder.createMessage(new byte[0], send.getMessageHeaders());
+    }
+
+    private static Message<byte[]> outboundMessage(String destination) {
+        SimpMessageHeaderAccessor accessor = SimpMessageHeaderAccessor.create(SimpMessageType.MESSAGE);
+        accessor.setDestination(destination);
+        return MessageBuilder.createMessage(new byte[0], accessor.getMessageHeaders());
+    }
+}
@@ -0,0 +1,63 @@
+package com.chatwave.ChatWave;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class GroupMembershipCacheTest {
+    private final GroupRepository repository = mock(GroupRepository.class);
+
+    @Test
+    void membershipIsLoadedOnceThenServedFromMemory() {
+        when(repository.existsByGroupName("team")).thenReturn(true);
+        when(repository.findMemberNames("team")).thenReturn(List.of("alice", "bob"));
+        GroupMembershipCache cache = new GroupMembershipCache(repository, 100);
+
+        for(int i = 0; i < 10; i++) {
+            assertThat(cache.isMember("team", "alice")).isTrue();
+            assertThat(cache.isMember("team", "carol")).isFalse();
+        }
+
+        verify(repository, times(1)).findMemberNames("team");
+        assertThat(cache.getMisses()).isEqualTo(1);
+        assertThat(cache.getHits()).isEqualTo(19);
+    }
+
+    @Test
+    void missingGroupIsCachedUntilItIsCreated() {
+        GroupMembershipCache cache = new GroupMembershipCache(repository, 100);
+
+        assertThat(cache.getMembers("team")).isNull();
+        assertThat(cache.getMembers("team")).isNull();
+        cache.put("team", Set.of("alice", "bob"));
+
+        assertThat(cache.isMember("team", "bob")).isTrue();
+        verify(repository, times(1)).existsByGroupName("team");
+    }
+
+    @Test
+    void leastRecentlyUsedGroupsAreEvicted() throws InterruptedException {
+        when(repository.existsByGroupName(anyString())).thenReturn(true);
+        when(repository.findMemberNames(anyString())).thenReturn(List.of("alice"));
+        GroupMembershipCache cache = new GroupMembershipCache(repository, 10);
+
+        for(int i = 0; i < 10; i++) cache.getMembers("g" + i);
+        Thread.sleep(1);
+        cache.getMembers("g0");
+        cache.getMembers("g10");
+
+        assertThat(cache.getSize()).isLessThanOrEqualTo(10);
+        assertThat(cache.getEvictions()).isPositive();
+        long misses = cache.getMisses();
+        cache.getMembers("g0");
+        assertThat(cache.getMisses()).isEqualTo(misses);
+    }
+}
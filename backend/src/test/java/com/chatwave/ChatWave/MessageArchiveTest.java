@@ -0,0 +1,92 @@
+package com.chatwave.ChatWave;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class MessageArchiveTest {
+    private static final String TEAM = ConversationKey.group("team");
+    private static final String DIRECT = ConversationKey.direct("alice", "bob");
+    private static final LocalDateTime START = LocalDateTime.of(2025, 3, 1, 12, 0);
+
+    @TempDir
+    Path directory;
+    private long nextId = 1;
+
+    // one a minute, alternating between the two conversations
+    private List<Message> messages(int count) {
+        List<Message> messages = new ArrayList<>();
+        for(int i = 0; i < count; i++) {
+            long id = nextId++;
+            boolean team = id % 2 == 0;
+            Message message = new Message("alice", team ? "team" : "bob", "message " + id, START.plusMinutes(id));
+            message.setMsgId(id);
+            message.setConversationId(team ? TEAM : DIRECT);
+            messages.add(message);
+        }
+        return messages;
+    }
+
+    private static List<String> texts(List<Message> messages) {
+        return messages.stream().map(Message::getMsg).toList();
+    }
+
+    @Test
+    void pagesReadOnAcrossSegmentsNewestFirst() throws Exception {
+        MessageArchive archive = new MessageArchive(directory.toString());
+        archive.append(LocalDate.of(2025, 3, 1), messages(10));
+        archive.append(LocalDate.of(2025, 3, 1), messages(10));
+
+        List<Message> latest = archive.before(TEAM, null, Long.MAX_VALUE, 3);
+        assertThat(texts(latest)).containsExactly("message 20", "message 18", "message 16");
+        Message oldest = latest.get(2);
+        // the page crosses from the second segment into the first
+        assertThat(texts(archive.before(TEAM, oldest.getTimestamp(), oldest.getMsgId(), 4)))
+                .containsExactly("message 14", "message 12", "message 10", "message 8");
+        assertThat(archive.before(DIRECT, null, Long.MAX_VALUE, 100)).hasSize(10);
+        assertThat(archive.getMessages()).isEqualTo(20);
+        assertThat(archive.hasConversation(ConversationKey.group("other"))).isFalse();
+    }
+
+    @Test
+    void segmentsAreFoundAgainAfterARestart() throws Exception {
+        List<Message> written = messages(50);
+        new MessageArchive(directory.toString()).append(LocalDate.of(2025, 3, 1), written);
+        Files.writeString(directory.resolve("2025-03-02_99" + MessageArchive.SUFFIX + ".tmp"), "half a segment");
+
+        MessageArchive reopened = new MessageArchive(directory.toString());
+
+        assertThat(reopened.getSegments()).isEqualTo(1);
+        List<Message> read = reopened.before(DIRECT, null, Long.MAX_VALUE, 100);
+        assertThat(read).hasSize(25);
+        Message first = read.get(read.size() - 1);
+        assertThat(first.getMsgId()).isEqualTo(1);
+        assertThat(first.getTimestamp()).isEqualTo(written.get(0).getTimestamp());
+        assertThat(first.getSender()).isEqualTo("alice");
+        assertThat(first.getConversationId()).isEqualTo(DIRECT);
+        // the leftover of an interrupted write is gone, its rows were never deleted from the table
+        try(var files = Files.list(directory)) {
+            assertThat(files.map(p -> p.getFileName().toString())).containsExactly("2025-03-01_1" + MessageArchive.SUFFIX);
+        }
+        // 50 short, similar messages deflate to well under their encoded size
+        assertThat(reopened.getBytes()).isLessThan(MessageArchive.encode(written).length / 2);
+    }
+
+    @Test
+    void messagesAreLookedUpById() throws Exception {
+        MessageArchive archive = new MessageArchive(directory.toString());
+        archive.append(LocalDate.of(2025, 3, 1), messages(10));
+        archive.append(LocalDate.of(2025, 3, 2), messages(10));
+
+        assertThat(texts(archive.findAll(List.of(3L, 17L, 42L))))
+                .containsExactlyInAnyOrder("message 3", "message 17");
+    }
+}
@@ -0,0 +1,83 @@
+package com.chatwave.ChatWave;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.data.domain.Limit;
+
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class MessageRetentionTest {
+    private static final LocalDate TODAY = LocalDate.of(2025, 6, 30);
+
+    @TempDir
+    Path directory;
+    private final MessageRepository repository = mock(MessageRepository.class);
+
+    private static Message message(LocalDate day, int n) {
+        Message message = new Message("alice", "bob", "hi " + n, day.atTime(10, 0));
+        message.setMsgId(MessageRetention.firstIdOf(day) + n);
+        message.setConversationId(n == 3 ? null : ConversationKey.direct("alice", "bob"));
+        return message;
+    }
+
+    @Test
+    void batchesStopAtTheEndOfAPartitionAndSkipRowsWithoutAConversation() throws Exception {
+        MessageArchive archive = new MessageArchive(directory.toString());
+        MessageRetention retention = new MessageRetention(repository, archive, new SimpleMeterRegistry(), true, 7, 100, 60000, 50, 60000);
+        List<Message> rows = new ArrayList<>();
+        for(int n = 1; n <= 4; n++) rows.add(message(LocalDate.of(2025, 6, 1), n));
+        rows.add(message(LocalDate.of(2025, 6, 2), 1));
+        when(repository.findIdRange(anyLong(), anyLong(), any(Limit.class))).thenReturn(rows);
+
+        LocalDate oldestHot = retention.oldestHotPartition(TODAY);
+        assertThat(oldestHot).isEqualTo(LocalDate.of(2025, 6, 24));
+        long cutoff = MessageRetention.firstIdOf(oldestHot);
+        assertThat(retention.archiveBatch(cutoff, MessageRetention.startOf(oldestHot))).isEqualTo(3);
+
+        verify(repository).deleteAllByIdInBatch(List.of(rows.get(0).getMsgId(), rows.get(1).getMsgId(), rows.get(3).getMsgId()));
+        assertThat(archive.getSegments()).isEqualTo(1);
+        assertThat(archive.findAll(List.of(rows.get(4).getMsgId()))).isEmpty();
+        assertThat(MessageRetention.partitionOf(rows.get(4).getMsgId())).isEqualTo(LocalDate.of(2025, 6, 2));
+    }
+
+    @Test
+    void rowsFromBeforeGeneratedIdsAreArchivedByTheirTimestamp() throws Exception {
+        MessageArchive archive = new MessageArchive(directory.toString());
+        MessageRetention retention = new MessageRetention(repository, archive, new SimpleMeterRegistry(), true, 7, 100, 60000, 50, 60000);
+        // IDENTITY ids, they decode to the first day of MessageIdGenerator's epoch
+        Message recent = new Message("alice", "bob", "recent", TODAY.atTime(9, 0));
+        recent.setMsgId(41L);
+        recent.setConversationId(ConversationKey.direct("alice", "bob"));
+        Message old = new Message("alice", "bob", "old", LocalDate.of(2025, 1, 1).atTime(9, 0));
+        old.setMsgId(42L);
+        old.setConversationId(ConversationKey.direct("alice", "bob"));
+        when(repository.findIdRange(anyLong(), anyLong(), any(Limit.class))).thenReturn(List.of(recent, old));
+
+        LocalDate oldestHot = retention.oldestHotPartition(TODAY);
+        assertThat(retention.archiveBatch(MessageRetention.firstIdOf(oldestHot), MessageRetention.startOf(oldestHot))).isEqualTo(1);
+
+        verify(repository).deleteAllByIdInBatch(List.of(42L));
+        assertThat(archive.findAll(List.of(41L))).isEmpty();
+        assertThat(archive.findAll(List.of(42L))).hasSize(1);
+    }
+
+    @Test
+    void aRelativeArchiveDirectoryIsRefusedWhenEnabled() {
+        MessageArchive archive = new MessageArchive("relative-archive");
+        assertThatThrownBy(() -> new MessageRetention(repository, archive, new SimpleMeterRegistry(), true, 7, 100, 60000, 50, 60000))
+                .isInstanceOf(IllegalStateException.class);
+        new MessageRetention(repository, archive, new SimpleMeterRegistry(), false, 7, 100, 60000, 50, 60000);
+    }
+}
@@ -0,0 +1,85 @@
+package com.chatwave.ChatWave;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+class MessageSearchIndexTest {
+    private final MessageSearchIndex index = new MessageSearchIndex(mock(MessageRepository.class), mock(MessageWriteBehind.class),
+            new MessageIdGenerator(0), 100);
+    private long nextId = 1;
+
+    private Message message(String sender, String recipient, String conversationId, String text) {
+        Message message = new Message(sender, recipient, text);
+        message.setMsgId(nextId++);
+        message.setConversationId(conversationId);
+        return message;
+    }
+
+    @Test
+    void textIsSplitIntoLowerCaseWords() {
+        assertThat(MessageSearchIndex.tokenize("Meet @ 10:30, café-bar?")).containsExactly("meet", "10", "30", "café", "bar");
+    }
+
+    @Test
+    void everyTermHasToMatchAndTheBetterMatchRanksFirst() {
+        String dm = ConversationKey.direct("alice", "bob");
+        index.index(List.of(
+                message("alice", "bob", dm, "lunch tomorrow?"),
+                message("bob", "alice", dm, "lunch lunch lunch tomorrow tomorrow"),
+                message("alice", "bob", dm, "tomorrow is fine"),
+                message("bob", "alice", dm, "Lunch at noon, tomorrow then")));
+
+        MessageSearchIndex.Hits hits = index.search(List.of(dm), "Tomorrow LUNCH", 0, 10);
+
+        assertThat(hits.getTotal()).isEqualTo(3);
+        assertThat(hits.getMsgIds()).containsExactly(2L, 1L, 4L);
+        assertThat(index.search(List.of(dm), "dinner tomorrow", 0, 10).getTotal()).isZero();
+    }
+
+    @Test
+    void onlyTheGivenConversationsAreSearched() {
+        String aliceBob = ConversationKey.direct("alice", "bob");
+        String bobCarol = ConversationKey.direct("bob", "carol");
+        String team = ConversationKey.group("team");
+        index.index(List.of(
+                message("alice", "bob", aliceBob, "the release is out"),
+                message("carol", "bob", bobCarol, "release notes please"),
+                message("bob", "team", team, "release party")));
+
+        assertThat(index.directConversationsOf("alice")).containsExactly(aliceBob);
+        assertThat(index.directConversationsOf("bob")).containsExactlyInAnyOrder(aliceBob, bobCarol);
+        assertThat(index.search(Set.of(aliceBob, team), "release", 0, 10).getMsgIds()).containsExactlyInAnyOrder(1L, 3L);
+    }
+
+    @Test
+    void pagesFollowTheRanking() {
+        String team = ConversationKey.group("team");
+        List<Message> batch = new ArrayList<>();
+        for(int i = 0; i < 25; i++) batch.add(message("alice", "team", team, "standup notes " + i));
+        index.index(batch);
+
+        List<Long> all = index.search(List.of(team), "standup", 0, 25).getMsgIds();
+        List<Long> paged = new ArrayList<>();
+        for(int page = 0; page < 3; page++) paged.addAll(index.search(List.of(team), "standup", page, 10).getMsgIds());
+
+        // equally good matches, newest first
+        assertThat(all).hasSize(25).first().isEqualTo(25L);
+        assertThat(paged).isEqualTo(all);
+        assertThat(index.search(List.of(team), "standup", 3, 10).getMsgIds()).isEmpty();
+    }
+
+    @Test
+    void emptyAndHugePagesFindNothing() {
+        String team = ConversationKey.group("team");
+        index.index(List.of(message("alice", "team", team, "standup notes")));
+
+        assertThat(index.search(List.of(team), "standup", 0, 0).getMsgIds()).isEmpty();
+        assertThat(index.search(List.of(team), "standup", Integer.MAX_VALUE, 50).getMsgIds()).isEmpty();
+    }
+}
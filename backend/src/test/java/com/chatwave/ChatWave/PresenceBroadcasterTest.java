@@ -0,0 +1,71 @@
+package com.chatwave.ChatWave;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.messaging.simp.SimpMessageSendingOperations;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+class PresenceBroadcasterTest {
+    private final SimpMessageSendingOperations template = mock(SimpMessageSendingOperations.class);
+    private final PresenceRegistry registry = new PresenceRegistry();
+    private final PresenceBroadcaster broadcaster = new PresenceBroadcaster(template, registry);
+
+    @BeforeEach
+    void setUp() {
+        broadcaster.register();
+    }
+
+    @Test
+    void loginStormGoesOutAsOneDelta() {
+        for(int i = 0; i < 1000; i++) registry.connect("s" + i, "user" + i);
+        broadcaster.flush();
+
+        PresenceDelta delta = published();
+        assertThat(delta.getVersion()).isEqualTo(1);
+        assertThat(delta.getJoined()).hasSize(1000);
+        assertThat(delta.getLeft()).isEmpty();
+        assertThat(broadcaster.snapshot().getVersion()).isEqualTo(1);
+        assertThat(broadcaster.snapshot().getUsers()).hasSize(1000);
+    }
+
+    @Test
+    void joinAndLeaveWithinOneIntervalCancelOut() {
+        registry.connect("s1", "alice");
+        registry.disconnect("s1");
+        broadcaster.flush();
+
+        verify(template, never()).convertAndSend(eq(PresenceBroadcaster.PRESENCE_TOPIC), any(Object.class));
+        assertThat(broadcaster.snapshot().getVersion()).isZero();
+    }
+
+    @Test
+    void snapshotFollowsTheDeltaVersions() {
+        registry.connect("s1", "alice");
+        registry.connect("s2", "bob");
+        broadcaster.flush();
+        PresenceSnapshot first = broadcaster.snapshot();
+
+        registry.disconnect("s2");
+        registry.connect("s3", "carol");
+        broadcaster.flush();
+
+        PresenceSnapshot second = broadcaster.snapshot();
+        assertThat(first.getUsers()).containsExactlyInAnyOrder("alice", "bob");
+        assertThat(second.getVersion()).isEqualTo(first.getVersion() + 1);
+        assertThat(second.getUsers()).containsExactlyInAnyOrder("alice", "carol");
+        assertThat(broadcaster.snapshot()).isSameAs(second);
+    }
+
+    private PresenceDelta published() {
+        ArgumentCaptor<Object> payload = ArgumentCaptor.forClass(Object.class);
+        verify(template).convertAndSend(eq(PresenceBroadcaster.PRESENCE_TOPIC), payload.capture());
+        return (PresenceDelta) payload.getValue();
+    }
+}
@@ -0,0 +1,69 @@
+package com.chatwave.ChatWave;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class PresenceRegistryTest {
+
+    @Test
+    void userStaysOnlineUntilTheLastSessionDisconnects() {
+        PresenceRegistry registry = new PresenceRegistry();
+        List<String> changes = new ArrayList<>();
+        registry.addListener((username, online) -> changes.add(username + (online ? " on" : " off")));
+
+        assertThat(registry.connect("s1", "alice")).isTrue();
+        assertThat(registry.connect("s2", "alice")).isFalse();
+        assertThat(registry.disconnect("s1")).isFalse();
+        assertThat(registry.isOnline("alice")).isTrue();
+        assertThat(registry.disconnect("s2")).isTrue();
+        assertThat(registry.disconnect("s2")).isFalse();
+
+        assertThat(registry.isOnline("alice")).isFalse();
+        assertThat(changes).containsExactly("alice on", "alice off");
+    }
+
+    @Test
+    void snapshotIsReusedUntilPresenceChanges() {
+        PresenceRegistry registry = new PresenceRegistry();
+        registry.connect("s1", "alice");
+        registry.connect("s2", "bob");
+
+        Set<String> first = registry.onlineUsers();
+        assertThat(first).containsExactlyInAnyOrder("alice", "bob");
+        assertThat(registry.onlineUsers()).isSameAs(first);
+
+        registry.disconnect("s2");
+        assertThat(registry.onlineUsers()).containsExactly("alice");
+        assertThat(first).containsExactlyInAnyOrder("alice", "bob");
+    }
+
+    @Test
+    void listenersSeeTheChangesOfAUserInOrder() throws InterruptedException {
+        PresenceRegistry registry = new PresenceRegistry();
+        List<Boolean> changes = Collections.synchronizedList(new ArrayList<>());
+        registry.addListener((username, online) -> changes.add(online));
+
+        List<Thread> threads = new ArrayList<>();
+        for(int t = 0; t < 4; t++) {
+            int thread = t;
+            threads.add(Thread.ofPlatform().start(() -> {
+                for(int i = 0; i < 2000; i++) {
+                    registry.connect("s" + thread + "-" + i, "alice");
+                    registry.disconnect("s" + thread + "-" + i);
+                }
+            }));
+        }
+        for(Thread thread : threads) thread.join();
+
+        assertThat(changes).isNotEmpty();
+        for(int i = 0; i < changes.size(); i++) assertThat(changes.get(i)).as("change %d", i).isEqualTo(i % 2 == 0);
+        assertThat(registry.isOnline("alice")).isFalse();
+        assertThat(registry.onlineUsers()).isEmpty();
+    }
+}
@@ -0,0 +1,60 @@
+package com.chatwave.ChatWave;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class ReadWatermarksTest {
+    private static final String TEAM = ConversationKey.group("team");
+
+    private final ReadMarkerRepository repository = mock(ReadMarkerRepository.class);
+    private final ReadWatermarks watermarks = new ReadWatermarks(repository, mock(PlatformTransactionManager.class), 100, new SimpleMeterRegistry());
+
+    @Test
+    void watermarksOnlyMoveForward() {
+        assertThat(watermarks.advance(TEAM, "alice", 10)).isTrue();
+        assertThat(watermarks.advance(TEAM, "alice", 10)).isFalse();
+        assertThat(watermarks.advance(TEAM, "alice", 7)).isFalse();
+        assertThat(watermarks.advance(TEAM, "alice", 12)).isTrue();
+        assertThat(watermarks.getPending()).isEqualTo(1);
+
+        when(repository.findByConversationId(TEAM)).thenReturn(List.of(new ReadMarker(TEAM, "bob", 5)));
+        assertThat(watermarks.watermarks(TEAM)).containsEntry("alice", 12L).containsEntry("bob", 5L);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void dirtyWatermarksAreWrittenInOneBatchWithoutMovingRowsBack() {
+        ReadMarker ahead = new ReadMarker(TEAM, "alice", 50);
+        ahead.markNotNew();
+        ReadMarker behind = new ReadMarker(TEAM, "bob", 1);
+        behind.markNotNew();
+        when(repository.findAllById(any())).thenReturn(List.of(ahead, behind));
+        watermarks.advance(TEAM, "alice", 20);
+        watermarks.advance(TEAM, "bob", 20);
+        watermarks.advance(TEAM, "carol", 20);
+
+        watermarks.flush();
+
+        ArgumentCaptor<List<ReadMarker>> inserted = ArgumentCaptor.forClass(List.class);
+        verify(repository).saveAll(inserted.capture());
+        assertThat(inserted.getValue()).extracting(ReadMarker::getUsername).containsExactly("carol");
+        assertThat(inserted.getValue().get(0).isNew()).isTrue();
+        assertThat(ahead.getMsgId()).isEqualTo(50);
+        assertThat(behind.getMsgId()).isEqualTo(20);
+        assertThat(watermarks.getPending()).isZero();
+
+        watermarks.flush();
+        verify(repository, times(1)).findAllById(any());
+    }
+}
@@ -0,0 +1,143 @@
+package com.chatwave.ChatWave;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.data.domain.Limit;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class RecentMessageCacheTest {
+    private static final String TEAM = ConversationKey.group("team");
+
+    private final MessageRepository repository = mock(MessageRepository.class);
+    private long nextId = 1;
+
+    private RecentMessageCache cache(int perConversation, int maxConversations, long maxMessages) {
+        return new RecentMessageCache(repository, mock(MessageArchive.class), mock(MessageWriteBehind.class), perConversation, maxConversations, maxMessages);
+    }
+
+    // created one after the other, so (timestamp, msgId) orders them the way they were created
+    private Message message(String conversationId, String text) {
+        Message message = new Message("alice", "team", text);
+        message.setMsgId(nextId++);
+        message.setConversationId(conversationId);
+        return message;
+    }
+
+    private void inDatabase(String conversationId, List<Message> chronological) {
+        List<Message> newestFirst = new ArrayList<>(chronological);
+        Collections.reverse(newestFirst);
+        when(repository.findLatest(eq(conversationId), any(Limit.class)))
+                .thenAnswer(call -> newestFirst.subList(0, Math.min(newestFirst.size(), ((Limit) call.getArgument(1)).max())));
+    }
+
+    private static List<String> texts(MessagePage page) {
+        return page.getMessages().stream().map(Message::getMsg).toList();
+    }
+
+    @Test
+    void conversationWithArchivedMessagesHasMoreBeforeItsOldestRow() {
+        inDatabase(TEAM, List.of(message(TEAM, "one"), message(TEAM, "two")));
+        MessageArchive archive = mock(MessageArchive.class);
+        when(archive.hasConversation(TEAM)).thenReturn(true);
+        RecentMessageCache cache = new RecentMessageCache(repository, archive, mock(MessageWriteBehind.class), 4, 10, 100);
+
+        MessagePage page = cache.page(TEAM, null, null, 2);
+        assertThat(texts(page)).containsExactly("one", "two");
+        assertThat(page.isHasMore()).isTrue();
+        // past the oldest row it is up to ChatService, which reads on into the archive
+        assertThat(cache.page(TEAM, page.getBeforeTimestamp(), page.getBeforeMsgId(), 2)).isNull();
+    }
+
+    @Test
+    void latestPageIsLoadedOnceThenFollowsNewMessages() {
+        inDatabase(TEAM, List.of(message(TEAM, "one"), message(TEAM, "two")));
+        RecentMessageCache cache = cache(4, 10, 100);
+
+        assertThat(texts(cache.page(TEAM, null, null, 10))).containsExactly("one", "two");
+        cache.add(message(TEAM, "three"));
+        MessagePage page = cache.page(TEAM, null, null, 10);
+
+        assertThat(texts(page)).containsExactly("one", "two", "three");
+        assertThat(page.isHasMore()).isFalse();
+        verify(repository, times(1)).findLatest(eq(TEAM), any(Limit.class));
+        assertThat(cache.getHits()).isEqualTo(2);
+    }
+
+    @Test
+    void pagesReachingPastTheRingGoToTheDatabase() {
+        List<Message> history = new ArrayList<>();
+        for(int i = 0; i < 10; i++) history.add(message(TEAM, "m" + i));
+        inDatabase(TEAM, history);
+        RecentMessageCache cache = cache(4, 10, 100);
+
+        MessagePage latest = cache.page(TEAM, null, null, 2);
+        assertThat(texts(latest)).containsExactly("m8", "m9");
+        assertThat(latest.isHasMore()).isTrue();
+
+        MessagePage before = cache.page(TEAM, latest.getBeforeTimestamp(), latest.getBeforeMsgId(), 2);
+        assertThat(texts(before)).containsExactly("m6", "m7");
+        assertThat(before.isHasMore()).isTrue();
+
+        assertThat(cache.page(TEAM, before.getBeforeTimestamp(), before.getBeforeMsgId(), 2)).isNull();
+        assertThat(cache.page(TEAM, null, null, 5)).isNull();
+        assertThat(cache.getMisses()).isEqualTo(2);
+    }
+
+    @Test
+    void lateMessagesAreInsertedInOrderAndOnlyOnce() {
+        Message early = message(TEAM, "early");
+        Message late = message(TEAM, "late");
+        inDatabase(TEAM, List.of(late));
+        RecentMessageCache cache = cache(4, 10, 100);
+
+        cache.page(TEAM, null, null, 10);
+        // committed by the write-behind after the conversation was loaded, and the copy ChatService added
+        cache.add(early);
+        cache.add(late);
+        cache.add(early);
+
+        assertThat(texts(cache.page(TEAM, null, null, 10))).containsExactly("early", "late");
+        assertThat(cache.getMessages()).isEqualTo(2);
+    }
+
+    @Test
+    void leastRecentlyReadConversationsAreEvicted() throws InterruptedException {
+        when(repository.findLatest(anyString(), any(Limit.class))).thenReturn(List.of());
+        RecentMessageCache cache = cache(4, 10, 100);
+
+        for(int i = 0; i < 10; i++) cache.page(ConversationKey.group("g" + i), null, null, 10);
+        Thread.sleep(1);
+        cache.page(ConversationKey.group("g0"), null, null, 10);
+        cache.page(ConversationKey.group("g10"), null, null, 10);
+
+        assertThat(cache.getConversations()).isLessThanOrEqualTo(10);
+        assertThat(cache.getEvictions()).isPositive();
+        long misses = cache.getMisses();
+        cache.page(ConversationKey.group("g0"), null, null, 10);
+        assertThat(cache.getMisses()).isEqualTo(misses);
+    }
+
+    @Test
+    void theMessageCapEvictsToo() {
+        RecentMessageCache cache = cache(4, 100, 8);
+        for(int c = 0; c < 4; c++) {
+            String conversation = ConversationKey.group("g" + c);
+            inDatabase(conversation, List.of(message(conversation, "a"), message(conversation, "b"), message(conversation, "c")));
+            cache.page(conversation, null, null, 10);
+        }
+
+        assertThat(cache.getMessages()).isLessThanOrEqualTo(8);
+        assertThat(cache.getEvictions()).isPositive();
+    }
+}
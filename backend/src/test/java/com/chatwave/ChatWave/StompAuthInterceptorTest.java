@@ -0,0 +1,65 @@
+package com.chatwave.ChatWave;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.simp.stomp.StompCommand;
+import org.springframework.messaging.simp.stomp.StompHeaderAccessor;
+import org.springframework.messaging.support.MessageBuilder;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class StompAuthInterceptorTest {
+    private final GroupRepository repository = mock(GroupRepository.class);
+    private final StompAuthInterceptor interceptor = new StompAuthInterceptor(new GroupMembershipCache(repository, 100));
+    private final MessageChannel channel = mock(MessageChannel.class);
+
+    StompAuthInterceptorTest() {
+        when(repository.existsByGroupName("team")).thenReturn(true);
+        when(repository.findMemberNames("team")).thenReturn(List.of("alice", "bob"));
+    }
+
+    private Message<?> frame(StompCommand command, String user, String destination) {
+        StompHeaderAccessor accessor = StompHeaderAccessor.create(command);
+        accessor.setUser(new ChatPrincipal(user));
+        accessor.setDestination(destination);
+        accessor.setSubscriptionId("sub-1");
+        accessor.setLeaveMutable(true);
+        return MessageBuilder.createMessage(new byte[0], accessor.getMessageHeaders());
+    }
+
+    @Test
+    void nonMemberCantSubscribeToAGroupDirectlyOrThroughAWildcard() {
+        for(String destination : List.of("/topic/group/team", "/topic/signals/group/team", "/topic/group/*", "/topic/**", "/topic/group/{name}", "/topic/group/tea?")) {
+            assertThatThrownBy(() -> interceptor.preSend(frame(StompCommand.SUBSCRIBE, "carol", destination), channel))
+                    .as(destination).isInstanceOf(IllegalStateException.class);
+        }
+        // not even a member gets the pattern
+        assertThatThrownBy(() -> interceptor.preSend(frame(StompCommand.SUBSCRIBE, "alice", "/topic/group/*"), channel))
+                .isInstanceOf(IllegalStateException.class);
+    }
+
+    @Test
+    void otherSessionsQueuesAreOutOfReach() {
+        for(String destination : List.of("/queue/**", "/queue/messages-usersession1", "/queue/messages", "/user/bob/queue/messages", "/topic/anything")) {
+            assertThatThrownBy(() -> interceptor.preSend(frame(StompCommand.SUBSCRIBE, "carol", destination), channel))
+                    .as(destination).isInstanceOf(IllegalStateException.class);
+        }
+        assertThatThrownBy(() -> interceptor.preSend(frame(StompCommand.SEND, "carol", "/topic/group/team"), channel))
+                .isInstanceOf(IllegalStateException.class);
+    }
+
+    @Test
+    void ownQueuesPublicTopicsAndOwnGroupsAreAllowed() {
+        for(String destination : List.of("/user/queue/messages", "/user/queue/signals", "/topic/presence", "/app/presence",
+                "/topic/group/team", "/topic/signals/group/team")) {
+            assertThat(interceptor.preSend(frame(StompCommand.SUBSCRIBE, "alice", destination), channel)).as(destination).isNotNull();
+        }
+        assertThat(interceptor.preSend(frame(StompCommand.SEND, "alice", "/app/sendGroup"), channel)).isNotNull();
+    }
+}
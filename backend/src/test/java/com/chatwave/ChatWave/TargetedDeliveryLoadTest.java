@@ -0,0 +1,138 @@
+package com.chatwave.ChatWave;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.messaging.converter.MappingJackson2MessageConverter;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.messaging.simp.broker.SimpleBrokerMessageHandler;
+import org.springframework.messaging.simp.user.DefaultUserDestinationResolver;
+import org.springframework.messaging.simp.user.UserDestinationMessageHandler;
+import org.springframework.messaging.support.ExecutorSubscribableChannel;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.web.socket.messaging.DefaultSimpUserRegistry;
+import org.springframework.web.socket.messaging.SessionConnectedEvent;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+// Runs the real simple broker and user destination handling with USERS connected sessions and
+// counts the payload bytes leaving on the client outbound channel, broadcast vs targeted routing.
+class TargetedDeliveryLoadTest {
+    private static final int USERS = 200;
+    private static final int GROUP_SIZE = 10;
+
+    private final AtomicLong outboundBytes = new AtomicLong();
+    private final AtomicLong outboundFrames = new AtomicLong();
+    private ExecutorSubscribableChannel clientInbound;
+    private DefaultSimpUserRegistry userRegistry;
+    private SimpMessagingTemplate template;
+    private ChatService chatService;
+
+    @BeforeEach
+    void setUp() {
+        clientInbound = new ExecutorSubscribableChannel();
+        ExecutorSubscribableChannel clientOutbound = new ExecutorSubscribableChannel();
+        ExecutorSubscribableChannel brokerChannel = new ExecutorSubscribableChannel();
+        clientOutbound.subscribe(message -> {
+            if(SimpMessageHeaderAccessor.getMessageType(message.getHeaders()) != SimpMessageType.MESSAGE) return;
+            outboundBytes.addAndGet(((byte[]) message.getPayload()).length);
+            outboundFrames.incrementAndGet();
+        });
+
+        userRegistry = new DefaultSimpUserRegistry();
+        new SimpleBrokerMessageHandler(clientInbound, clientOutbound, brokerChannel, List.of("/topic", "/queue")).start();
+        new UserDestinationMessageHandler(clientInbound, brokerChannel, new DefaultUserDestinationResolver(userRegistry)).start();
+
+        template = new SimpMessagingTemplate(brokerChannel);
+        template.setMessageConverter(new MappingJackson2MessageConverter(Jackson2ObjectMapperBuilder.json().build()));
+
+        chatService = mock(ChatService.class);
+        when(chatService.saveMessage(anyString(), anyString(), anyString()))
+                .thenAnswer(inv -> new Message(inv.getArgument(0), inv.getArgument(1), inv.getArgument(2)));
+        when(chatService.saveGroupMessage(anyString(), anyString(), anyString()))
+                .thenAnswer(inv -> new Message(inv.getArgument(0), inv.getArgument(1), inv.getArgument(2)));
+        Set<String> team = new HashSet<>();
+        for(int i = 0; i < GROUP_SIZE; i++) team.add(user(i));
+        when(chatService.getGroupMembers("team")).thenReturn(team);
+    }
+
+    @Test
+    void privateMessagesOnlyReachSenderAndRecipient() {
+        for(int i = 0; i < USERS; i++) connect(i, "/topic/messages");
+        for(int i = 0; i < USERS; i++) {
+            template.convertAndSend("/topic/messages", new Message(user(i), user((i + 1) % USERS), "hello there"));
+        }
+        long broadcastBytes = outboundBytes.getAndSet(0);
+        long broadcastFrames = outboundFrames.getAndSet(0);
+
+        setUp();
+        ChatController controller = new ChatController(chatService, template, new AdmissionControl(true, 20, 40, 20, 40, 10), mock(ConversationSignals.class));
+        for(int i = 0; i < USERS; i++) connect(i, "/user" + ChatController.PRIVATE_QUEUE);
+        for(int i = 0; i < USERS; i++) {
+            controller.sendPrivateMessage(new Message(null, user((i + 1) % USERS), "hello there"), new ChatPrincipal(user(i)), user(i) + "-0");
+        }
+        System.out.printf("private, %d users : broadcast %d frames / %d bytes, targeted %d frames / %d bytes%n",
+                USERS, broadcastFrames, broadcastBytes, outboundFrames.get(), outboundBytes.get());
+
+        assertThat(broadcastFrames).isEqualTo((long) USERS * USERS);
+        assertThat(outboundFrames.get()).isEqualTo(2L * USERS);
+        assertThat(outboundBytes.get() * 10).isLessThan(broadcastBytes);
+    }
+
+    @Test
+    void groupMessagesOnlyReachMembers() {
+        for(int i = 0; i < USERS; i++) connect(i, "/topic/messages");
+        for(int i = 0; i < GROUP_SIZE; i++) {
+            template.convertAndSend("/topic/messages", new Message(user(i), "team", "standup in 5"));
+        }
+        long broadcastBytes = outboundBytes.getAndSet(0);
+        outboundFrames.set(0);
+
+        setUp();
+        ChatController controller = new ChatController(chatService, template, new AdmissionControl(true, 20, 40, 20, 40, 10), mock(ConversationSignals.class));
+        for(int i = 0; i < USERS; i++) {
+            connect(i, i < GROUP_SIZE ? StompAuthInterceptor.GROUP_TOPIC_PREFIX + "team" : "/user" + ChatController.PRIVATE_QUEUE);
+        }
+        for(int i = 0; i < GROUP_SIZE; i++) {
+            controller.sendGroupMessage(new Message(null, "team", "standup in 5"), new ChatPrincipal(user(i)), user(i) + "-0");
+        }
+        System.out.printf("group of %d among %d users : broadcast %d bytes, targeted %d bytes%n",
+                GROUP_SIZE, USERS, broadcastBytes, outboundBytes.get());
+
+        assertThat(outboundFrames.get()).isEqualTo((long) GROUP_SIZE * GROUP_SIZE);
+        assertThat(outboundBytes.get() * (USERS / GROUP_SIZE / 2)).isLessThan(broadcastBytes);
+    }
+
+    private static String user(int i) {
+        return "user" + i;
+    }
+
+    private void connect(int i, String destination) {
+        ChatPrincipal principal = new ChatPrincipal(user(i));
+        String sessionId = "session" + i;
+
+        SimpMessageHeaderAccessor connect = SimpMessageHeaderAccessor.create(SimpMessageType.CONNECT);
+        connect.setSessionId(sessionId);
+        connect.setUser(principal);
+        org.springframework.messaging.Message<byte[]> connectMessage = MessageBuilder.createMessage(new byte[0], connect.getMessageHeaders());
+        clientInbound.send(connectMessage);
+        userRegistry.onApplicationEvent(new SessionConnectedEvent(this, connectMessage, principal));
+
+        SimpMessageHeaderAccessor subscribe = SimpMessageHeaderAccessor.create(SimpMessageType.SUBSCRIBE);
+        subscribe.setSessionId(sessionId);
+        subscribe.setSubscriptionId("sub" + i);
+        subscribe.setDestination(destination);
+        subscribe.setUser(principal);
+        clientInbound.send(MessageBuilder.createMessage(new byte[0], subscribe.getMessageHeaders()));
+    }
+}
@@ -0,0 +1,140 @@
+package com.chatwave.ChatWave;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+// Two or three transports on ephemeral localhost ports, as separate processes would use them.
+class TcpClusterTransportTest {
+    private final List<TcpClusterTransport> transports = new ArrayList<>();
+
+    @AfterEach
+    void tearDown() {
+        for(int i = 0; i < transports.size(); i++) transports.get(i).leave("node-" + (i + 1));
+    }
+
+    @Test
+    void batchesArriveInOrderAndIntact() throws InterruptedException {
+        Recorder a = new Recorder(), b = new Recorder();
+        TcpClusterTransport first = transport(1, List.of(), a);
+        TcpClusterTransport second = transport(2, List.of(first.getAddress()), b);
+        assertThat(a.joined.poll(10, TimeUnit.SECONDS)).isEqualTo("node-2");
+        assertThat(b.joined.poll(10, TimeUnit.SECONDS)).isEqualTo("node-1");
+        assertThat(first.nodes()).containsExactlyInAnyOrder("node-1", "node-2");
+
+        ClusterBatch.ForwardedMessage message = new ClusterBatch.ForwardedMessage("/user/bob/queue/messages",
+                "application/json", "{\"msg\":\"hi\"}".getBytes(StandardCharsets.UTF_8));
+        second.send("node-1", new ClusterBatch("node-2", true, Set.of("bob", "carol"),
+                List.of(new ClusterBatch.RouteChange("dave", false)), List.of("team"), List.of(message)));
+        for(int i = 0; i < 100; i++) {
+            second.send("node-1", new ClusterBatch("node-2", false, null, List.of(new ClusterBatch.RouteChange("u" + i, true)), List.of(), List.of()));
+        }
+
+        ClusterBatch received = a.batches.poll(10, TimeUnit.SECONDS);
+        assertThat(received.getFrom()).isEqualTo("node-2");
+        assertThat(received.isHello()).isTrue();
+        assertThat(received.getSnapshot()).containsExactlyInAnyOrder("bob", "carol");
+        assertThat(received.getRoutes()).singleElement().satisfies(change -> {
+            assertThat(change.getUsername()).isEqualTo("dave");
+            assertThat(change.isOnline()).isFalse();
+        });
+        assertThat(received.getChangedGroups()).containsExactly("team");
+        assertThat(received.getMessages()).singleElement().satisfies(forwarded -> {
+            assertThat(forwarded.getDestination()).isEqualTo(message.getDestination());
+            assertThat(forwarded.getContentType()).isEqualTo("application/json");
+            assertThat(forwarded.getPayload()).isEqualTo(message.getPayload());
+        });
+        for(int i = 0; i < 100; i++) {
+            ClusterBatch next = a.batches.poll(10, TimeUnit.SECONDS);
+            assertThat(next.getSnapshot()).isNull();
+            assertThat(next.getRoutes().get(0).getUsername()).isEqualTo("u" + i);
+        }
+    }
+
+    @Test
+    void aNodeDialsBackWhoeverDialedIt() throws InterruptedException {
+        Recorder a = new Recorder(), b = new Recorder(), c = new Recorder();
+        TcpClusterTransport first = transport(1, List.of(), a);
+        TcpClusterTransport second = transport(2, List.of(first.getAddress()), b);
+        transport(3, List.of(first.getAddress(), second.getAddress()), c);
+
+        assertThat(Set.of(a.joined.poll(10, TimeUnit.SECONDS), a.joined.poll(10, TimeUnit.SECONDS))).containsExactlyInAnyOrder("node-2", "node-3");
+        assertThat(Set.of(b.joined.poll(10, TimeUnit.SECONDS), b.joined.poll(10, TimeUnit.SECONDS))).containsExactlyInAnyOrder("node-1", "node-3");
+        assertThat(second.nodes()).containsExactlyInAnyOrder("node-1", "node-2", "node-3");
+    }
+
+    @Test
+    void aNodeThatLeavesIsForgottenAndRejoinsWhenItIsBack() throws InterruptedException {
+        Recorder a = new Recorder(), b = new Recorder();
+        TcpClusterTransport first = transport(1, List.of(), a);
+        TcpClusterTransport second = transport(2, List.of(first.getAddress()), b);
+        assertThat(a.joined.poll(10, TimeUnit.SECONDS)).isEqualTo("node-2");
+
+        second.leave("node-2");
+        assertThat(a.left.poll(10, TimeUnit.SECONDS)).isEqualTo("node-2");
+        assertThat(first.nodes()).containsExactly("node-1");
+
+        Recorder restarted = new Recorder();
+        TcpClusterTransport again = new TcpClusterTransport("test", "127.0.0.1:0", List.of(first.getAddress()), 50);
+        again.join("node-2", restarted);
+        transports.set(1, again);
+        assertThat(a.joined.poll(10, TimeUnit.SECONDS)).isEqualTo("node-2");
+        assertThat(restarted.joined.poll(10, TimeUnit.SECONDS)).isEqualTo("node-1");
+    }
+
+    @Test
+    void nodesOfAnotherClusterOrWithTheSameIdAreRefused() throws InterruptedException {
+        Recorder a = new Recorder();
+        TcpClusterTransport first = transport(1, List.of(), a);
+
+        TcpClusterTransport stranger = new TcpClusterTransport("other", "127.0.0.1:0", List.of(first.getAddress()), 50);
+        stranger.join("node-2", new Recorder());
+        TcpClusterTransport twin = new TcpClusterTransport("test", "127.0.0.1:0", List.of(first.getAddress()), 50);
+        twin.join("node-1", new Recorder());
+        try {
+            assertThat(a.joined.poll(500, TimeUnit.MILLISECONDS)).isNull();
+            assertThat(first.nodes()).containsExactly("node-1");
+            assertThat(stranger.nodes()).containsExactly("node-2");
+        } finally {
+            stranger.leave("node-2");
+            twin.leave("node-1");
+        }
+    }
+
+    private TcpClusterTransport transport(int id, List<String> peers, ClusterTransport.Receiver receiver) {
+        TcpClusterTransport transport = new TcpClusterTransport("test", "127.0.0.1:0", peers, 50);
+        transport.join("node-" + id, receiver);
+        transports.add(transport);
+        return transport;
+    }
+
+    private static class Recorder implements ClusterTransport.Receiver {
+        final BlockingQueue<ClusterBatch> batches = new LinkedBlockingQueue<>();
+        final BlockingQueue<String> joined = new LinkedBlockingQueue<>();
+        final BlockingQueue<String> left = new LinkedBlockingQueue<>();
+
+        @Override
+        public void receive(ClusterBatch batch) {
+            batches.add(batch);
+        }
+
+        @Override
+        public void nodeJoined(String nodeId) {
+            joined.add(nodeId);
+        }
+
+        @Override
+        public void nodeLeft(String nodeId) {
+            left.add(nodeId);
+        }
+    }
+}
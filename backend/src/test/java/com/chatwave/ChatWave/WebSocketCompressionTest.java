@@ -0,0 +1,67 @@
+package com.chatwave.ChatWave;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketExtension;
+import org.springframework.web.socket.WebSocketHandler;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.handler.WebSocketHandlerDecorator;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class WebSocketCompressionTest {
+    private static final List<WebSocketExtension> OFFERED = List.of(
+            new WebSocketExtension(WebSocketCompression.PERMESSAGE_DEFLATE), new WebSocketExtension("x-other"));
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+    private List<String> negotiated(WebSocketCompression compression) {
+        WebSocketCompression.HandshakeHandler handler = (WebSocketCompression.HandshakeHandler) compression.handshakeHandler();
+        List<String> names = new ArrayList<>();
+        for(WebSocketExtension e : handler.filterRequestedExtensions(null, OFFERED, OFFERED)) names.add(e.getName());
+        return names;
+    }
+
+    @Test
+    void deflateIsDeclinedOnlyWhenCompressionIsOff() {
+        assertThat(negotiated(new WebSocketCompression(registry, true, 64))).containsExactly("permessage-deflate", "x-other");
+        assertThat(negotiated(new WebSocketCompression(registry, false, 64))).containsExactly("x-other");
+    }
+
+    @Test
+    void outboundMessagesOfDeflatingSessionsAreMeasured() throws Exception {
+        WebSocketCompression compression = new WebSocketCompression(registry, true, 1);
+        WebSocketSession session = mock(WebSocketSession.class);
+        when(session.getExtensions()).thenReturn(List.of(new WebSocketExtension(WebSocketCompression.PERMESSAGE_DEFLATE)));
+        List<WebSocketSession> handed = new ArrayList<>();
+        WebSocketHandler handler = mock(WebSocketHandler.class);
+        WebSocketHandler decorated = compression.decorate(new WebSocketHandlerDecorator(handler) {
+            @Override
+            public void afterConnectionEstablished(WebSocketSession s) {
+                handed.add(s);
+            }
+        });
+
+        decorated.afterConnectionEstablished(session);
+        TextMessage frame = new TextMessage("MESSAGE\ndestination:/topic/group/team\n\n" + "hello team ".repeat(20) + "\0");
+        handed.get(0).sendMessage(frame);
+
+        verify(session).sendMessage(frame);
+        assertThat(compression.getDeflatingSessions()).isEqualTo(1);
+        assertThat(registry.get("chatwave.websocket.outbound.bytes").tag("compression", "deflate").counter().count())
+                .isEqualTo(frame.getPayloadLength());
+        assertThat(registry.get("chatwave.websocket.compression.ratio").summary().count()).isEqualTo(1);
+        assertThat(registry.get("chatwave.websocket.compression.ratio").summary().max()).isLessThan(0.5);
+
+        decorated.afterConnectionClosed(session, CloseStatus.NORMAL);
+        assertThat(compression.getDeflatingSessions()).isZero();
+    }
+}
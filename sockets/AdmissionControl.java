@@ -0,0 +1,129 @@
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// Token buckets in front of MSG and GROUP_MSG, one per user and one per connection, the same scheme as the
+// backend's AdmissionControl. A message has to get its tokens from both before it is handed to
+// Server.sendPrivateMessage / sendGroupMessage : 1 for a private message, 1 more for every membersPerToken
+// recipients of a group message. A refused message is answered with THROTTLED and goes nowhere.
+// Set with -Dchatwave.admission.userRate=20 -Dchatwave.admission.userBurst=40 -Dchatwave.admission.connectionRate=20
+// -Dchatwave.admission.connectionBurst=40 -Dchatwave.admission.membersPerToken=10 (rates per second, 0 is no limit),
+// changed at runtime through http://127.0.0.1:<chatwave.metrics.port>/admission?userRate=5&userBurst=10 when
+// served (-Dchatwave.metrics.admission=true, see ServerMetrics), -Dchatwave.admission.enabled=false turns it off.
+// Only the -D settings can lift a limit, over HTTP every value has to be positive.
+public final class AdmissionControl {
+    static final String USER = "user";
+    static final String CONNECTION = "connection";
+
+    final boolean enabled = Boolean.parseBoolean(System.getProperty("chatwave.admission.enabled", "true"));
+    private volatile TokenBucket.Limit userLimit;
+    private volatile TokenBucket.Limit connectionLimit;
+    private volatile int membersPerToken;
+    private final ConcurrentHashMap<String, TokenBucket> users = new ConcurrentHashMap<>();
+    final LongAdder throttledByUser = new LongAdder();
+    final LongAdder throttledByConnection = new LongAdder();
+
+    AdmissionControl() {
+        setLimits(doubleProperty("chatwave.admission.userRate", 20), Integer.getInteger("chatwave.admission.userBurst", 40),
+                doubleProperty("chatwave.admission.connectionRate", 20), Integer.getInteger("chatwave.admission.connectionBurst", 40),
+                Integer.getInteger("chatwave.admission.membersPerToken", 10));
+    }
+
+    void setLimits(double userRate, int userBurst, double connectionRate, int connectionBurst, int membersPerToken) {
+        this.userLimit = new TokenBucket.Limit(userRate, userBurst);
+        this.connectionLimit = new TokenBucket.Limit(connectionRate, connectionBurst);
+        this.membersPerToken = Math.max(1, membersPerToken);
+    }
+
+    // what a message to that many recipients costs, the sender not counted
+    int cost(int recipients) {
+        return 1 + Math.max(0, recipients) / membersPerToken;
+    }
+
+    // 0 when the tokens were taken from the connection's and the user's bucket, otherwise the nanos until
+    // the message would be admitted and neither bucket is touched
+    long admit(String username, TokenBucket connection, int tokens) {
+        if(!enabled) return 0;
+        long now = System.nanoTime();
+        TokenBucket.Limit connectionLimit = this.connectionLimit;
+        long wait = connection.tryTake(tokens, connectionLimit, now);
+        if(wait > 0) {
+            throttledByConnection.increment();
+            return wait;
+        }
+        TokenBucket user = users.get(username);
+        if(user == null) user = users.computeIfAbsent(username, k -> new TokenBucket());
+        wait = user.tryTake(tokens, userLimit, now);
+        if(wait > 0) {
+            connection.giveBack(tokens, connectionLimit);
+            throttledByUser.increment();
+        }
+        return wait;
+    }
+
+    static long retryAfterMillis(long waitNanos) {
+        return Math.max(1, (waitNanos + 999_999) / 1_000_000);
+    }
+
+    // a full bucket is the same as no bucket, dropping those keeps the map to the users sending right now
+    void sweep() {
+        long now = System.nanoTime();
+        users.values().removeIf(bucket -> bucket.isFull(now));
+    }
+
+    // GET /admission shows the limits, any of userRate, userBurst, connectionRate, connectionBurst and
+    // membersPerToken in the query string replaces that one
+    void handle(HttpExchange exchange) throws IOException {
+        String query = exchange.getRequestURI().getQuery();
+        int status = 200;
+        if(query != null) {
+            TokenBucket.Limit user = userLimit, connection = connectionLimit;
+            double userRate = user.rate(), connectionRate = connection.rate();
+            int userBurst = user.burst(), connectionBurst = connection.burst(), perToken = membersPerToken;
+            try {
+                for(String pair : query.split("&")) {
+                    String[] kv = pair.split("=", 2);
+                    String value = kv.length > 1 ? kv[1] : "";
+                    switch (kv[0]) {
+                        case "userRate" : userRate = Double.parseDouble(value); break;
+                        case "userBurst" : userBurst = Integer.parseInt(value); break;
+                        case "connectionRate" : connectionRate = Double.parseDouble(value); break;
+                        case "connectionBurst" : connectionBurst = Integer.parseInt(value); break;
+                        case "membersPerToken" : perToken = Integer.parseInt(value); break;
+                        default : throw new IllegalArgumentException("unknown setting " + kv[0]);
+                    }
+                }
+                // a rate of 0 is no limit at all, that isn't something to be switched to remotely
+                if(!(userRate > 0) || !(connectionRate > 0) || Double.isInfinite(userRate) || Double.isInfinite(connectionRate)
+                        || userBurst <= 0 || connectionBurst <= 0 || perToken <= 0) {
+                    throw new IllegalArgumentException("rates, bursts and membersPerToken have to be positive");
+                }
+                setLimits(userRate, userBurst, connectionRate, connectionBurst, perToken);
+            } catch (IllegalArgumentException e) {
+                status = 400;
+            }
+        }
+        byte[] body = describe().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try(OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    String describe() {
+        TokenBucket.Limit user = userLimit, connection = connectionLimit;
+        return String.format(Locale.ROOT, "enabled=%s userRate=%s userBurst=%d connectionRate=%s connectionBurst=%d membersPerToken=%d%n",
+                enabled, user.rate(), user.burst(), connection.rate(), connection.burst(), membersPerToken);
+    }
+
+    private static double doubleProperty(String name, double fallback) {
+        String value = System.getProperty(name);
+        return value == null ? fallback : Double.parseDouble(value);
+    }
+}
@@ -0,0 +1,140 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// The optional binary protocol. Text stays the default, a client switches by sending the line
+// "PROTOCOL BINARY" before LOGIN, the server answers "PROTOCOL BINARY OK" and from then on both
+// directions carry frames :
+//
+//   int32 length | u8 opcode | int32 correlation | payload        (length counts everything after itself)
+//
+// Users and groups are referred to by int ids from the server's NameTable. The server sends NAME once
+// per connection before the first frame that carries an id the connection hasn't seen, RESOLVE looks
+// a name up. Replies echo the request's correlation id, pushed messages carry 0. str is u16 length +
+// UTF-8, body is the rest of the frame as UTF-8.
+//
+//   client -> server                                  server -> client
+//   LOGIN         str username                        OK       [int id]
+//   MSG           int toId, body                      ERROR    body
+//   CREATE_GROUP  str group, u16 n, n x int memberId  NAME     int id, str name
+//   GROUP_MSG     int groupId, body                   PRIVATE  int fromId, body
+//   LIST_USERS / LIST_GROUPS                          GROUP    int groupId, int fromId, body
+//   GROUP_MEMBERS int groupId                         IDS      int n, n x int id
+//   LOGOUT                                            THROTTLED int retryAfterMillis
+//   RESOLVE       str name
+public final class BinaryProtocol {
+    static final byte LOGIN = 0x01;
+    static final byte MSG = 0x02;
+    static final byte CREATE_GROUP = 0x03;
+    static final byte GROUP_MSG = 0x04;
+    static final byte LIST_USERS = 0x05;
+    static final byte GROUP_MEMBERS = 0x06;
+    static final byte LIST_GROUPS = 0x07;
+    static final byte LOGOUT = 0x08;
+    static final byte RESOLVE = 0x09;
+
+    static final byte OK = (byte) 0x80;
+    static final byte ERROR = (byte) 0x81;
+    static final byte NAME = (byte) 0x82;
+    static final byte PRIVATE = (byte) 0x83;
+    static final byte GROUP = (byte) 0x84;
+    static final byte IDS = (byte) 0x85;
+    // a MSG or GROUP_MSG refused by AdmissionControl, nothing was sent
+    static final byte THROTTLED = (byte) 0x86;
+
+    // opcode + correlation
+    static final int HEADER_LENGTH = 5;
+    static final int MAX_FRAME_LENGTH = 64 * 1024;
+
+    private BinaryProtocol() {}
+
+    static Frame ok(int correlation) {
+        return Frame.wrap(start(HEADER_LENGTH, OK, correlation).array());
+    }
+
+    static Frame ok(int correlation, int id) {
+        return Frame.wrap(start(HEADER_LENGTH + 4, OK, correlation).putInt(id).array());
+    }
+
+    static Frame error(int correlation, String text) {
+        byte[] body = text.getBytes(StandardCharsets.UTF_8);
+        return Frame.wrap(start(HEADER_LENGTH + body.length, ERROR, correlation).put(body).array());
+    }
+
+    static Frame name(int id, String name) {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        return Frame.wrap(start(HEADER_LENGTH + 6 + bytes.length, NAME, 0)
+                .putInt(id).putShort((short) bytes.length).put(bytes).array());
+    }
+
+    static Frame privateMessage(int fromId, byte[] body) {
+        return Frame.wrap(start(HEADER_LENGTH + 4 + body.length, PRIVATE, 0).putInt(fromId).put(body).array());
+    }
+
+    static Frame groupMessage(int groupId, int fromId, byte[] body) {
+        return Frame.wrap(start(HEADER_LENGTH + 8 + body.length, GROUP, 0).putInt(groupId).putInt(fromId).put(body).array());
+    }
+
+    static Frame ids(int correlation, int[] ids) {
+        ByteBuffer frame = start(HEADER_LENGTH + 4 + 4 * ids.length, IDS, correlation).putInt(ids.length);
+        for(int id : ids) frame.putInt(id);
+        return Frame.wrap(frame.array());
+    }
+
+    static Frame throttled(int correlation, long retryAfterMillis) {
+        return Frame.wrap(start(HEADER_LENGTH + 4, THROTTLED, correlation).putInt((int) Math.min(Integer.MAX_VALUE, retryAfterMillis)).array());
+    }
+
+    // a complete frame for the client side, payload already encoded
+    static byte[] request(byte opcode, int correlation, ByteBuffer payload) {
+        payload.flip();
+        return start(HEADER_LENGTH + payload.remaining(), opcode, correlation).put(payload).array();
+    }
+
+    private static ByteBuffer start(int length, byte opcode, int correlation) {
+        ByteBuffer frame = ByteBuffer.allocate(4 + length);
+        return frame.putInt(length).put(opcode).putInt(correlation);
+    }
+
+    static String readString(ByteBuffer frame) {
+        int length = Short.toUnsignedInt(frame.getShort());
+        return decode(frame, length);
+    }
+
+    static void writeString(ByteBuffer out, String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.putShort((short) bytes.length).put(bytes);
+    }
+
+    // the rest of the frame, copied out since the receive buffer is reused
+    static byte[] readBody(ByteBuffer frame) {
+        byte[] body = new byte[frame.remaining()];
+        frame.get(body);
+        return body;
+    }
+
+    static String decode(ByteBuffer frame, int length) {
+        if(frame.hasArray()) {
+            String s = new String(frame.array(), frame.arrayOffset() + frame.position(), length, StandardCharsets.UTF_8);
+            frame.position(frame.position() + length);
+            return s;
+        }
+        byte[] bytes = new byte[length];
+        frame.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // reads a text line straight off the stream, so nothing that follows it gets buffered as characters.
+    // Same terminators as BufferedReader.readLine(), an empty line between \r and \n is left to the caller.
+    static String readLine(InputStream in, ByteArrayOutputStream line) throws IOException {
+        line.reset();
+        int b;
+        while((b = in.read()) != -1) {
+            if(b == '\n' || b == '\r') return line.toString(StandardCharsets.UTF_8);
+            line.write(b);
+        }
+        return line.size() > 0 ? line.toString(StandardCharsets.UTF_8) : null;
+    }
+}
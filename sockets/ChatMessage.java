@@ -0,0 +1,61 @@
+import java.nio.charset.StandardCharsets;
+
+// A private (group == null) or group message on its way out. The text and the binary frame are each
+// built the first time a recipient speaking that protocol needs them and then shared by every
+// recipient, so a message between two binary clients is never decoded into a String.
+// Only used by the thread that sends it, the recipients' queues get the finished frames.
+public final class ChatMessage {
+    final String from;
+    final String group;
+    // delivery latency of the frames is measured from here, see ServerMetrics
+    final long acceptedAt = ServerMetrics.ENABLED ? System.nanoTime() : 0;
+    private String text;
+    private byte[] body;
+    private Frame textFrame;
+    private Frame binaryFrame;
+
+    private ChatMessage(String from, String group, String text, byte[] body) {
+        this.from = from;
+        this.group = group;
+        this.text = text;
+        this.body = body;
+    }
+
+    static ChatMessage text(String from, String group, String text) {
+        return new ChatMessage(from, group, text, null);
+    }
+
+    static ChatMessage binary(String from, String group, byte[] body) {
+        return new ChatMessage(from, group, null, body);
+    }
+
+    Frame textFrame() {
+        if(textFrame == null) {
+            if(text == null) text = new String(body, StandardCharsets.UTF_8);
+            textFrame = Frame.of(group == null
+                    ? "PRIVATE MSG FROM " + from + ", Message : " + text
+                    : "GROUP MESSAGE FROM " + from + ", Message : " + text).timed(acceptedAt, destination());
+        }
+        return textFrame;
+    }
+
+    Frame binaryFrame(NameTable names) {
+        if(binaryFrame == null) {
+            binaryFrame = group == null
+                    ? BinaryProtocol.privateMessage(names.id(from), body())
+                    : BinaryProtocol.groupMessage(names.id(group), names.id(from), body());
+            binaryFrame = binaryFrame.timed(acceptedAt, destination());
+        }
+        return binaryFrame;
+    }
+
+    // UTF-8 text of the message, what MailboxLog stores
+    byte[] body() {
+        if(body == null) body = text.getBytes(StandardCharsets.UTF_8);
+        return body;
+    }
+
+    int destination() {
+        return group == null ? ServerMetrics.PRIVATE : ServerMetrics.GROUP;
+    }
+}
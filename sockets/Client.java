@@ -1,50 +1,70 @@
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.StringJoiner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
+// Console client. In binary mode the same commands are typed, they are translated into
+// BinaryProtocol frames and whatever comes back is printed the way the text protocol would say it.
+// Headless clients (see LoadGen) hand those lines to a listener instead and are driven through send().
+//   java Client [text|binary]
 public class Client {
     private final Socket socket;
-    private BufferedReader in;
-    private BufferedWriter out;
+    private final boolean binary;
+    private final DataInputStream in;
+    private final OutputStream out;
+    private final ByteArrayOutputStream lineBytes = new ByteArrayOutputStream(256);
+    // binary mode only : names the server told us about and requests waiting for their reply
+    private final Map<Integer, String> names = new ConcurrentHashMap<>();
+    private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+    private final Map<Integer, CompletableFuture<ByteBuffer>> pending = new ConcurrentHashMap<>();
+    private final AtomicInteger nextCorrelation = new AtomicInteger();
+    // null for the console, which prints every line
+    private final Consumer<String> listener;
+
     public Client(String HOST, int PORT) throws IOException{
+        this(HOST, PORT, false);
+    }
+
+    public Client(String HOST, int PORT, boolean binary) throws IOException{
+        this(HOST, PORT, binary, null);
+    }
+
+    public Client(String HOST, int PORT, boolean binary, Consumer<String> listener) throws IOException{
         this.socket = new Socket(HOST,PORT);
-        in = new BufferedReader(new InputStreamReader(socket.getInputStream(),"UTF-8"));
-        out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(),"UTF-8"));
+        this.binary = binary;
+        this.listener = listener;
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        out = new BufferedOutputStream(socket.getOutputStream());
     }
 
     public void start() {
-        Thread th = new Thread(() -> {
-            String line;
-            try{ 
-                while((line = in.readLine()) != null) {
-                    System.out.println("[SERVER] " + line); 
-                    System.out.print("> ");
-                    System.out.flush();
-                }
-            } catch (IOException e) {
-                if (!socket.isClosed()) {
-                    System.out.println("Connection error: " + e.getMessage());
-                } else {
-                    System.out.println("Disconnected from SERRVER.");
-                }
-            }
-        });
-        th.start();
-        
+        Thread th = connect();
+
         try(Scanner sc = new Scanner(System.in)){
             while(sc.hasNextLine()) {
                 String line = sc.nextLine();
                 if(line.equalsIgnoreCase("exit")) {
-                    out.write("LOGOUT\r\n");
-                    out.flush();
+                    if(binary) writeFrame(BinaryProtocol.LOGOUT, 0, ByteBuffer.allocate(0));
+                    else writeLine("LOGOUT");
                     break;
                 }
-                out.write(line + "\r\n");
-                out.flush();
+                send(line);
             }
             th.join();
             socket.close();
@@ -56,18 +76,225 @@ public class Client {
 
     }
 
+    // starts reading what the server sends, on a virtual thread for headless clients since there may be thousands
+    public Thread connect() {
+        Runnable reader = () -> {
+            try{
+                if(binary) {
+                    writeLine("PROTOCOL BINARY");
+                    String line;
+                    while((line = BinaryProtocol.readLine(in, lineBytes)) != null) {
+                        if(line.isEmpty()) continue;
+                        print(line);
+                        if(line.equals("PROTOCOL BINARY OK")) {
+                            // the server ends lines with CRLF, the \n is still ahead of the first frame
+                            in.readByte();
+                            break;
+                        }
+                    }
+                    readFrames();
+                } else {
+                    String line;
+                    while((line = BinaryProtocol.readLine(in, lineBytes)) != null) {
+                        if(!line.isEmpty()) print(line);
+                    }
+                }
+            } catch (IOException e) {
+                if(listener != null) return;
+                if (!socket.isClosed()) {
+                    System.out.println("Connection error: " + e.getMessage());
+                } else {
+                    System.out.println("Disconnected from SERRVER.");
+                }
+            }
+        };
+        if(listener != null) return Thread.ofVirtual().start(reader);
+        Thread th = new Thread(reader);
+        th.start();
+        return th;
+    }
+
+    // one command as typed on the console, e.g. "MSG bob hi". In binary mode names are resolved to ids
+    // first, which waits for the server's reply the first time a name is used.
+    public void send(String line) throws IOException {
+        if(binary) sendCommand(line);
+        else writeLine(line);
+    }
+
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    private void print(String line) {
+        if(listener != null) {
+            listener.accept(line);
+            return;
+        }
+        System.out.println("[SERVER] " + line);
+        System.out.print("> ");
+        System.out.flush();
+    }
+
+    private void writeLine(String line) throws IOException {
+        synchronized (out) {
+            out.write((line + "\r\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        }
+    }
+
+    private void writeFrame(byte opcode, int correlation, ByteBuffer payload) throws IOException {
+        byte[] frame = BinaryProtocol.request(opcode, correlation, payload);
+        synchronized (out) {
+            out.write(frame);
+            out.flush();
+        }
+    }
+
+    // same commands as the text protocol, names are resolved to ids first
+    private void sendCommand(String line) throws IOException {
+        line = line.trim();
+        if(line.isEmpty()) return;
+        String[] parts = line.split(" ",3);
+        ByteBuffer payload = ByteBuffer.allocate(BinaryProtocol.MAX_FRAME_LENGTH);
+        byte opcode;
+        switch (parts[0].toUpperCase()) {
+            case "LOGIN":
+                if(parts.length < 2) { print("ERROR : wrong usage : LOGIN <username>"); return; }
+                opcode = BinaryProtocol.LOGIN;
+                BinaryProtocol.writeString(payload, parts[1]);
+                break;
+            case "MSG":
+            case "GROUP_MSG":
+                if(parts.length < 3) { print("ERROR usage : " + parts[0].toUpperCase() + " <to> <message>"); return; }
+                Integer to = resolve(parts[1]);
+                if(to == null) return;
+                opcode = parts[0].equalsIgnoreCase("MSG") ? BinaryProtocol.MSG : BinaryProtocol.GROUP_MSG;
+                payload.putInt(to).put(parts[2].getBytes(StandardCharsets.UTF_8));
+                break;
+            case "CREATE_GROUP":
+                if(parts.length < 3) { print("ERROR usage : CREATE_GROUP <group_name> <member1,member2,...>"); return; }
+                List<Integer> members = new ArrayList<>();
+                for(String member : parts[2].split(",")) {
+                    Integer id = resolve(member);
+                    if(id != null) members.add(id);
+                }
+                opcode = BinaryProtocol.CREATE_GROUP;
+                BinaryProtocol.writeString(payload, parts[1]);
+                payload.putShort((short) members.size());
+                members.forEach(payload::putInt);
+                break;
+            case "GROUP_MEMBERS":
+                if(parts.length < 2) { print("ERROR usage : GROUP_MEMBERS <group_name>"); return; }
+                Integer group = resolve(parts[1]);
+                if(group == null) return;
+                opcode = BinaryProtocol.GROUP_MEMBERS;
+                payload.putInt(group);
+                break;
+            case "LIST_USERS": opcode = BinaryProtocol.LIST_USERS; break;
+            case "LIST_GROUPS": opcode = BinaryProtocol.LIST_GROUPS; break;
+            case "LOGOUT": opcode = BinaryProtocol.LOGOUT; break;
+            default: print("ERROR Unknown command"); return;
+        }
+        writeFrame(opcode, nextCorrelation.incrementAndGet(), payload);
+    }
+
+    // null (and the server's reason printed) when there is no such user or group
+    private Integer resolve(String name) throws IOException {
+        Integer id = ids.get(name);
+        if(id != null) return id;
+        int correlation = nextCorrelation.incrementAndGet();
+        CompletableFuture<ByteBuffer> reply = new CompletableFuture<>();
+        pending.put(correlation, reply);
+        ByteBuffer payload = ByteBuffer.allocate(2 + 3 * name.length());
+        BinaryProtocol.writeString(payload, name);
+        writeFrame(BinaryProtocol.RESOLVE, correlation, payload);
+        try {
+            ByteBuffer frame = reply.get(5, TimeUnit.SECONDS);
+            if(frame.get(0) != BinaryProtocol.OK) return null;
+            id = frame.getInt(BinaryProtocol.HEADER_LENGTH);
+            names.put(id, name);
+            ids.put(name, id);
+            return id;
+        } catch (Exception e) {
+            print("ERROR : couldn't resolve " + name);
+            return null;
+        } finally {
+            pending.remove(correlation);
+        }
+    }
+
+    private void readFrames() throws IOException {
+        while(true) {
+            int length;
+            try {
+                length = in.readInt();
+            } catch (EOFException e) {
+                if(listener == null) System.out.println("Disconnected from SERRVER.");
+                return;
+            }
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            ByteBuffer frame = ByteBuffer.wrap(bytes);
+            byte opcode = frame.get();
+            int correlation = frame.getInt();
+            CompletableFuture<ByteBuffer> waiting = pending.get(correlation);
+            if(waiting != null) {
+                waiting.complete(frame.rewind());
+                if(opcode == BinaryProtocol.OK) continue;
+                frame.position(BinaryProtocol.HEADER_LENGTH);
+            }
+            switch (opcode) {
+                case BinaryProtocol.OK:
+                    print(frame.remaining() >= 4 ? "OK " + frame.getInt() : "OK");
+                    break;
+                case BinaryProtocol.ERROR:
+                    print("ERROR : " + text(frame));
+                    break;
+                case BinaryProtocol.THROTTLED:
+                    print("THROTTLED : retry in " + frame.getInt() + " ms");
+                    break;
+                case BinaryProtocol.NAME:
+                    int id = frame.getInt();
+                    String name = BinaryProtocol.readString(frame);
+                    names.put(id, name);
+                    ids.put(name, id);
+                    break;
+                case BinaryProtocol.PRIVATE:
+                    String from = names.get(frame.getInt());
+                    print("PRIVATE MSG FROM " + from + ", Message : " + text(frame));
+                    break;
+                case BinaryProtocol.GROUP:
+                    String group = names.get(frame.getInt());
+                    print("GROUP MESSAGE FROM " + names.get(frame.getInt()) + " in " + group + ", Message : " + text(frame));
+                    break;
+                case BinaryProtocol.IDS:
+                    StringJoiner list = new StringJoiner(",");
+                    for(int i = frame.getInt(); i > 0; i--) list.add(names.get(frame.getInt()));
+                    print(list.toString());
+                    break;
+                default:
+                    print("unknown frame " + opcode);
+            }
+        }
+    }
+
+    private static String text(ByteBuffer frame) {
+        return BinaryProtocol.decode(frame, frame.remaining());
+    }
+
     public static void main(String[] args) throws IOException{
         try{
+            boolean binary = args.length > 0 && args[0].equalsIgnoreCase("binary");
             Scanner sc = new Scanner(System.in);
 
             System.out.print("Enter HOST addres : ");
             System.out.flush();
             String host = sc.nextLine();
-            
+
             System.out.print("Enter PORT addres : ");
             int port = sc.nextInt();
 
-            Client c2 = new Client(host,port);
+            Client c2 = new Client(host,port,binary);
 
             c2.start();
             sc.close();
@@ -75,4 +302,4 @@ public class Client {
             System.out.println("Error in establishing connection : " + e);
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,63 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.StringJoiner;
+
+// Bytes allocated on the sending thread per GROUP_MSG broadcast, encoding the line once per member
+// (what ClientHandler.send(String) used to do for every recipient) versus Server.sendGroupMessage
+// queueing one shared Frame. No sockets are involved, the members' outbound queues are drained between rounds.
+//   java FanoutBench [groupSize,...] [rounds]
+public class FanoutBench {
+    private static final String TEXT = "the quick brown fox jumps over the lazy dog, 0123456789";
+
+    public static void main(String[] args) throws Exception {
+        String[] sizes = (args.length > 0 ? args[0] : "10,100,1000").split(",");
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+        System.out.printf("%-10s %20s %20s%n", "groupSize", "perMemberEncode B/op", "sharedFrame B/op");
+        for(String size : sizes) {
+            int groupSize = Integer.parseInt(size.trim());
+            Server server = new Server(Server.IoMode.NIO, 1, 0);
+            List<Server.ClientHandler> members = new ArrayList<>();
+            StringJoiner names = new StringJoiner(",");
+            for(int i = 0; i < groupSize; i++) {
+                Server.ClientHandler handler = new Server.ClientHandler(server);
+                handler.handleLine("LOGIN u" + i);
+                members.add(handler);
+                if(i > 0) names.add("u" + i);
+            }
+            members.get(0).handleLine("CREATE_GROUP bench " + names);
+            drain(members);
+
+            long legacy = 0, shared = 0;
+            for(int pass = 0; pass < 2; pass++) {   // first pass is warm-up
+                legacy = measure(threads, rounds, members, () -> {
+                    String line = "GROUP MESSAGE FROM u0, Message : " + TEXT;
+                    for(int i = 1; i < members.size(); i++) members.get(i).send(line);
+                });
+                shared = measure(threads, rounds, members, () -> server.sendGroupMessage("u0", "bench", TEXT));
+            }
+            System.out.printf("%-10d %20d %20d%n", groupSize, legacy, shared);
+        }
+        System.exit(0);
+    }
+
+    private static long measure(com.sun.management.ThreadMXBean threads, int rounds, List<Server.ClientHandler> members, Runnable broadcast) {
+        long total = 0;
+        long self = Thread.currentThread().threadId();
+        for(int r = 0; r < rounds; r++) {
+            long before = threads.getThreadAllocatedBytes(self);
+            broadcast.run();
+            total += threads.getThreadAllocatedBytes(self) - before;
+            drain(members);
+        }
+        return total / rounds;
+    }
+
+    private static void drain(List<Server.ClientHandler> members) {
+        for(Server.ClientHandler member : members) {
+            while(member.outbound.poll() != null) { }
+        }
+    }
+}
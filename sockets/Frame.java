@@ -0,0 +1,65 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+// One protocol line, already UTF-8 encoded and CRLF terminated, or one binary protocol frame.
+// Frames are immutable, so a broadcast encodes once and queues the very same frame on every recipient.
+public final class Frame {
+    private final byte[] bytes;
+    // System.nanoTime() the chat message this frame carries was accepted at, 0 for replies and notices
+    final long acceptedAt;
+    // ServerMetrics.PRIVATE or GROUP, what the delivery of a timed frame is recorded under
+    final int destination;
+
+    private Frame(byte[] bytes) {
+        this(bytes, 0, 0);
+    }
+
+    private Frame(byte[] bytes, long acceptedAt, int destination) {
+        this.bytes = bytes;
+        this.acceptedAt = acceptedAt;
+        this.destination = destination;
+    }
+
+    public static Frame of(String line) {
+        return new Frame((line + "\r\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    // bytes that are already a complete frame, see BinaryProtocol
+    static Frame wrap(byte[] encoded) {
+        return new Frame(encoded);
+    }
+
+    // the frames back to back in one, written with a single write (e.g. a mailbox replay)
+    static Frame concat(List<Frame> frames) {
+        int length = 0;
+        for(Frame frame : frames) length += frame.bytes.length;
+        byte[] bytes = new byte[length];
+        int position = 0;
+        for(Frame frame : frames) {
+            System.arraycopy(frame.bytes, 0, bytes, position, frame.bytes.length);
+            position += frame.bytes.length;
+        }
+        return new Frame(bytes);
+    }
+
+    // same bytes, delivery latency is measured from acceptedAt once a writer has written it
+    Frame timed(long acceptedAt, int destination) {
+        return new Frame(bytes, acceptedAt, destination);
+    }
+
+    // every writer gets its own read-only view (and position) over the shared bytes
+    public ByteBuffer buffer() {
+        return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(bytes);
+    }
+
+    public int length() {
+        return bytes.length;
+    }
+}
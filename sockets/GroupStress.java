@@ -0,0 +1,110 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.StringJoiner;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Hammers one Server with concurrent LOGIN, logout, CREATE_GROUP and GROUP_MSG from many threads while
+// others broadcast to random groups, then checks that groups and the user -> groups index still agree
+// and that nobody who logged out is left in a group. Exits with 1 on any failure.
+// No sockets are involved, commands go straight to ClientHandler.handleLine like FanoutBench.
+//   java GroupStress [threads] [users] [seconds]
+public class GroupStress {
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int users = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        // nobody drains the handlers' queues, old lines are simply forgotten
+        System.setProperty("chatwave.outbound.policy", "DROP_OLDEST");
+        System.setProperty("chatwave.outbound.capacity", "16");
+        // every thread sends as fast as it can, which admission control would mostly refuse
+        System.setProperty("chatwave.admission.enabled", "false");
+
+        Server server = new Server(Server.IoMode.NIO, 1, 0);
+        ConcurrentLinkedQueue<Throwable> failures = new ConcurrentLinkedQueue<>();
+        AtomicLong ops = new AtomicLong();
+        AtomicLong groupSeq = new AtomicLong();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+
+        List<Thread> workers = new ArrayList<>();
+        for(int t = 0; t < threads; t++) {
+            int first = t * users / threads, last = (t + 1) * users / threads;
+            // every worker owns its own users, a handler is only ever driven by one thread like a reader
+            workers.add(start("worker-" + t, failures, () -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                Server.ClientHandler[] handlers = new Server.ClientHandler[last - first];
+                while(System.nanoTime() < deadline) {
+                    int i = random.nextInt(handlers.length);
+                    String name = "u" + (first + i);
+                    Server.ClientHandler handler = handlers[i];
+                    int op = random.nextInt(10);
+                    if(handler == null) {
+                        handler = new Server.ClientHandler(server);
+                        handler.handleLine("LOGIN " + name);
+                        if(server.getClient(name) == handler) handlers[i] = handler;
+                    } else if(op == 0) {
+                        server.unRegisterUser(name);
+                        handlers[i] = null;
+                    } else if(op == 1) {
+                        StringJoiner members = new StringJoiner(",");
+                        for(int m = 0; m < 5; m++) members.add("u" + random.nextInt(users));
+                        handler.handleLine("CREATE_GROUP g" + groupSeq.incrementAndGet() + " " + members);
+                    } else {
+                        Set<String> mine = server.getUserGroups(name);
+                        for(String group : mine) {
+                            handler.handleLine("GROUP_MSG " + group + " hello");
+                            break;
+                        }
+                    }
+                    ops.incrementAndGet();
+                }
+            }));
+        }
+        for(int t = 0; t < 2; t++) {
+            workers.add(start("broadcaster-" + t, failures, () -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                while(System.nanoTime() < deadline) {
+                    long groups = groupSeq.get();
+                    if(groups > 0) server.sendGroupMessage("nobody", "g" + (1 + random.nextLong(groups)), "broadcast");
+                    ops.incrementAndGet();
+                }
+            }));
+        }
+        for(Thread worker : workers) worker.join();
+
+        List<String> problems = new ArrayList<>();
+        for(String group : server.getAllGroups()) {
+            for(String member : server.getGroupMembers(group)) {
+                if(server.getClient(member) == null) problems.add(member + " logged out but is still in " + group);
+                if(!server.getUserGroups(member).contains(group)) problems.add(group + " missing from the index of " + member);
+            }
+        }
+        for(String user : server.getAllClients()) {
+            for(String group : server.getUserGroups(user)) {
+                Set<String> members = server.getGroupMembers(group);
+                if(members == null || !members.contains(user)) problems.add(user + " indexed in " + group + " but not a member");
+            }
+        }
+        failures.forEach(f -> problems.add(f.toString()));
+
+        System.out.printf("threads=%d users=%d seconds=%d ops=%d groups=%d problems=%d%n",
+                threads, users, seconds, ops.get(), server.getAllGroups().size(), problems.size());
+        problems.stream().limit(20).forEach(p -> System.out.println("  " + p));
+        System.exit(problems.isEmpty() ? 0 : 1);
+    }
+
+    private static Thread start(String name, ConcurrentLinkedQueue<Throwable> failures, Runnable body) {
+        Thread thread = new Thread(() -> {
+            try {
+                body.run();
+            } catch (Throwable t) {
+                failures.add(t);
+            }
+        }, name);
+        thread.start();
+        return thread;
+    }
+}
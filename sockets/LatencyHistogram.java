@@ -0,0 +1,81 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Lock-free histogram of nanosecond latencies, 8 log-linear buckets per power of two so a quantile is
+// at most 12.5% off. Count, sum and max cover the whole run, quantiles only the current and the previous
+// window, rotate() is called once per window by the server's timer.
+public final class LatencyHistogram {
+    private static final int SUB_BITS = 3;
+    private static final int SUB = 1 << SUB_BITS;
+    // values below 2 * SUB get a bucket each, every power of two above that is split into SUB buckets
+    private static final int BUCKETS = 2 * SUB + (63 - SUB_BITS - 1) * SUB;
+
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+    private volatile AtomicLongArray current = new AtomicLongArray(BUCKETS);
+    private volatile AtomicLongArray previous = new AtomicLongArray(BUCKETS);
+
+    public void record(long nanos) {
+        if(nanos < 0) nanos = 0;
+        current.incrementAndGet(bucket(nanos));
+        count.increment();
+        sum.add(nanos);
+        long m;
+        while(nanos > (m = max.get()) && !max.compareAndSet(m, nanos)) { }
+    }
+
+    // the older window is cleared and becomes the one being recorded into
+    public void rotate() {
+        AtomicLongArray oldest = previous;
+        for(int i = 0; i < BUCKETS; i++) oldest.set(i, 0);
+        previous = current;
+        current = oldest;
+    }
+
+    public long count() {
+        return count.sum();
+    }
+
+    public long sumNanos() {
+        return sum.sum();
+    }
+
+    public long maxNanos() {
+        return max.get();
+    }
+
+    // upper bound of the bucket holding the q-th value of the last one to two windows, 0 when they are empty
+    public long quantileNanos(double q) {
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        AtomicLongArray a = current, b = previous;
+        for(int i = 0; i < BUCKETS; i++) {
+            counts[i] = a.get(i) + b.get(i);
+            total += counts[i];
+        }
+        if(total == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(q * total));
+        for(int i = 0; i < BUCKETS; i++) {
+            rank -= counts[i];
+            if(rank <= 0) return Math.min(upperBound(i), max.get());
+        }
+        return max.get();
+    }
+
+    static int bucket(long nanos) {
+        if(nanos < 2 * SUB) return (int) nanos;
+        int magnitude = 63 - Long.numberOfLeadingZeros(nanos);
+        return 2 * SUB + (magnitude - SUB_BITS - 1) * SUB + (int) ((nanos >>> (magnitude - SUB_BITS)) & (SUB - 1));
+    }
+
+    // largest value that falls into the bucket
+    static long upperBound(int bucket) {
+        if(bucket < 2 * SUB) return bucket;
+        int k = bucket - 2 * SUB;
+        int magnitude = k / SUB + SUB_BITS + 1;
+        long next = (long) (SUB + k % SUB + 1) << (magnitude - SUB_BITS);
+        return next < 0 ? Long.MAX_VALUE : next - 1;
+    }
+}
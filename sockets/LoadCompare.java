@@ -0,0 +1,97 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+// Starts an in-process Server in the given mode, parks <connections> logged in clients on it and
+// measures the MSG round trip. Run it once per mode, each in a fresh JVM, to compare them side by side:
+//   for m in BLOCKING VIRTUAL NIO; do java LoadCompare $m 5000 20000 5000; done
+public class LoadCompare {
+    private static final String HOST = "127.0.0.1";
+    private static final int PORT = 9090;
+
+    public static void main(String[] args) throws Exception {
+        Server.IoMode mode = args.length > 0 ? Server.IoMode.valueOf(args[0].toUpperCase()) : Server.IoMode.BLOCKING;
+        int connections = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        int messages = args.length > 2 ? Integer.parseInt(args[2]) : 10000;
+        int ratePerSecond = args.length > 3 ? Integer.parseInt(args[3]) : 5000;
+
+        // measures the transport, not how many messages admission control lets through
+        System.setProperty("chatwave.admission.enabled", "false");
+        Server server = new Server(mode, Runtime.getRuntime().availableProcessors());
+        Thread serverThread = new Thread(server::start, "server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+
+        CountDownLatch loggedIn = new CountDownLatch(connections);
+        CountDownLatch delivered = new CountDownLatch(messages);
+        ConcurrentLinkedQueue<Long> latencies = new ConcurrentLinkedQueue<>();
+        List<BufferedWriter> writers = new ArrayList<>(connections);
+
+        for(int i = 0; i < connections; i++) {
+            Socket socket = new Socket(HOST, PORT);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+            BufferedWriter out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"));
+            writers.add(out);
+            // readers run on virtual threads so the client side costs the same in every server mode
+            Thread.ofVirtual().start(() -> {
+                try {
+                    String line;
+                    while((line = in.readLine()) != null) {
+                        if(line.startsWith("LOGIN successfull")) loggedIn.countDown();
+                        else if(line.startsWith("PRIVATE MSG FROM")) {
+                            long sentAt = Long.parseLong(line.substring(line.lastIndexOf(' ') + 1));
+                            latencies.add(System.nanoTime() - sentAt);
+                            delivered.countDown();
+                        }
+                    }
+                } catch (IOException ignored) {
+                }
+            });
+            out.write("LOGIN u" + i + "\r\n");
+            out.flush();
+        }
+        if(!loggedIn.await(60, TimeUnit.SECONDS)) {
+            System.out.println("Only " + (connections - loggedIn.getCount()) + " of " + connections + " clients logged in");
+        }
+
+        System.gc();
+        Thread.sleep(500);
+        long heapUsed = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+        int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+
+        // paced sends, an open loop at a fixed rate keeps queueing in the client out of the numbers
+        long intervalNanos = 1_000_000_000L / ratePerSecond;
+        long next = System.nanoTime();
+        for(int i = 0; i < messages; i++) {
+            while(System.nanoTime() < next) LockSupport.parkNanos(next - System.nanoTime());
+            next += intervalNanos;
+            BufferedWriter out = writers.get(i % connections);
+            out.write("MSG u" + ((i + 1) % connections) + " " + System.nanoTime() + "\r\n");
+            out.flush();
+        }
+        delivered.await(60, TimeUnit.SECONDS);
+
+        long[] sorted = latencies.stream().mapToLong(Long::longValue).toArray();
+        Arrays.sort(sorted);
+        System.out.printf("%-8s connections=%d msgPerSec=%d platformThreads=%d heapUsedMB=%.1f delivered=%d p50us=%d p99us=%d%n",
+                mode, connections, ratePerSecond, threads, heapUsed / (1024.0 * 1024.0), sorted.length,
+                percentile(sorted, 0.50) / 1000, percentile(sorted, 0.99) / 1000);
+        System.exit(0);
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        if(sorted.length == 0) return 0;
+        return sorted[Math.min(sorted.length - 1, (int) Math.ceil(p * sorted.length) - 1)];
+    }
+}
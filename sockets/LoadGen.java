@@ -0,0 +1,462 @@
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.WebSocket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Headless load generator against a running Server (headless Clients, text or binary protocol) or the
+// backend's STOMP endpoint (/chat over plain WebSocket). Logs in <users> synthetic users, creates <groups>
+// groups of <group-size> of them and sends a private/group message mix at a fixed rate. Every message
+// carries the time it was due and its sender, receivers turn that into the delivery latency, so a server
+// that falls behind shows up in the percentiles instead of slowing the generator down (open loop).
+// The first <warmup> seconds aren't counted.
+//   java LoadGen --target socket --port 9090 --protocol binary --users 2000 --groups 20 --group-size 50 \
+//                --rate 5000 --mix private=80,group=20 --duration 30
+//   java LoadGen --target stomp --port 8080 --users 1000 --rate 2000
+public class LoadGen {
+    private static final String MARKER = "LG:";
+    private static final HttpClient HTTP = HttpClient.newBuilder().executor(Executors.newVirtualThreadPerTaskExecutor()).build();
+
+    private final Map<String, String> options;
+    private final String host;
+    private final int port;
+    private final boolean stomp;
+    private final boolean binary;
+    private final String prefix;
+    private final String padding;
+    private final List<Session> sessions = new ArrayList<>();
+    private final List<List<Session>> groups = new ArrayList<>();
+    // a message is counted by when it was due, what the warmup did is thrown away
+    private final Stats warmup = new Stats(Long.MIN_VALUE);
+    private volatile Stats measured = new Stats(Long.MAX_VALUE);
+
+    private LoadGen(Map<String, String> options) {
+        this.options = options;
+        this.stomp = option("target", "socket").equalsIgnoreCase("stomp");
+        this.host = option("host", "127.0.0.1");
+        this.port = Integer.parseInt(option("port", stomp ? "8080" : String.valueOf(Server.DEFAULT_PORT)));
+        this.binary = option("protocol", "text").equalsIgnoreCase("binary");
+        this.prefix = option("prefix", "lg");
+        this.padding = "x".repeat(Integer.parseInt(option("payload", "32")));
+    }
+
+    private String option(String name, String defaultValue) {
+        return options.getOrDefault(name, defaultValue);
+    }
+
+    private int intOption(String name, int defaultValue) {
+        return Integer.parseInt(option(name, String.valueOf(defaultValue)));
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for(int i = 0; i + 1 < args.length; i += 2) {
+            if(!args[i].startsWith("--")) throw new IllegalArgumentException("expected --option value, got " + args[i]);
+            options.put(args[i].substring(2), args[i + 1]);
+        }
+        new LoadGen(options).run();
+        System.exit(0);
+    }
+
+    private void run() throws Exception {
+        int users = intOption("users", 1000);
+        int groupCount = intOption("groups", 10);
+        int groupSize = Math.min(users, intOption("group-size", 20));
+        int rate = intOption("rate", 1000);
+        int threads = Math.max(1, intOption("threads", 2));
+        int warmupSeconds = intOption("warmup", 5);
+        int duration = intOption("duration", 30);
+        int privateShare = privateShare(option("mix", "private=80,group=20"), groupCount);
+
+        long connecting = System.nanoTime();
+        connect(users);
+        System.out.printf("%d users logged in in %d ms%n", users, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - connecting));
+        createGroups(groupCount, groupSize);
+
+        Sender[] senders = new Sender[threads];
+        long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+        long measureFrom = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+        long end = measureFrom + TimeUnit.SECONDS.toNanos(duration);
+        measured = new Stats(measureFrom);
+        for(int t = 0; t < threads; t++) {
+            senders[t] = new Sender(start, end, rate / (double) threads, privateShare);
+            senders[t].thread = new Thread(senders[t], "loadgen-sender-" + t);
+            senders[t].thread.start();
+        }
+        for(Sender sender : senders) sender.thread.join();
+        // what is still on its way, at most a few seconds
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(intOption("drain", 5));
+        Stats measured = this.measured;
+        while(measured.received.sum() < measured.expected.sum() && System.nanoTime() < deadline) Thread.sleep(50);
+
+        report(measured, users, groupCount, groupSize, privateShare, rate, duration);
+        for(Session session : sessions) session.close();
+    }
+
+    private static int privateShare(String mix, int groupCount) {
+        int privateWeight = 0, groupWeight = 0;
+        for(String part : mix.split(",")) {
+            String[] kv = part.split("=");
+            if(kv[0].trim().equalsIgnoreCase("private")) privateWeight = Integer.parseInt(kv[1].trim());
+            else if(kv[0].trim().equalsIgnoreCase("group")) groupWeight = Integer.parseInt(kv[1].trim());
+            else throw new IllegalArgumentException("unknown message type in --mix : " + kv[0]);
+        }
+        if(groupCount == 0 || groupWeight == 0) return 100;
+        return 100 * privateWeight / (privateWeight + groupWeight);
+    }
+
+    // in parallel, thousands of handshakes one after the other would take a while
+    private void connect(int users) throws Exception {
+        List<Future<Session>> connecting = new ArrayList<>(users);
+        try(ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for(int i = 0; i < users; i++) {
+                int index = i;
+                connecting.add(executor.submit(() -> {
+                    Session session = stomp ? new StompSession(index) : new SocketSession(index);
+                    session.ready.get(30, TimeUnit.SECONDS);
+                    return session;
+                }));
+            }
+            for(Future<Session> session : connecting) sessions.add(session.get());
+        }
+    }
+
+    // consecutive users, the first one creates the group. STOMP members can only subscribe once it exists.
+    private void createGroups(int groupCount, int groupSize) throws Exception {
+        for(int g = 0; g < groupCount; g++) {
+            List<Session> members = new ArrayList<>(groupSize);
+            for(int m = 0; m < groupSize; m++) members.add(sessions.get((g * groupSize + m) % sessions.size()));
+            groups.add(members);
+            members.get(0).createGroup(groupName(g), members);
+        }
+        if(groupCount == 0) return;
+        Thread.sleep(intOption("settle", 1000));
+        for(int g = 0; g < groupCount; g++) {
+            for(Session member : groups.get(g)) member.join(groupName(g));
+        }
+        Thread.sleep(intOption("settle", 1000));
+    }
+
+    private String userName(int index) {
+        return prefix + "u" + index;
+    }
+
+    private String groupName(int index) {
+        return prefix + "g" + index;
+    }
+
+    private void report(Stats measured, int users, int groupCount, int groupSize, int privateShare, int rate, int duration) {
+        long sent = measured.sent.sum(), expected = measured.expected.sum(), received = measured.received.sum();
+        System.out.printf("target=%s users=%d groups=%dx%d mix=private %d%% group %d%% rate=%d/s duration=%ds%n",
+                stomp ? "stomp" : binary ? "socket/binary" : "socket/text", users, groupCount, groupSize,
+                privateShare, 100 - privateShare, rate, duration);
+        System.out.printf("sent=%d (%.1f/s) deliveries=%d of %d (%.2f%%, %.1f/s) throttled=%d errors=%d%n",
+                sent, sent / (double) duration, received, expected, expected == 0 ? 0 : 100.0 * received / expected,
+                received / (double) duration, measured.throttled.sum(), measured.errors.sum());
+        LatencyHistogram latency = measured.latency;
+        System.out.printf(Locale.ROOT, "latency ms from when the message was due : p50=%.3f p90=%.3f p99=%.3f p99.9=%.3f max=%.3f%n",
+                millis(latency.quantileNanos(0.5)), millis(latency.quantileNanos(0.9)), millis(latency.quantileNanos(0.99)),
+                millis(latency.quantileNanos(0.999)), millis(latency.maxNanos()));
+        measured.errorSamples.stream().limit(5).forEach(e -> System.out.println("  " + e));
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    private static final class Stats {
+        // messages due before this are the warmup's
+        private final long since;
+        private final LongAdder sent = new LongAdder();
+        private final LongAdder expected = new LongAdder();
+        private final LongAdder received = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        // refused by the server's admission control, their deliveries are still counted as expected
+        private final LongAdder throttled = new LongAdder();
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final ConcurrentLinkedQueue<String> errorSamples = new ConcurrentLinkedQueue<>();
+
+        private Stats(long since) {
+            this.since = since;
+        }
+    }
+
+    // one share of the rate, message k is due at start + k / rate whether or not the previous one went out on time
+    private final class Sender implements Runnable {
+        private final long start;
+        private final long end;
+        private final double nanosPerMessage;
+        private final int privateShare;
+        private Thread thread;
+
+        private Sender(long start, long end, double rate, int privateShare) {
+            this.start = start;
+            this.end = end;
+            this.nanosPerMessage = 1e9 / rate;
+            this.privateShare = privateShare;
+        }
+
+        @Override
+        public void run() {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            for(long k = 0; ; k++) {
+                long due = start + (long) (k * nanosPerMessage);
+                if(due >= end) return;
+                long wait = due - System.nanoTime();
+                if(wait > 0) LockSupport.parkNanos(wait);
+                Stats current = statsFor(due);
+                try {
+                    if(random.nextInt(100) < privateShare) {
+                        int from = random.nextInt(sessions.size());
+                        Session sender = sessions.get(from);
+                        sender.privateMessage(userName((from + 1) % sessions.size()), body(due, from));
+                        current.expected.increment();
+                    } else {
+                        int g = random.nextInt(groups.size());
+                        List<Session> members = groups.get(g);
+                        Session sender = members.get(random.nextInt(members.size()));
+                        sender.groupMessage(groupName(g), body(due, sender.index));
+                        current.expected.add(members.size() - 1);
+                    }
+                    current.sent.increment();
+                } catch (IOException e) {
+                    error("send failed : " + e.getMessage());
+                }
+            }
+        }
+
+        private String body(long due, int sender) {
+            return MARKER + due + ":" + sender + ":" + padding;
+        }
+    }
+
+    private Stats statsFor(long nanos) {
+        Stats current = measured;
+        return nanos >= current.since ? current : warmup;
+    }
+
+    private void error(String error) {
+        Stats current = statsFor(System.nanoTime());
+        current.errors.increment();
+        if(current.errorSamples.size() < 5) current.errorSamples.add(error);
+    }
+
+    private void throttled() {
+        statsFor(System.nanoTime()).throttled.increment();
+    }
+
+    // one synthetic user's connection
+    private abstract class Session {
+        final int index;
+        final String name;
+        final CompletableFuture<Void> ready = new CompletableFuture<>();
+
+        Session(int index) {
+            this.index = index;
+            this.name = userName(index);
+        }
+
+        abstract void privateMessage(String to, String body) throws IOException;
+        abstract void createGroup(String group, List<Session> members) throws IOException;
+        abstract void join(String group) throws IOException;
+        abstract void groupMessage(String group, String body) throws IOException;
+        abstract void close();
+
+        // a chat message arrived, anything that carries the marker was sent by one of our senders
+        void received(String text) {
+            int at = text.indexOf(MARKER);
+            if(at < 0) return;
+            String[] parts = text.substring(at + MARKER.length()).split(":", 3);
+            long due = Long.parseLong(parts[0]);
+            // the sender's own copy of a group message or of a STOMP private message
+            if(Integer.parseInt(parts[1]) == index) return;
+            Stats current = statsFor(due);
+            current.received.increment();
+            current.latency.record(System.nanoTime() - due);
+        }
+    }
+
+    private final class SocketSession extends Session {
+        private final Client client;
+
+        SocketSession(int index) throws IOException {
+            super(index);
+            client = new Client(host, port, binary, this::onLine);
+            client.connect();
+            // a binary client logs in once the server has switched protocols
+            if(!binary) client.send("LOGIN " + name);
+        }
+
+        private void onLine(String line) {
+            try {
+                if(line.startsWith("PRIVATE MSG FROM") || line.startsWith("GROUP MESSAGE FROM")) received(line);
+                else if(binary && line.equals("PROTOCOL BINARY OK")) client.send("LOGIN " + name);
+                else if(!ready.isDone() && (line.startsWith("LOGIN successfull") || binary && line.startsWith("OK"))) ready.complete(null);
+                else if(line.startsWith("THROTTLED")) throttled();
+                else if(line.startsWith("ERROR") || line.startsWith("User doesn't exit")) {
+                    if(!ready.isDone()) ready.completeExceptionally(new IllegalStateException(name + " : " + line));
+                    error(name + " : " + line);
+                }
+            } catch (IOException e) {
+                ready.completeExceptionally(e);
+            }
+        }
+
+        @Override
+        void privateMessage(String to, String body) throws IOException {
+            client.send("MSG " + to + " " + body);
+        }
+
+        // the creator is added by the server
+        @Override
+        void createGroup(String group, List<Session> members) throws IOException {
+            List<String> others = new ArrayList<>();
+            for(Session member : members) if(member != this) others.add(member.name);
+            client.send("CREATE_GROUP " + group + " " + String.join(",", others));
+        }
+
+        @Override
+        void join(String group) {
+            // members get the group's messages as soon as it exists
+        }
+
+        @Override
+        void groupMessage(String group, String body) throws IOException {
+            client.send("GROUP_MSG " + group + " " + body);
+        }
+
+        @Override
+        void close() {
+            try {
+                client.send("LOGOUT");
+                client.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    // STOMP 1.2 frames over the raw WebSocket transport of the SockJS endpoint, logged in with the login header
+    private final class StompSession extends Session implements WebSocket.Listener {
+        private final StringBuilder partial = new StringBuilder();
+        private WebSocket webSocket;
+        // a WebSocket takes one outstanding send at a time, every frame waits for the one before
+        private CompletableFuture<WebSocket> sending;
+
+        StompSession(int index) throws Exception {
+            super(index);
+            HTTP.newWebSocketBuilder().buildAsync(URI.create("ws://" + host + ":" + port + "/chat/websocket"), this)
+                    .get(30, TimeUnit.SECONDS);
+        }
+
+        @Override
+        public void onOpen(WebSocket webSocket) {
+            this.webSocket = webSocket;
+            this.sending = CompletableFuture.completedFuture(webSocket);
+            frame("CONNECT", "accept-version:1.2\nhost:" + host + "\nlogin:" + name + "\nheart-beat:0,0", "");
+            webSocket.request(1);
+        }
+
+        @Override
+        public CompletionStage<?> onText(WebSocket webSocket, CharSequence data, boolean last) {
+            partial.append(data);
+            if(last) {
+                String frame = partial.toString();
+                partial.setLength(0);
+                onFrame(frame);
+            }
+            webSocket.request(1);
+            return null;
+        }
+
+        private void onFrame(String frame) {
+            int headersEnd = frame.indexOf("\n\n");
+            if(headersEnd < 0) return; // heart-beat
+            String headers = frame.substring(0, headersEnd);
+            String body = frame.substring(headersEnd + 2).replace("\0", "");
+            if(headers.startsWith("CONNECTED")) {
+                frame("SUBSCRIBE", "id:messages\ndestination:/user/queue/messages", "");
+                frame("SUBSCRIBE", "id:errors\ndestination:/user/queue/errors", "");
+                frame("SUBSCRIBE", "id:throttled\ndestination:/user/queue/throttled", "");
+                ready.complete(null);
+            } else if(headers.startsWith("MESSAGE")) {
+                if(headers.contains("destination:/user/queue/errors")) error(name + " : " + body);
+                else if(headers.contains("destination:/user/queue/throttled")) throttled();
+                else received(body);
+            } else if(headers.startsWith("ERROR")) {
+                ready.completeExceptionally(new IllegalStateException(name + " : " + headers));
+                error(name + " : " + headers.replace('\n', ' '));
+            }
+        }
+
+        @Override
+        public CompletionStage<?> onClose(WebSocket webSocket, int statusCode, String reason) {
+            ready.completeExceptionally(new IllegalStateException(name + " closed : " + statusCode + " " + reason));
+            return null;
+        }
+
+        @Override
+        public void onError(WebSocket webSocket, Throwable error) {
+            ready.completeExceptionally(error);
+            error(name + " : " + error);
+        }
+
+        private synchronized void frame(String command, String headers, String body) {
+            String frame = command + "\n" + headers + "\n\n" + body + "\0";
+            sending = sending.thenCompose(ws -> ws.sendText(frame, true));
+        }
+
+        private void send(String destination, String json) {
+            frame("SEND", "destination:" + destination + "\ncontent-type:application/json", json);
+        }
+
+        @Override
+        void privateMessage(String to, String body) {
+            send("/app/sendPrivate", "{\"recipient\":\"" + json(to) + "\",\"msg\":\"" + json(body) + "\"}");
+        }
+
+        // unlike the socket server, the creator has to be among the members
+        @Override
+        void createGroup(String group, List<Session> members) {
+            StringBuilder users = new StringBuilder();
+            for(Session member : members) {
+                if(!users.isEmpty()) users.append(',');
+                users.append("{\"userName\":\"").append(json(member.name)).append("\"}");
+            }
+            send("/app/createGroup", "{\"groupName\":\"" + json(group) + "\",\"members\":[" + users + "]}");
+        }
+
+        @Override
+        void join(String group) {
+            frame("SUBSCRIBE", "id:group-" + group + "\ndestination:/topic/group/" + group, "");
+        }
+
+        @Override
+        void groupMessage(String group, String body) {
+            send("/app/sendGroup", "{\"recipient\":\"" + json(group) + "\",\"msg\":\"" + json(body) + "\"}");
+        }
+
+        @Override
+        void close() {
+            frame("DISCONNECT", "receipt:bye", "");
+            sending.thenCompose(ws -> ws.sendClose(WebSocket.NORMAL_CLOSURE, "")).orTimeout(1, TimeUnit.SECONDS).exceptionally(e -> null).join();
+        }
+
+        private static String json(String text) {
+            return text.replace("\\", "\\\\").replace("\"", "\\\"");
+        }
+    }
+}
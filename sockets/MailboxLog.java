@@ -0,0 +1,336 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+// Offline mailboxes : messages for users who aren't logged in are appended to one log made of fixed
+// size memory-mapped segments, and replayed when they LOGIN. Every user has a read offset into the log,
+// and which of the records after it are theirs is kept in memory (rebuilt from the log on startup).
+//   record : int length, int crc32c, long millis, from, group ("" for private), short n, n recipients,
+//            int bodyLength, body. Strings are BinaryProtocol strings, a length of 0 ends a segment.
+// Appending only copies into the mapping. commit() is called periodically by the server's timer and
+// forces everything appended since the previous commit to disk in one go (group commit), so a crash of
+// the process loses nothing and one of the machine at most a commit interval.
+// Segments whose records have all been read by their recipients are deleted.
+public class MailboxLog {
+    private static final int RECORD_HEADER = 8;
+    private static final String OFFSETS_FILE = "offsets";
+
+    private final Path dir;
+    private final int segmentBytes;
+    private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+    // every user who ever logged in, only those can be sent to while offline
+    private final ConcurrentHashMap<String, Mailbox> mailboxes = new ConcurrentHashMap<>();
+    private final Object appendLock = new Object();
+    // guarded by appendLock
+    private Segment active;
+    private final AtomicBoolean offsetsDirty = new AtomicBoolean();
+
+    public MailboxLog(Path dir, int segmentBytes) throws IOException {
+        this.dir = Files.createDirectories(dir);
+        this.segmentBytes = segmentBytes;
+        loadOffsets();
+        try(Stream<Path> files = Files.list(dir)) {
+            for(Path file : files.filter(f -> f.getFileName().toString().endsWith(".log")).toList()) {
+                long base = Long.parseLong(file.getFileName().toString().replace(".log", ""));
+                segments.put(base, Segment.open(file, base, Math.max(segmentBytes, (int) Files.size(file))));
+            }
+        }
+        for(Segment segment : segments.values()) recover(segment);
+        active = segments.isEmpty() ? newSegment(0) : segments.lastEntry().getValue();
+    }
+
+    // scans the segment up to its first missing or torn record and indexes what recipients haven't read
+    private void recover(Segment segment) {
+        ByteBuffer view = segment.map.duplicate();
+        int capacity = view.capacity();
+        int position = 0;
+        while(position + RECORD_HEADER <= capacity) {
+            int length = view.getInt(position);
+            if(length <= 0 || position + RECORD_HEADER + length > capacity) break;
+            CRC32C crc = new CRC32C();
+            crc.update(view.duplicate().position(position + RECORD_HEADER).limit(position + RECORD_HEADER + length));
+            if((int) crc.getValue() != view.getInt(position + 4)) break;
+            long offset = segment.base + position;
+            for(String recipient : readRecord(view.duplicate().position(position + RECORD_HEADER)).recipients) {
+                Mailbox mailbox = mailboxes.computeIfAbsent(recipient, r -> new Mailbox(0));
+                if(offset >= mailbox.offset) mailbox.add(offset);
+            }
+            position += RECORD_HEADER + length;
+        }
+        // a crash left a record half written, zero the tail so appends continue on a clean one
+        if(position + 4 <= capacity && view.getInt(position) != 0) {
+            for(int i = position; i < capacity; i++) view.put(i, (byte) 0);
+            segment.map.force();
+        }
+        segment.written = position;
+        segment.forced = position;
+    }
+
+    public boolean knows(String username) {
+        return mailboxes.containsKey(username);
+    }
+
+    // from now on messages for username are kept while they are offline
+    public void register(String username) {
+        if(mailboxes.putIfAbsent(username, new Mailbox(end())) == null) offsetsDirty.set(true);
+    }
+
+    // appends one record for all recipients, they have to be known users
+    public void append(List<String> recipients, ChatMessage message) {
+        byte[] from = message.from.getBytes(StandardCharsets.UTF_8);
+        byte[] group = message.group == null ? new byte[0] : message.group.getBytes(StandardCharsets.UTF_8);
+        byte[] body = message.body();
+        int length = 8 + 2 + from.length + 2 + group.length + 2 + 4 + body.length;
+        byte[][] names = new byte[recipients.size()][];
+        for(int i = 0; i < names.length; i++) {
+            names[i] = recipients.get(i).getBytes(StandardCharsets.UTF_8);
+            length += 2 + names[i].length;
+        }
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER + length);
+        record.putInt(length).putInt(0).putLong(System.currentTimeMillis());
+        record.putShort((short) from.length).put(from).putShort((short) group.length).put(group);
+        record.putShort((short) names.length);
+        for(byte[] name : names) record.putShort((short) name.length).put(name);
+        record.putInt(body.length).put(body);
+        CRC32C crc = new CRC32C();
+        crc.update(record.array(), RECORD_HEADER, length);
+        record.putInt(4, (int) crc.getValue()).flip();
+        if(record.remaining() > segmentBytes) throw new IllegalArgumentException("message too large for a mailbox segment");
+
+        // the offset is queued in the mailboxes under the lock too : pending offsets stay in log order, and
+        // compact() never sees a record below end() that isn't pending yet
+        synchronized (appendLock) {
+            if(active.written + record.remaining() > active.map.capacity()) active = newSegment(active.base + active.written);
+            long offset = active.base + active.written;
+            active.map.put(active.written, record, 0, record.remaining());
+            active.written += record.remaining();
+            for(String recipient : recipients) {
+                Mailbox mailbox = mailboxes.get(recipient);
+                if(mailbox != null) mailbox.add(offset);
+            }
+        }
+    }
+
+    // hands the user's unread messages to sink in chunks of at most chunkSize, oldest first, and moves
+    // their offset past them. Concurrent replays of one user are serialized and never repeat a message.
+    public int replay(String username, int chunkSize, Consumer<List<ChatMessage>> sink) {
+        Mailbox mailbox = mailboxes.get(username);
+        if(mailbox == null) return 0;
+        synchronized (mailbox.replayLock) {
+            long[] offsets = mailbox.pending();
+            if(offsets.length == 0) return 0;
+            List<ChatMessage> chunk = new ArrayList<>(Math.min(chunkSize, offsets.length));
+            for(long offset : offsets) {
+                Map.Entry<Long, Segment> segment = segments.floorEntry(offset);
+                ByteBuffer view = segment.getValue().map.duplicate().position((int) (offset - segment.getKey()) + RECORD_HEADER);
+                Record record = readRecord(view);
+                chunk.add(ChatMessage.binary(record.from, record.group, record.body));
+                if(chunk.size() == chunkSize) {
+                    sink.accept(chunk);
+                    chunk = new ArrayList<>(chunkSize);
+                }
+            }
+            if(!chunk.isEmpty()) sink.accept(chunk);
+            mailbox.consumed(offsets.length, offsets[offsets.length - 1] + 1);
+            offsetsDirty.set(true);
+            return offsets.length;
+        }
+    }
+
+    // forces what was appended since the last commit, saves changed offsets and drops consumed segments
+    public synchronized void commit() {
+        List<Segment> toForce = new ArrayList<>();
+        synchronized (appendLock) {
+            for(Segment segment : segments.values()) {
+                if(segment.forced < segment.written) toForce.add(segment);
+            }
+        }
+        for(Segment segment : toForce) {
+            int written = segment.written;
+            try {
+                segment.map.force(segment.forced, written - segment.forced);
+                segment.forced = written;
+            } catch (UncheckedIOException e) {
+                System.out.println("Error in forcing mailbox segment " + segment.file + " : " + e.getMessage());
+            }
+        }
+        if(offsetsDirty.getAndSet(false)) {
+            try {
+                saveOffsets();
+            } catch (IOException e) {
+                offsetsDirty.set(true);
+                System.out.println("Error in saving mailbox offsets : " + e.getMessage());
+            }
+            compact();
+        }
+    }
+
+    // every segment before the oldest unread record, except the one being appended to
+    private void compact() {
+        long oldest = end();
+        for(Mailbox mailbox : mailboxes.values()) oldest = Math.min(oldest, mailbox.oldestPending());
+        for(Map.Entry<Long, Segment> entry : segments.entrySet()) {
+            Segment segment = entry.getValue();
+            if(segment == active || segment.base + segment.written > oldest) break;
+            segments.remove(entry.getKey());
+            try {
+                segment.channel.close();
+                Files.deleteIfExists(segment.file);
+            } catch (IOException e) {
+                System.out.println("Error in deleting mailbox segment " + segment.file + " : " + e.getMessage());
+            }
+        }
+    }
+
+    public long pending() {
+        long pending = 0;
+        for(Mailbox mailbox : mailboxes.values()) pending += mailbox.size();
+        return pending;
+    }
+
+    public int segmentCount() {
+        return segments.size();
+    }
+
+    private long end() {
+        synchronized (appendLock) {
+            return active == null ? 0 : active.base + active.written;
+        }
+    }
+
+    private Segment newSegment(long base) {
+        try {
+            Segment segment = Segment.open(dir.resolve(String.format("%020d.log", base)), base, segmentBytes);
+            segments.put(base, segment);
+            return segment;
+        } catch (IOException e) {
+            throw new IllegalStateException("can't create mailbox segment", e);
+        }
+    }
+
+    // one "username offset" line per known user, replaced atomically
+    private void saveOffsets() throws IOException {
+        Path tmp = dir.resolve(OFFSETS_FILE + ".tmp");
+        try(BufferedWriter out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            for(Map.Entry<String, Mailbox> entry : mailboxes.entrySet()) {
+                out.write(entry.getKey() + " " + entry.getValue().offset);
+                out.newLine();
+            }
+        }
+        try(FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        Files.move(tmp, dir.resolve(OFFSETS_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void loadOffsets() throws IOException {
+        Path file = dir.resolve(OFFSETS_FILE);
+        if(!Files.exists(file)) return;
+        for(String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            int space = line.lastIndexOf(' ');
+            if(space > 0) mailboxes.put(line.substring(0, space), new Mailbox(Long.parseLong(line.substring(space + 1))));
+        }
+    }
+
+    private static Record readRecord(ByteBuffer view) {
+        view.getLong();
+        String from = BinaryProtocol.readString(view);
+        String group = BinaryProtocol.readString(view);
+        String[] recipients = new String[Short.toUnsignedInt(view.getShort())];
+        for(int i = 0; i < recipients.length; i++) recipients[i] = BinaryProtocol.readString(view);
+        byte[] body = new byte[view.getInt()];
+        view.get(body);
+        return new Record(from, group.isEmpty() ? null : group, recipients, body);
+    }
+
+    private static final class Record {
+        private final String from;
+        private final String group;
+        private final String[] recipients;
+        private final byte[] body;
+
+        private Record(String from, String group, String[] recipients, byte[] body) {
+            this.from = from;
+            this.group = group;
+            this.recipients = recipients;
+            this.body = body;
+        }
+    }
+
+    private static final class Segment {
+        private final Path file;
+        private final long base;
+        private final FileChannel channel;
+        private final MappedByteBuffer map;
+        // bytes appended, guarded by appendLock, and bytes forced to disk, commit() only
+        private volatile int written;
+        private int forced;
+
+        private Segment(Path file, long base, FileChannel channel, MappedByteBuffer map) {
+            this.file = file;
+            this.base = base;
+            this.channel = channel;
+            this.map = map;
+        }
+
+        static Segment open(Path file, long base, int size) throws IOException {
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            return new Segment(file, base, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+        }
+    }
+
+    // one user's read offset and the offsets of their records after it, oldest first, guarded by itself
+    private static final class Mailbox {
+        private final Object replayLock = new Object();
+        private long offset;
+        private long[] pending = new long[0];
+        private int size;
+
+        private Mailbox(long offset) {
+            this.offset = offset;
+        }
+
+        synchronized void add(long record) {
+            if(size == pending.length) pending = Arrays.copyOf(pending, Math.max(8, size * 2));
+            pending[size++] = record;
+        }
+
+        synchronized long[] pending() {
+            return Arrays.copyOf(pending, size);
+        }
+
+        // the first n pending records were handed out, appends may have queued more meanwhile
+        synchronized void consumed(int n, long newOffset) {
+            System.arraycopy(pending, n, pending, 0, size - n);
+            size -= n;
+            offset = Math.max(offset, newOffset);
+            if(size == 0 && pending.length > 64) pending = new long[0];
+        }
+
+        synchronized long oldestPending() {
+            return size == 0 ? Long.MAX_VALUE : pending[0];
+        }
+
+        synchronized int size() {
+            return size;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.stream.Stream;
+
+// Appends to one MailboxLog from many threads while others replay random users and the committer keeps
+// compacting tiny segments, then replays what is left and checks that every user got each of their
+// messages exactly once, and those of one appender in the order they were appended. Exits with 1 on any failure.
+//   java MailboxStress [appenders] [users] [seconds]
+public class MailboxStress {
+    public static void main(String[] args) throws Exception {
+        int appenders = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int users = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+
+        Path dir = Files.createTempDirectory("mailbox-stress");
+        MailboxLog log = new MailboxLog(dir, 4096);
+        for(int u = 0; u < users; u++) log.register("u" + u);
+        ConcurrentLinkedQueue<Throwable> failures = new ConcurrentLinkedQueue<>();
+        AtomicLongArray sent = new AtomicLongArray(users);
+        // per user, the last sequence received from every appender, replays of one user are serialized
+        long[][] last = new long[users][appenders];
+        long[] received = new long[users];
+        List<String> problems = new ArrayList<>();
+        AtomicLong replays = new AtomicLong();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+
+        List<Thread> workers = new ArrayList<>();
+        for(int t = 0; t < appenders; t++) {
+            int appender = t;
+            workers.add(start("appender-" + t, failures, () -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                for(long seq = 1; System.nanoTime() < deadline; seq++) {
+                    List<String> recipients = new ArrayList<>();
+                    int first = random.nextInt(users), count = 1 + random.nextInt(3);
+                    for(int r = 0; r < count; r++) {
+                        int user = (first + r) % users;
+                        recipients.add("u" + user);
+                        sent.incrementAndGet(user);
+                    }
+                    log.append(recipients, ChatMessage.text("a" + appender, null, Long.toString(seq)));
+                }
+            }));
+        }
+        for(int t = 0; t < 2; t++) {
+            workers.add(start("replayer-" + t, failures, () -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                while(System.nanoTime() < deadline) {
+                    int user = random.nextInt(users);
+                    log.replay("u" + user, 16, chunk -> check(user, chunk, last, received, problems));
+                    replays.incrementAndGet();
+                }
+            }));
+        }
+        workers.add(start("committer", failures, () -> {
+            while(System.nanoTime() < deadline) log.commit();
+        }));
+        for(Thread worker : workers) worker.join();
+
+        try {
+            for(int u = 0; u < users; u++) {
+                int user = u;
+                log.replay("u" + u, 16, chunk -> check(user, chunk, last, received, problems));
+            }
+            log.commit();
+        } catch (RuntimeException e) {
+            failures.add(e);
+        }
+        for(int u = 0; u < users; u++) {
+            if(received[u] != sent.get(u)) problems.add("u" + u + " got " + received[u] + " of " + sent.get(u) + " messages");
+        }
+        failures.forEach(f -> problems.add(f.toString()));
+
+        long total = 0;
+        for(int u = 0; u < users; u++) total += received[u];
+        System.out.printf("appenders=%d users=%d seconds=%d delivered=%d replays=%d segments=%d problems=%d%n",
+                appenders, users, seconds, total, replays.get(), log.segmentCount(), problems.size());
+        problems.stream().limit(20).forEach(p -> System.out.println("  " + p));
+        delete(dir);
+        System.exit(problems.isEmpty() ? 0 : 1);
+    }
+
+    private static void check(int user, List<ChatMessage> chunk, long[][] last, long[] received, List<String> problems) {
+        for(ChatMessage message : chunk) {
+            int appender = Integer.parseInt(message.from.substring(1));
+            long seq = Long.parseLong(new String(message.body(), StandardCharsets.UTF_8));
+            if(seq <= last[user][appender]) {
+                synchronized (problems) {
+                    problems.add("u" + user + " got " + message.from + " #" + seq + " after #" + last[user][appender]);
+                }
+            }
+            last[user][appender] = Math.max(last[user][appender], seq);
+            received[user]++;
+        }
+    }
+
+    private static Thread start(String name, ConcurrentLinkedQueue<Throwable> failures, Runnable body) {
+        Thread thread = new Thread(() -> {
+            try {
+                body.run();
+            } catch (Throwable t) {
+                failures.add(t);
+            }
+        }, name);
+        thread.start();
+        return thread;
+    }
+
+    private static void delete(Path dir) throws IOException {
+        try(Stream<Path> files = Files.walk(dir)) {
+            for(Path file : files.sorted(Comparator.reverseOrder()).toList()) Files.deleteIfExists(file);
+        }
+    }
+}
@@ -0,0 +1,32 @@
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Interns user and group names to the int ids of the binary protocol. Ids start at 1 and are never
+// reused or forgotten, a name keeps its id for as long as the server runs.
+public class NameTable {
+    private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+    // id -> name, replaced when it grows, guarded by this for writes
+    private volatile String[] names = new String[1024];
+    private int last;
+
+    public int id(String name) {
+        Integer id = ids.get(name);
+        return id != null ? id : assign(name);
+    }
+
+    private synchronized int assign(String name) {
+        Integer id = ids.get(name);
+        if(id != null) return id;
+        int next = ++last;
+        if(next == names.length) names = Arrays.copyOf(names, names.length * 2);
+        names[next] = name;
+        ids.put(name, next);
+        return next;
+    }
+
+    // null for ids that were never handed out
+    public String name(int id) {
+        String[] current = names;
+        return id > 0 && id < current.length ? current[id] : null;
+    }
+}
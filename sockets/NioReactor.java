@@ -0,0 +1,418 @@
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// One selector thread serving many non-blocking connections. Every connection is pinned
+// to a single reactor, so its commands are handled sequentially on that reactor thread.
+// Delayed work of its connections (coalesced flushes, backpressure timeouts) is timed by the reactor
+// itself, select() waits until the earliest deadline, so no other thread is involved in a write.
+public class NioReactor implements Runnable {
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+    // length prefix + the longest binary frame
+    private static final int MAX_FRAME_BYTES = 4 + BinaryProtocol.MAX_FRAME_LENGTH;
+    // frames per gathering write, well below IOV_MAX
+    private static final int MAX_GATHER = 64;
+    // select() times in milliseconds, delayed tasks due sooner than that (the default coalesce delay) are run
+    // right away, after the keys that were ready, instead of polling the selector until they are due
+    private static final long MIN_SELECT_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    // "no deadline", far enough ahead to still compare by subtraction
+    private static final long NO_DEADLINE_NANOS = Long.MAX_VALUE / 4;
+
+    private final Server server;
+    private final Selector selector;
+    // shared by every connection of this reactor, only touched on the reactor thread
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    private final Queue<SocketChannel> pendingChannels = new ConcurrentLinkedQueue<>();
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    // delayed tasks are handed over from any thread and kept in deadline order on the reactor thread
+    private final Queue<Delayed> newDelayed = new ConcurrentLinkedQueue<>();
+    private final PriorityQueue<Delayed> delayed = new PriorityQueue<>();
+    // the reactor doesn't sleep past this, a task due earlier has to wake it up
+    private volatile long sleepUntil = System.nanoTime() + NO_DEADLINE_NANOS;
+    // the connection whose command is being handled on the current reactor thread
+    private static final ThreadLocal<Connection> DISPATCHING = new ThreadLocal<>();
+    private volatile Thread thread;
+
+    public NioReactor(Server server) throws IOException {
+        this.server = server;
+        this.selector = Selector.open();
+    }
+
+    public void register(SocketChannel channel) {
+        pendingChannels.add(channel);
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        thread = Thread.currentThread();
+        while (!thread.isInterrupted()) {
+            try {
+                registerPending();
+                runTasks();
+                select(runDelayed());
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while(keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Connection conn = (Connection) key.attachment();
+                    try {
+                        if(key.isValid() && key.isReadable()) conn.onReadable();
+                        if(key.isValid() && key.isWritable()) conn.flush();
+                    } catch (IOException | CancelledKeyException e) {
+                        conn.close();
+                    }
+                }
+            } catch (IOException e) {
+                System.out.println("Error in reactor : " + e.getMessage());
+            }
+        }
+    }
+
+    private void registerPending() {
+        SocketChannel channel;
+        while((channel = pendingChannels.poll()) != null) {
+            try {
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                Connection conn = new Connection(channel, key);
+                key.attach(conn);
+                conn.greet();
+            } catch (IOException e) {
+                System.out.println("Error in registering connection : " + e.getMessage());
+                try { channel.close(); } catch (IOException ignored) {}
+            }
+        }
+    }
+
+    // runs the task on this reactor's thread
+    public void execute(Runnable task) {
+        tasks.add(task);
+        if(Thread.currentThread() != thread) selector.wakeup();
+    }
+
+    // runs the task on this reactor's thread once delayNanos have passed
+    public void schedule(Runnable task, long delayNanos) {
+        long deadline = System.nanoTime() + delayNanos;
+        newDelayed.add(new Delayed(deadline, task));
+        if(Thread.currentThread() != thread && deadline - sleepUntil < 0) selector.wakeup();
+    }
+
+    // runs the delayed tasks that are due (or will be within MIN_SELECT_NANOS) and returns the nanoseconds
+    // until the next one, -1 when there is none.
+    // sleepUntil is published before new tasks are taken over : one handed over later either sees a deadline
+    // it doesn't beat, or wakes the selector
+    private long runDelayed() {
+        long now = System.nanoTime();
+        while(!delayed.isEmpty() && delayed.peek().deadline - now < MIN_SELECT_NANOS) delayed.poll().task.run();
+        sleepUntil = delayed.isEmpty() ? now + NO_DEADLINE_NANOS : delayed.peek().deadline;
+        Delayed task;
+        while((task = newDelayed.poll()) != null) delayed.add(task);
+        return delayed.isEmpty() ? -1 : Math.max(0, delayed.peek().deadline - System.nanoTime());
+    }
+
+    private void select(long timeoutNanos) throws IOException {
+        if(timeoutNanos < 0) {
+            selector.select();
+        } else if(timeoutNanos >= MIN_SELECT_NANOS) {
+            // rounded down, what is left under a millisecond is run early by the next runDelayed()
+            selector.select(TimeUnit.NANOSECONDS.toMillis(timeoutNanos));
+        } else {
+            // only a task handed over during runDelayed() can be that close, it runs on the next turn
+            selector.selectNow();
+        }
+    }
+
+    // scraped by ServerMetrics
+    int pendingTasks() {
+        return tasks.size();
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while((task = tasks.poll()) != null) task.run();
+    }
+
+    class Connection extends Server.ClientHandler {
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        // bytes of the line (or binary frame) being assembled, reused for every one of this connection
+        private ByteBuffer lineBuffer = ByteBuffer.allocate(256);
+        // views of the frames of the write in progress, [gatherStart, gatherEnd) are left, the rest waits in outbound
+        private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+        private final Frame[] gatherFrames = new Frame[MAX_GATHER];
+        private int gatherStart;
+        private int gatherEnd;
+        // the last write carried several frames, the next one waits a little for more (see Server.coalesceDelayNanos)
+        private volatile boolean burst;
+        private final AtomicBoolean writeScheduled = new AtomicBoolean();
+        // connections whose reads are paused until this one drains (BACKPRESSURE only)
+        private final Set<Connection> throttled = ConcurrentHashMap.newKeySet();
+        private int pausedBy;
+        private volatile long throttledSince;
+        private volatile boolean closed;
+
+        Connection(SocketChannel channel, SelectionKey key) {
+            super(server);
+            this.channel = channel;
+            this.key = key;
+        }
+
+        // may be called from any thread, the actual write always happens on the reactor thread
+        @Override
+        public void send(Frame frame) {
+            if(closed) return;
+            Connection producer = DISPATCHING.get();
+            boolean queued = producer == this ? outbound.offerReply(frame, false) : outbound.offer(frame, false);
+            if(!queued) {
+                disconnectSlowConsumer();
+                return;
+            }
+            if(outbound.depth() > outbound.capacity()) throttle(producer);
+            if(writeScheduled.compareAndSet(false, true)) {
+                if(burst && server.coalesceDelayNanos > 0) {
+                    reactor().schedule(this::flushOrClose, server.coalesceDelayNanos);
+                } else {
+                    execute(this::flushOrClose);
+                }
+            }
+        }
+
+        // reactor threads can't wait for room, so the connection whose command overfilled us stops reading instead
+        private void throttle(Connection producer) {
+            if(producer == null) return;
+            if(throttled.add(producer)) {
+                producer.pauseReading();
+                if(throttled.size() == 1) {
+                    long since = throttledSince = System.nanoTime();
+                    reactor().schedule(() -> checkThrottleTimeout(since), TimeUnit.MILLISECONDS.toNanos(server.backpressureTimeoutMillis));
+                }
+                // we may have drained while registering, don't leave the producer paused for nothing
+                if(outbound.depth() <= outbound.capacity() / 2) releaseThrottled();
+            }
+        }
+
+        // producers may not stay parked behind a stalled reader forever
+        private void checkThrottleTimeout(long since) {
+            if(!throttled.isEmpty() && throttledSince == since) disconnectSlowConsumer();
+        }
+
+        private void releaseThrottled() {
+            for(Connection producer : throttled) {
+                if(throttled.remove(producer)) producer.reactor().execute(producer::resumeReading);
+            }
+        }
+
+        private NioReactor reactor() {
+            return NioReactor.this;
+        }
+
+        private void pauseReading() {
+            if(pausedBy++ == 0 && key.isValid()) key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        }
+
+        private void resumeReading() {
+            if(--pausedBy == 0 && key.isValid()) key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        }
+
+        @Override
+        protected void abort() {
+            execute(this::close);
+        }
+
+        void onReadable() throws IOException {
+            readBuffer.clear();
+            if(channel.read(readBuffer) < 0) {
+                close();
+                return;
+            }
+            readBuffer.flip();
+            DISPATCHING.set(this);
+            try {
+                while(readBuffer.hasRemaining()) {
+                    // PROTOCOL BINARY may switch over in the middle of this read
+                    if(isBinary()) {
+                        readFrames();
+                        return;
+                    }
+                    byte b = readBuffer.get();
+                    // same terminators as BufferedReader.readLine(), the empty line between \r and \n is skipped by handleLine
+                    if(b == '\n' || b == '\r') {
+                        String line = new String(lineBuffer.array(), 0, lineBuffer.position(), StandardCharsets.UTF_8);
+                        lineBuffer.clear();
+                        if(!handleLine(line)) {
+                            close();
+                            return;
+                        }
+                        if(closed) return;
+                        continue;
+                    }
+                    if(!lineBuffer.hasRemaining() && !growLineBuffer()) {
+                        send("ERROR : line too long");
+                        close();
+                        return;
+                    }
+                    lineBuffer.put(b);
+                }
+            } finally {
+                DISPATCHING.remove();
+            }
+        }
+
+        private boolean growLineBuffer() {
+            return growLineBuffer(Math.min(lineBuffer.capacity() * 2, MAX_LINE_LENGTH));
+        }
+
+        private boolean growLineBuffer(int capacity) {
+            if(lineBuffer.capacity() >= capacity) return false;
+            ByteBuffer bigger = ByteBuffer.allocate(capacity);
+            lineBuffer.flip();
+            bigger.put(lineBuffer);
+            lineBuffer = bigger;
+            return true;
+        }
+
+        // a frame that is entirely in readBuffer is handled right there, only frames split
+        // across reads are copied into lineBuffer first
+        private void readFrames() {
+            while(readBuffer.hasRemaining()) {
+                if(skipLineFeed) {
+                    skipLineFeed = false;
+                    if(readBuffer.get(readBuffer.position()) == '\n') readBuffer.get();
+                    continue;
+                }
+                if(lineBuffer.position() == 0 && readBuffer.remaining() >= 4) {
+                    int length = readBuffer.getInt(readBuffer.position());
+                    if(!validFrameLength(length)) return;
+                    if(readBuffer.remaining() >= 4 + length) {
+                        ByteBuffer frame = readBuffer.slice(readBuffer.position() + 4, length);
+                        readBuffer.position(readBuffer.position() + 4 + length);
+                        if(!dispatchFrame(frame)) return;
+                        continue;
+                    }
+                }
+                int wanted = 4;
+                if(lineBuffer.position() >= 4) {
+                    int length = lineBuffer.getInt(0);
+                    if(!validFrameLength(length)) return;
+                    wanted = 4 + length;
+                    if(lineBuffer.capacity() < wanted) growLineBuffer(Math.min(Math.max(wanted, lineBuffer.capacity() * 2), MAX_FRAME_BYTES));
+                }
+                int n = Math.min(wanted - lineBuffer.position(), readBuffer.remaining());
+                lineBuffer.put(lineBuffer.position(), readBuffer, readBuffer.position(), n);
+                lineBuffer.position(lineBuffer.position() + n);
+                readBuffer.position(readBuffer.position() + n);
+                if(wanted > 4 && lineBuffer.position() == wanted) {
+                    ByteBuffer frame = ByteBuffer.wrap(lineBuffer.array(), 4, wanted - 4).slice();
+                    lineBuffer.clear();
+                    if(!dispatchFrame(frame)) return;
+                }
+            }
+        }
+
+        private boolean validFrameLength(int length) {
+            if(length >= BinaryProtocol.HEADER_LENGTH && length <= BinaryProtocol.MAX_FRAME_LENGTH) return true;
+            send(BinaryProtocol.error(0, "frame length " + length + " out of range"));
+            close();
+            return false;
+        }
+
+        // false once the connection is gone
+        private boolean dispatchFrame(ByteBuffer frame) {
+            if(!handleFrame(frame)) {
+                close();
+                return false;
+            }
+            return !closed;
+        }
+
+        private void flushOrClose() {
+            try {
+                flush();
+            } catch (IOException | CancelledKeyException e) {
+                close();
+            }
+        }
+
+        void flush() throws IOException {
+            writeScheduled.set(false);
+            if(!key.isValid()) return;
+            while(true) {
+                if(gatherStart == gatherEnd && !gatherQueued()) break;
+                channel.write(gather, gatherStart, gatherEnd - gatherStart);
+                while(gatherStart < gatherEnd && !gather[gatherStart].hasRemaining()) gatherStart++;
+                if(gatherStart < gatherEnd) {
+                    // socket buffer is full, continue once the selector reports it writable
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+                server.metrics.wrote(gatherEnd);
+                for(int i = 0; i < gatherEnd; i++) {
+                    server.metrics.written(gatherFrames[i]);
+                    gather[i] = null;
+                    gatherFrames[i] = null;
+                }
+                burst = gatherEnd > 1;
+                gatherStart = gatherEnd = 0;
+                if(!throttled.isEmpty() && outbound.depth() <= outbound.capacity() / 2) releaseThrottled();
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        }
+
+        // the next write, as many queued frames as fit into Server.coalesceBytes (at least one).
+        // False when nothing is queued.
+        private boolean gatherQueued() {
+            int bytes = 0;
+            Frame frame;
+            while(gatherEnd < MAX_GATHER && (gatherEnd == 0 || bytes < server.coalesceBytes) && (frame = outbound.poll()) != null) {
+                gatherFrames[gatherEnd] = frame;
+                gather[gatherEnd++] = frame.buffer();
+                bytes += frame.length();
+            }
+            return gatherEnd > 0;
+        }
+
+        @Override
+        protected void closeTransport() throws IOException {
+            try {
+                flush();
+            } catch (IOException | CancelledKeyException ignored) {
+            }
+            closed = true;
+            releaseThrottled();
+            key.cancel();
+            channel.close();
+        }
+    }
+
+    private static final class Delayed implements Comparable<Delayed> {
+        private final long deadline;
+        private final Runnable task;
+
+        private Delayed(long deadline, Runnable task) {
+            this.deadline = deadline;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(deadline - other.deadline, 0);
+        }
+    }
+}
@@ -0,0 +1,193 @@
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Bounded per-connection queue of frames waiting to be written. Any thread may offer,
+// only the connection's writer (writer thread or reactor) drains it.
+public class OutboundQueue {
+    // what to do once a connection has <capacity> lines it hasn't written yet
+    //   DROP_OLDEST  : forget the oldest queued line and keep the newest
+    //   DISCONNECT   : refuse the line, the connection gets dropped as a slow consumer
+    //   BACKPRESSURE : make the producer wait for room, a producer that may not wait
+    //                  (a reactor thread) overshoots up to 2x capacity and throttles its reads instead
+    enum OverflowPolicy { DROP_OLDEST, DISCONNECT, BACKPRESSURE }
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private final ArrayDeque<Frame> items = new ArrayDeque<>();
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private final long backpressureTimeoutNanos;
+    private boolean closed;
+
+    // counters, guarded by lock
+    private long enqueued;
+    private long dropped;
+    private int maxDepth;
+
+    public OutboundQueue(int capacity, OverflowPolicy policy, long backpressureTimeoutMillis) {
+        this.capacity = Math.max(1, capacity);
+        this.policy = policy;
+        this.backpressureTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(backpressureTimeoutMillis);
+    }
+
+    // returns false when the line was refused and the connection has to be dropped as a slow consumer
+    public boolean offer(Frame frame, boolean mayWait) {
+        return offer(frame, policy, mayWait);
+    }
+
+    // replies to the connection's own commands always push back on that connection rather than
+    // being dropped, a client that doesn't read its replies only slows itself down
+    public boolean offerReply(Frame frame, boolean mayWait) {
+        return offer(frame, OverflowPolicy.BACKPRESSURE, mayWait);
+    }
+
+    private boolean offer(Frame frame, OverflowPolicy policy, boolean mayWait) {
+        lock.lock();
+        try {
+            if(closed) return true;
+            if(items.size() >= capacity) {
+                switch (policy) {
+                    case DROP_OLDEST:
+                        items.poll();
+                        dropped++;
+                        break;
+                    case DISCONNECT:
+                        dropped++;
+                        return false;
+                    case BACKPRESSURE:
+                        if(!mayWait) {
+                            if(items.size() >= 2 * capacity) {
+                                dropped++;
+                                return false;
+                            }
+                            break;
+                        }
+                        long nanos = backpressureTimeoutNanos;
+                        while(items.size() >= capacity && !closed) {
+                            if(nanos <= 0) {
+                                dropped++;
+                                return false;
+                            }
+                            nanos = notFull.awaitNanos(nanos);
+                        }
+                        if(closed) return true;
+                        break;
+                }
+            }
+            items.add(frame);
+            enqueued++;
+            maxDepth = Math.max(maxDepth, items.size());
+            notEmpty.signal();
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // blocks until a frame is available, returns null once the queue is closed and drained
+    public Frame take() throws InterruptedException {
+        lock.lock();
+        try {
+            while(items.isEmpty()) {
+                if(closed) return null;
+                notEmpty.await();
+            }
+            Frame frame = items.poll();
+            notFull.signal();
+            return frame;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public Frame poll() {
+        lock.lock();
+        try {
+            Frame frame = items.poll();
+            if(frame != null) notFull.signal();
+            return frame;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // waits up to nanos for a frame, null if none came (or the queue is closed and drained)
+    public Frame poll(long nanos) throws InterruptedException {
+        lock.lock();
+        try {
+            while(items.isEmpty()) {
+                if(closed || nanos <= 0) return null;
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            Frame frame = items.poll();
+            notFull.signal();
+            return frame;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // no more frames are accepted, whatever is queued can still be drained
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // closes the queue and throws away everything that wasn't written yet
+    public void discard() {
+        lock.lock();
+        try {
+            dropped += items.size();
+            items.clear();
+            closed = true;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public int depth() {
+        lock.lock();
+        try {
+            return items.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long dropped() {
+        lock.lock();
+        try {
+            return dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        lock.lock();
+        try {
+            return "depth=" + items.size() + " maxDepth=" + maxDepth + " enqueued=" + enqueued + " dropped=" + dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
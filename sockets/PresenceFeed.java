@@ -0,0 +1,60 @@
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.StringJoiner;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Pushes logins and logouts to the connections that sent WATCH_USERS, instead of them polling LIST_USERS.
+// A watcher first gets "USERS <version> <user,...>", then one "PRESENCE <version> <+user|-user,...>" line per
+// interval with the net changes since the previous one. A version that doesn't follow the last one seen
+// means a line was lost (e.g. dropped as slow consumer), WATCH_USERS again to resync.
+public class PresenceFeed {
+    private final Set<Server.ClientHandler> watchers = ConcurrentHashMap.newKeySet();
+    // latest state per user since the last flush, guarded by this
+    private Map<String, Boolean> pending = new LinkedHashMap<>();
+    // what watchers have been told so far and its version, guarded by published
+    private final Set<String> published = new HashSet<>();
+    private long version;
+
+    public synchronized void changed(String username, boolean online) {
+        pending.put(username, online);
+    }
+
+    // the snapshot is queued while holding published, so no delta can overtake it
+    public void watch(Server.ClientHandler handler) {
+        synchronized (published) {
+            watchers.add(handler);
+            handler.send("USERS " + version + " " + String.join(",", published));
+        }
+    }
+
+    public void unwatch(Server.ClientHandler handler) {
+        watchers.remove(handler);
+    }
+
+    // called every interval by the server's timer
+    public void flush() {
+        Map<String, Boolean> changes;
+        synchronized (this) {
+            if(pending.isEmpty()) return;
+            changes = pending;
+            pending = new LinkedHashMap<>();
+        }
+        synchronized (published) {
+            List<String> delta = new ArrayList<>();
+            changes.forEach((username, online) -> {
+                if(online && published.add(username)) delta.add("+" + username);
+                else if(!online && published.remove(username)) delta.add("-" + username);
+            });
+            if(delta.isEmpty()) return;
+            StringJoiner line = new StringJoiner(",", "PRESENCE " + (++version) + " ", "");
+            delta.forEach(line::add);
+            // encoded once and shared, like a group message
+            Frame frame = Frame.of(line.toString());
+            for(Server.ClientHandler watcher : watchers) watcher.send(frame);
+        }
+    }
+}
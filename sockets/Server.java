@@ -0,0 +1,776 @@
+import java.io.*;
+import java.net.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class Server {
+    // BLOCKING : one pooled platform thread per connection blocking in readLine()
+    // VIRTUAL  : same blocking handlers, but each one runs on its own virtual thread
+    // NIO      : a few selector-driven reactor threads shared by all connections
+    enum IoMode { BLOCKING, VIRTUAL, NIO }
+
+    static final int DEFAULT_PORT = 9090;
+    private final int PORT;
+    private final IoMode mode;
+    private final int reactorCount;
+    private ServerSocket serverSocket;
+    private ServerSocketChannel serverChannel;
+    final ExecutorService pool;
+    final List<NioReactor> reactors = new CopyOnWriteArrayList<>();
+    final ConcurrentHashMap<String,ClientHandler> clients = new ConcurrentHashMap<>();
+    // member sets are immutable and replaced on every change, so a broadcast can iterate one without locking
+    private ConcurrentHashMap<String, Set<String>> groups = new ConcurrentHashMap<>();
+    // reverse index, the groups each user is in, so a logout only touches that user's groups
+    private final ConcurrentHashMap<String, Set<String>> userGroups = new ConcurrentHashMap<>();
+
+    // per-connection outbound queue settings, e.g. -Dchatwave.outbound.policy=DROP_OLDEST
+    final int outboundCapacity = Integer.getInteger("chatwave.outbound.capacity", 1024);
+    final OutboundQueue.OverflowPolicy overflowPolicy =
+            OutboundQueue.OverflowPolicy.valueOf(System.getProperty("chatwave.outbound.policy", "DISCONNECT").toUpperCase());
+    final long backpressureTimeoutMillis = Long.getLong("chatwave.outbound.backpressureTimeoutMillis", 5000);
+    // write coalescing : whatever is queued for a connection goes out in one write of up to coalesceBytes,
+    // and after a write that carried several frames (a burst) the writer waits up to coalesceDelayMicros
+    // for more before writing. A lone frame on a quiet connection is written right away. NIO reactors time
+    // delays in whole milliseconds, a shorter one only waits for the other connections ready in the same select.
+    // -Dchatwave.outbound.coalesceBytes=0 writes (and flushes) frame by frame
+    final int coalesceBytes = Integer.getInteger("chatwave.outbound.coalesceBytes", 64 * 1024);
+    final long coalesceDelayNanos = TimeUnit.MICROSECONDS.toNanos(Long.getLong("chatwave.outbound.coalesceDelayMicros", 200));
+    // housekeeping timers shared by every connection
+    final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "server-timer");
+        t.setDaemon(true);
+        return t;
+    });
+    // logins and logouts for WATCH_USERS, coalesced per interval, e.g. -Dchatwave.presence.intervalMillis=1000
+    final PresenceFeed presence = new PresenceFeed();
+    // user and group ids of the binary protocol
+    final NameTable names = new NameTable();
+    final long presenceIntervalMillis = Long.getLong("chatwave.presence.intervalMillis", 250);
+    // delivery latencies and gauges, served over HTTP when e.g. -Dchatwave.metrics.port=9091 is set
+    final ServerMetrics metrics = new ServerMetrics();
+    // offline mailboxes, on when e.g. -Dchatwave.mailbox.dir=mailboxes is set, null otherwise
+    final MailboxLog mailbox;
+    final long mailboxCommitIntervalMillis = Long.getLong("chatwave.mailbox.commitIntervalMillis", 10);
+    // per-user and per-connection token buckets in front of MSG and GROUP_MSG, see AdmissionControl
+    final AdmissionControl admission = new AdmissionControl();
+
+    public Server() throws IOException {
+        this(IoMode.BLOCKING, 0);
+    }
+
+    public Server(IoMode mode, int reactorCount) throws IOException {
+        this(mode, reactorCount, DEFAULT_PORT);
+    }
+
+    // port 0 binds an ephemeral port, used by the benchmarks
+    public Server(IoMode mode, int reactorCount, int port) throws IOException {
+        this.PORT = port;
+        this.mode = mode;
+        this.reactorCount = Math.max(1, reactorCount);
+        this.pool = mode == IoMode.VIRTUAL ? Executors.newVirtualThreadPerTaskExecutor() : Executors.newCachedThreadPool();
+        if(mode == IoMode.NIO) {
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(PORT));
+        } else {
+            serverSocket = new ServerSocket(PORT);
+        }
+        scheduler.scheduleWithFixedDelay(presence::flush, presenceIntervalMillis, presenceIntervalMillis, TimeUnit.MILLISECONDS);
+        String mailboxDir = System.getProperty("chatwave.mailbox.dir");
+        mailbox = mailboxDir == null ? null : new MailboxLog(Path.of(mailboxDir), Integer.getInteger("chatwave.mailbox.segmentBytes", 16 << 20));
+        if(mailbox != null) {
+            // group commit : whatever was appended meanwhile goes to disk together
+            scheduler.scheduleWithFixedDelay(mailbox::commit, mailboxCommitIntervalMillis, mailboxCommitIntervalMillis, TimeUnit.MILLISECONDS);
+            Runtime.getRuntime().addShutdownHook(new Thread(mailbox::commit, "mailbox-commit"));
+        }
+        if(admission.enabled) scheduler.scheduleWithFixedDelay(admission::sweep, 1, 1, TimeUnit.MINUTES);
+        // quantiles cover the last one to two minutes
+        if(ServerMetrics.ENABLED) scheduler.scheduleWithFixedDelay(metrics::rotate, 1, 1, TimeUnit.MINUTES);
+        System.out.println("SERVER listening on PORT:"+PORT+" in "+mode+" mode");
+    }
+
+    public void start() {
+        int metricsPort = Integer.getInteger("chatwave.metrics.port", 0);
+        if(metricsPort > 0) {
+            try {
+                metrics.serve(this, System.getProperty("chatwave.metrics.address", "127.0.0.1"), metricsPort,
+                        Boolean.getBoolean("chatwave.metrics.admission"));
+            } catch (IOException e) {
+                System.out.println("Error in serving metrics : " + e.getMessage());
+            }
+        }
+        if(mode == IoMode.NIO) {
+            startReactors();
+            return;
+        }
+        try{
+            while (true) {
+                Socket client = serverSocket.accept();
+                ClientHandler handler = new ClientHandler(client,this);
+                pool.submit(handler);
+            }
+        } catch (IOException e) {
+            System.out.println("Error in starting server : "+ e.getMessage());
+        }
+    }
+
+    private void startReactors() {
+        try{
+            NioReactor[] reactors = new NioReactor[reactorCount];
+            for(int i = 0; i < reactorCount; i++) {
+                reactors[i] = new NioReactor(this);
+                this.reactors.add(reactors[i]);
+                new Thread(reactors[i], "reactor-" + i).start();
+            }
+            // accepting stays blocking on this thread, connections are handed out round-robin
+            int next = 0;
+            while (true) {
+                SocketChannel client = serverChannel.accept();
+                reactors[next].register(client);
+                next = (next + 1) % reactorCount;
+            }
+        } catch (IOException e) {
+            System.out.println("Error in starting server : "+ e.getMessage());
+        }
+    }
+
+    public boolean registerUser(String username, ClientHandler handler) {
+        if(clients.putIfAbsent(username, handler) != null) return false;
+        if(mailbox != null) mailbox.register(username);
+        presence.changed(username, true);
+        return true;
+    }
+
+    public void unRegisterUser(String username) {
+        clients.remove(username);
+        presence.changed(username, false);
+        // with mailboxes, members stay in their groups while offline and get the messages at their next LOGIN
+        if(mailbox != null) return;
+        Set<String> memberOf = userGroups.remove(username);
+        if(memberOf != null) memberOf.forEach(groupName -> removeMember(groupName, username));
+    }
+
+    private void removeMember(String groupName, String username) {
+        groups.computeIfPresent(groupName, (name, members) -> {
+            if(!members.contains(username)) return members;
+            Set<String> rest = new HashSet<>(members);
+            rest.remove(username);
+            return Set.copyOf(rest);
+        });
+    }
+
+    // logged in, or offline with a mailbox that keeps their messages
+    public boolean exists(String username) {
+        return clients.containsKey(username) || mailbox != null && mailbox.knows(username);
+    }
+
+    public ClientHandler getClient(String username) {
+        return clients.get(username);
+    }
+
+    public Set<String> getAllClients() {
+        return clients.keySet();
+    }
+
+    public boolean createGroup(String groupName, Set<String> members, ClientHandler admin) {
+        Set<String> validMembers = new HashSet<>();
+        members.forEach((user) -> {
+            if(exists(user)) validMembers.add(user);
+            else admin.notice(user + " doesn't exist");
+        });
+        if(validMembers.size() < 2) return false;
+        validMembers.add(admin.username);
+        if(groups.putIfAbsent(groupName, Set.copyOf(validMembers)) != null) return false;
+        for(String user : validMembers) {
+            // added inside compute, so it lands either in the set unRegisterUser takes away or in a fresh one
+            userGroups.compute(user, (u, memberOf) -> {
+                if(memberOf == null) memberOf = ConcurrentHashMap.newKeySet();
+                memberOf.add(groupName);
+                return memberOf;
+            });
+            // logged out while the group was being created, unRegisterUser may have missed this group
+            if(mailbox == null && !clients.containsKey(user)) {
+                removeMember(groupName, user);
+                userGroups.computeIfPresent(user, (u, memberOf) -> {
+                    memberOf.remove(groupName);
+                    return memberOf.isEmpty() ? null : memberOf;
+                });
+            }
+        }
+        return true;
+    }
+
+    // immutable snapshot, null when there is no such group
+    public Set<String> getGroupMembers(String groupName) {
+        return groups.get(groupName);
+    }
+
+    public Set<String> getUserGroups(String username) {
+        Set<String> memberOf = userGroups.get(username);
+        return memberOf == null ? Set.of() : Set.copyOf(memberOf);
+    }
+
+    public Set<String> getAllGroups() {
+        return groups.keySet();
+    }
+
+    public boolean sendPrivateMessage(String from, String to, String msg) {
+        return sendPrivateMessage(to, ChatMessage.text(from, null, msg));
+    }
+
+    public boolean sendPrivateMessage(String to, ChatMessage message) {
+        ClientHandler target = clients.get(to);
+        if(target != null) {
+            metrics.accepted(ServerMetrics.PRIVATE);
+            target.deliver(message);
+            return true;
+        }
+        if(mailbox == null || !mailbox.knows(to)) return false;
+        metrics.accepted(ServerMetrics.PRIVATE);
+        mailbox.append(List.of(to), message);
+        replayIfOnline(to);
+        return true;
+    }
+
+    // logged in while the message was being appended, their LOGIN replay may have missed it
+    private void replayIfOnline(String username) {
+        ClientHandler handler = clients.get(username);
+        if(handler != null) handler.replayMailbox(username);
+    }
+
+    public boolean sendGroupMessage(String from, String to, String msg) {
+        return sendGroupMessage(ChatMessage.text(from, to, msg));
+    }
+
+    public boolean sendGroupMessage(ChatMessage message) {
+        Set<String> members = groups.get(message.group);
+        if(members == null) return false;
+        metrics.accepted(ServerMetrics.GROUP);
+
+        // encoded once per protocol, every member queues the same immutable frame
+        List<String> offline = null;
+        for(String user : members){
+            if(user.equals(message.from)) continue;
+            ClientHandler handler = clients.get(user);
+            if(handler != null) handler.deliver(message);
+            else if(mailbox != null && mailbox.knows(user)) {
+                if(offline == null) offline = new ArrayList<>();
+                offline.add(user);
+            }
+        }
+        // one record for all the offline members
+        if(offline != null) {
+            mailbox.append(offline, message);
+            offline.forEach(this::replayIfOnline);
+        }
+        return true;
+    }
+
+    // usage : java Server [BLOCKING|VIRTUAL|NIO] [reactorThreads]
+    public static void main(String[] args) throws IOException{
+        IoMode mode = args.length > 0 ? IoMode.valueOf(args[0].toUpperCase()) : IoMode.BLOCKING;
+        int reactors = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        Server s = new Server(mode, reactors);
+        s.start();
+    }
+
+    static class ClientHandler implements Runnable{
+        // mailbox messages per frame of a replay
+        private static final int REPLAY_CHUNK = 64;
+        private final Socket socket;
+        private final Server server;
+        private DataInputStream in;
+        private OutputStream out;
+        private String username;
+        // switched by PROTOCOL BINARY before LOGIN, nobody can deliver to this connection before that
+        private volatile boolean binary;
+        // the \n of the PROTOCOL line's CRLF may still be ahead of the first frame, a length never starts with it
+        boolean skipLineFeed;
+        // ids this connection has been sent a NAME for, guarded by itself
+        private final BitSet knownIds = new BitSet();
+        // correlation id of the binary request being handled, reader thread only
+        private int correlation;
+        private final ByteArrayOutputStream lineBytes = new ByteArrayOutputStream(256);
+        private byte[] frameBytes = new byte[256];
+        // lines for this client, drained by its own writer so a slow reader never blocks the sender
+        protected final OutboundQueue outbound;
+        private final AtomicBoolean closed = new AtomicBoolean();
+        // this connection's share of AdmissionControl, the user's own bucket lives in the server
+        private final TokenBucket admissionBucket = new TokenBucket();
+        // counted as an open connection, only handlers of a real transport are greeted
+        private boolean greeted;
+        private Future<?> writer;
+        private volatile Thread readerThread;
+        
+        public ClientHandler(Socket socket, Server server) {
+            this.socket = socket;
+            this.server = server;
+            this.outbound = new OutboundQueue(server.outboundCapacity, server.overflowPolicy, server.backpressureTimeoutMillis);
+        }
+
+        // used by transports that don't own a blocking Socket, see NioReactor
+        protected ClientHandler(Server server) {
+            this(null, server);
+        }
+
+        public void send(String msg) {
+            send(Frame.of(msg));
+        }
+
+        // a private or group message, in whichever protocol this connection speaks
+        void deliver(ChatMessage message) {
+            if(!binary) {
+                send(message.textFrame());
+                return;
+            }
+            if(message.group != null) ensureKnown(server.names.id(message.group));
+            ensureKnown(server.names.id(message.from));
+            send(message.binaryFrame(server.names));
+        }
+
+        // messages kept while this user was offline, handed over in a few large frames rather than one per message
+        void replayMailbox(String name) {
+            if(server.mailbox == null) return;
+            int replayed = server.mailbox.replay(name, REPLAY_CHUNK, chunk -> {
+                List<Frame> frames = new ArrayList<>(chunk.size());
+                for(ChatMessage message : chunk) {
+                    if(!binary) {
+                        frames.add(message.textFrame());
+                        continue;
+                    }
+                    if(message.group != null) ensureKnown(server.names.id(message.group));
+                    ensureKnown(server.names.id(message.from));
+                    frames.add(message.binaryFrame(server.names));
+                }
+                send(Frame.concat(frames));
+            });
+            server.metrics.mailboxReplayed.add(replayed);
+        }
+
+        // informational reply to the command being handled, e.g. a member CREATE_GROUP had to skip
+        void notice(String text) {
+            if(binary) send(BinaryProtocol.error(correlation, text));
+            else send(text);
+        }
+
+        // the NAME is queued while holding knownIds, so no frame using the id can get ahead of it
+        private void ensureKnown(int id) {
+            synchronized (knownIds) {
+                if(knownIds.get(id)) return;
+                knownIds.set(id);
+                send(BinaryProtocol.name(id, server.names.name(id)));
+            }
+        }
+
+        // safe to call from any thread, the frame is written later by this client's writer
+        public void send(Frame frame) {
+            boolean queued = Thread.currentThread() == readerThread ? outbound.offerReply(frame, true) : outbound.offer(frame, true);
+            if(!queued) disconnectSlowConsumer();
+        }
+
+        private void drainOutbound() {
+            try {
+                List<Frame> batch = new ArrayList<>();
+                boolean burst = false;
+                Frame frame;
+                while((frame = outbound.take()) != null) {
+                    long deadline = System.nanoTime() + server.coalesceDelayNanos;
+                    int bytes = 0;
+                    do {
+                        frame.writeTo(out);
+                        batch.add(frame);
+                        bytes += frame.length();
+                    } while(bytes < server.coalesceBytes && (frame = nextCoalesced(burst, deadline)) != null);
+                    out.flush();
+                    burst = batch.size() > 1;
+                    server.metrics.wrote(batch.size());
+                    for(Frame written : batch) server.metrics.written(written);
+                    batch.clear();
+                }
+            } catch (IOException e) {
+                System.out.println(e.getMessage());
+                // wakes the reader up, which then runs close()
+                try { socket.close(); } catch (IOException ignored) {}
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        // the next frame for the write being assembled, during a burst it may still be on its way
+        private Frame nextCoalesced(boolean burst, long deadline) throws InterruptedException {
+            Frame frame = outbound.poll();
+            if(frame == null && burst) frame = outbound.poll(deadline - System.nanoTime());
+            return frame;
+        }
+
+        void disconnectSlowConsumer() {
+            System.out.println("Disconnecting slow consumer " + username + " : " + outbound);
+            server.metrics.slowConsumerDisconnects.increment();
+            outbound.discard();
+            abort();
+        }
+
+        // tears the connection down from a foreign thread, the owning thread finishes the cleanup
+        protected void abort() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                System.out.println(e);
+            }
+        }
+
+        @Override
+        public void run() {
+            readerThread = Thread.currentThread();
+            try {
+                // read as bytes, the connection may switch to binary frames right after a line
+                in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                out = new BufferedOutputStream(socket.getOutputStream(), Math.max(8192, server.coalesceBytes));
+                writer = server.pool.submit(this::drainOutbound);
+                greet();
+
+                while(true) {
+                    if(binary) {
+                        ByteBuffer frame = readFrame();
+                        if(frame == null || !handleFrame(frame)) return;
+                    } else {
+                        String line = BinaryProtocol.readLine(in, lineBytes);
+                        if(line == null || !handleLine(line)) return;
+                    }
+                }
+            } catch (IOException e) {
+                System.out.println(e);
+            } finally {
+                close();
+            }
+        }
+
+        void greet() {
+            greeted = true;
+            server.metrics.openConnections.incrementAndGet();
+            send("WELCOME : Please LOGIN <username>");
+        }
+
+        // null at the end of the stream or after a frame with an impossible length
+        private ByteBuffer readFrame() throws IOException {
+            int first = in.read();
+            if(skipLineFeed) {
+                skipLineFeed = false;
+                if(first == '\n') first = in.read();
+            }
+            if(first < 0) return null;
+            int length = (first << 24) | (in.readUnsignedByte() << 16) | in.readUnsignedShort();
+            if(length < BinaryProtocol.HEADER_LENGTH || length > BinaryProtocol.MAX_FRAME_LENGTH) {
+                send(BinaryProtocol.error(0, "frame length " + length + " out of range"));
+                return null;
+            }
+            if(frameBytes.length < length) frameBytes = new byte[Math.max(length, frameBytes.length * 2)];
+            in.readFully(frameBytes, 0, length);
+            return ByteBuffer.wrap(frameBytes, 0, length);
+        }
+
+        // dispatches one protocol line, returns false once the client asked to LOGOUT
+        boolean handleLine(String line) {
+            line = line.trim();
+            if(line.isEmpty()) return true;
+            String[] parts = line.split(" ",3);
+            String cmd = parts[0].toUpperCase();
+
+            switch (cmd) {
+                case "LOGIN" : handleLogin(parts); break;
+                case "MSG" : handleMsg(parts); break;
+                case "CREATE_GROUP": handleCreateGroup(parts); break;
+                case "GROUP_MSG": handleGroupMsg(parts); break;
+                case "LIST_USERS": handleListUsers(); break;
+                case "WATCH_USERS": handleWatchUsers(); break;
+                case "GROUP_MEMBERS" : handleGetGroupMembers(parts); break;
+                case "LIST_GROUPS" : handleListGroups(); break;
+                case "PROTOCOL" : handleProtocol(parts); break;
+                case "LOGOUT": return false;
+                default: send("ERROR Unknown command");
+            }
+            return true;
+        }
+
+        private void handleProtocol(String[] parts) {
+            if(parts.length < 2 || !(parts[1].equalsIgnoreCase("BINARY") || parts[1].equalsIgnoreCase("TEXT"))) {
+                send("ERROR usage : PROTOCOL <TEXT|BINARY>");
+                return;
+            }
+            if(username != null) {
+                send("ERROR : PROTOCOL has to be chosen before LOGIN");
+                return;
+            }
+            send("PROTOCOL " + parts[1].toUpperCase() + " OK");
+            binary = parts[1].equalsIgnoreCase("BINARY");
+            skipLineFeed = binary;
+        }
+
+        boolean isBinary() {
+            return binary;
+        }
+
+        // dispatches one binary frame (opcode onwards), returns false once the client asked to LOGOUT.
+        // Ids and bodies are read right off the buffer, only names that need a lookup become Strings.
+        boolean handleFrame(ByteBuffer frame) {
+            byte opcode = frame.get();
+            correlation = frame.getInt();
+            try {
+                if(opcode != BinaryProtocol.LOGIN && opcode != BinaryProtocol.LOGOUT && username == null) {
+                    send(BinaryProtocol.error(correlation, "Please LOGIN first"));
+                    return true;
+                }
+                switch (opcode) {
+                    case BinaryProtocol.LOGIN : frameLogin(frame); break;
+                    case BinaryProtocol.MSG : frameMsg(frame); break;
+                    case BinaryProtocol.CREATE_GROUP : frameCreateGroup(frame); break;
+                    case BinaryProtocol.GROUP_MSG : frameGroupMsg(frame); break;
+                    case BinaryProtocol.LIST_USERS : sendIds(server.getAllClients()); break;
+                    case BinaryProtocol.GROUP_MEMBERS : frameGroupMembers(frame); break;
+                    case BinaryProtocol.LIST_GROUPS : sendIds(server.getAllGroups()); break;
+                    case BinaryProtocol.RESOLVE : frameResolve(frame); break;
+                    case BinaryProtocol.LOGOUT : return false;
+                    default: send(BinaryProtocol.error(correlation, "Unknown command"));
+                }
+            } catch (BufferUnderflowException e) {
+                send(BinaryProtocol.error(correlation, "malformed frame"));
+            } finally {
+                correlation = 0;
+            }
+            return true;
+        }
+
+        private void frameLogin(ByteBuffer frame) {
+            String name = BinaryProtocol.readString(frame);
+            if(username != null || name.isEmpty() || !server.registerUser(name, this)) {
+                send(BinaryProtocol.error(correlation, "Username already registered"));
+                return;
+            }
+            username = name;
+            int id = server.names.id(name);
+            ensureKnown(id);
+            send(BinaryProtocol.ok(correlation, id));
+            replayMailbox(name);
+        }
+
+        private void frameMsg(ByteBuffer frame) {
+            String to = server.names.name(frame.getInt());
+            if(to != null && throttled(1)) return;
+            if(to != null && server.sendPrivateMessage(to, ChatMessage.binary(username, null, BinaryProtocol.readBody(frame)))) {
+                send(BinaryProtocol.ok(correlation));
+            }
+            else send(BinaryProtocol.error(correlation, "User doesn't exist"));
+        }
+
+        private void frameCreateGroup(ByteBuffer frame) {
+            String groupName = BinaryProtocol.readString(frame);
+            int count = Short.toUnsignedInt(frame.getShort());
+            Set<String> members = new HashSet<>();
+            for(int i = 0; i < count; i++) {
+                String member = server.names.name(frame.getInt());
+                if(member != null) members.add(member);
+            }
+            if(groupName.isEmpty() || !server.createGroup(groupName, members, this)) {
+                send(BinaryProtocol.error(correlation, "this Group cannot be created"));
+                return;
+            }
+            int id = server.names.id(groupName);
+            ensureKnown(id);
+            send(BinaryProtocol.ok(correlation, id));
+            server.sendGroupMessage(username, groupName, groupName + " group created successfull and you have been added.");
+        }
+
+        private void frameGroupMsg(ByteBuffer frame) {
+            String groupName = server.names.name(frame.getInt());
+            Set<String> members = groupName == null ? null : server.getGroupMembers(groupName);
+            if(members == null) {
+                send(BinaryProtocol.error(correlation, "Group doesn't exist"));
+                return;
+            }
+            if(!members.contains(username)) {
+                send(BinaryProtocol.error(correlation, "You're not a member of the group " + groupName));
+                return;
+            }
+            if(throttled(members.size() - 1)) return;
+            server.sendGroupMessage(ChatMessage.binary(username, groupName, BinaryProtocol.readBody(frame)));
+            send(BinaryProtocol.ok(correlation));
+        }
+
+        private void frameGroupMembers(ByteBuffer frame) {
+            String groupName = server.names.name(frame.getInt());
+            Set<String> members = groupName == null ? null : server.getGroupMembers(groupName);
+            if(members == null) send(BinaryProtocol.error(correlation, "Group doesn't exist"));
+            else sendIds(members);
+        }
+
+        private void frameResolve(ByteBuffer frame) {
+            String name = BinaryProtocol.readString(frame);
+            if(!server.exists(name) && server.getGroupMembers(name) == null) {
+                send(BinaryProtocol.error(correlation, name + " doesn't exist"));
+                return;
+            }
+            int id = server.names.id(name);
+            synchronized (knownIds) { knownIds.set(id); }
+            send(BinaryProtocol.ok(correlation, id));
+        }
+
+        private void sendIds(Collection<String> names) {
+            int[] ids = new int[names.size()];
+            int n = 0;
+            for(String name : names) {
+                if(n == ids.length) break;
+                ensureKnown(ids[n++] = server.names.id(name));
+            }
+            send(BinaryProtocol.ids(correlation, n == ids.length ? ids : Arrays.copyOf(ids, n)));
+        }
+        
+        private void handleLogin(String[] parts) {
+            if(parts.length < 2) {
+                send("ERROR : wrong usage : LOGIN <username>");
+                return;
+            }
+            if(server.registerUser(parts[1],this)) {
+                username = parts[1];
+                send("LOGIN successfull " + username);
+                replayMailbox(username);
+            }
+            else {
+                send("ERROR : Username already registered");
+            }
+        }
+
+        private void handleMsg(String[] parts) {
+            if(parts.length < 3) {
+                send("ERROR : MSG <to> <message>");
+                return;
+            }
+            if(username == null) {
+                send("ERROR: Please LOGIN first using LOGIN <username>");
+                return;
+            }
+            if(throttled(1)) return;
+            if(server.sendPrivateMessage(username, parts[1], parts[2])) send("Message sent to "+parts[1]);
+            else send("User doesn't exit");
+        }
+
+        private void handleCreateGroup(String[] parts) {
+            if(parts.length < 3) {
+                send("ERROR usage : CREATE_GROUP <group_name> <member1,member2,...>");
+                return;
+            }
+            if(username == null) {
+                send("ERROR: Please LOGIN first using LOGIN <username>");
+                return;
+            }
+            Set<String> members = new HashSet<>(Arrays.asList(parts[2].split(",")));
+            if(server.createGroup(parts[1],members,this)) {
+                send(parts[1]+" group created successfull");
+                server.sendGroupMessage(username,parts[1],parts[1]+" group created successfull and you have been added.");
+            }
+            else send("ERROR : this Group cannot be created, due to any of the following reason(s)\n1. Group with this Group Name already exists.\n2. No member to be added exists.\n3. Group size is less than 3.");
+        }
+
+        private void handleGroupMsg(String[] parts) {
+            if(parts.length < 3) {
+                send("ERROR usage : GROUP_MSG <group_name> <message>");
+                return;
+            }
+            if(username == null) {
+                send("ERROR: Please LOGIN first using LOGIN <username>");
+                return;
+            }
+            Set<String> members = server.getGroupMembers(parts[1]);
+            if(members == null) {
+                send("ERROR : "+ parts[1] + "doesn't exits");
+                return;
+            }
+            if(!members.contains(username)) {
+                send("ERROR : You're not a member of the group " + parts[1]);
+                return;
+            }
+            if(throttled(members.size() - 1)) return;
+            if(server.sendGroupMessage(username,parts[1],parts[2])) send("Message sent to group " + parts[1]);
+            else send("Error in sending message.");
+        }
+
+        // takes the message's tokens, or answers THROTTLED with when to retry and returns true
+        private boolean throttled(int recipients) {
+            long wait = server.admission.admit(username, admissionBucket, server.admission.cost(recipients));
+            if(wait == 0) return false;
+            long retryAfter = AdmissionControl.retryAfterMillis(wait);
+            if(binary) send(BinaryProtocol.throttled(correlation, retryAfter));
+            else send("THROTTLED : retry in " + retryAfter + " ms");
+            return true;
+        }
+
+        private void handleListUsers() {
+            if(username == null) {
+                send("ERROR: Please LOGIN first using LOGIN <username>");
+                return;
+            }
+            send("Users : " + String.join(",",server.getAllClients()));
+        }
+
+        private void handleWatchUsers() {
+            if(username == null) {
+                send("ERROR: Please LOGIN first using LOGIN <username>");
+                return;
+            }
+            server.presence.watch(this);
+        }
+
+        private void handleGetGroupMembers(String[] parts) {
+            if(parts.length < 2) {
+                send("ERROR usage : GROUP_MEMBERS <group_name>");
+                return;
+            }
+            if(username == null) {
+                send("ERROR: Please LOGIN first using LOGIN <username>");
+                return;
+            }
+            Set<String> members = server.getGroupMembers(parts[1]);
+            if(members == null) send("Group doesn't exist");
+            else send("Group Members of Group " + parts[0] + " : " + String.join(",",members));
+        }
+
+        private void handleListGroups() {
+            if(username == null) {
+                send("ERROR: Please LOGIN first using LOGIN <username>");
+                return;
+            }
+            send("Groups : " + String.join(",",server.getAllGroups()));
+        }
+
+        void close() {
+            if(!closed.compareAndSet(false, true)) return;
+            try{
+                server.presence.unwatch(this);
+                if(username != null) server.unRegisterUser(username);
+                outbound.close();
+                if(greeted) server.metrics.openConnections.decrementAndGet();
+                server.metrics.closedConnectionDrops.add(outbound.dropped());
+                if(outbound.dropped() > 0) System.out.println("Closed " + username + " : " + outbound);
+                closeTransport();
+            } catch (IOException e) {
+                System.out.println(e);
+            }
+        }
+
+        protected void closeTransport() throws IOException {
+            // let the writer hand out what was queued before the socket goes away
+            if(writer != null) {
+                try {
+                    writer.get(1, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException | TimeoutException ignored) {
+                }
+            }
+            if(!socket.isClosed()) socket.close();
+        }
+    }
+}
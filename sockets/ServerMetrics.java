@@ -0,0 +1,163 @@
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// The socket server's side of the metrics the backend publishes through Micrometer, same names, served
+// in the Prometheus text format on http://<chatwave.metrics.address>:<chatwave.metrics.port>/metrics (off unless
+// the port is set). The address is 127.0.0.1 unless set, e.g. -Dchatwave.metrics.address=10.0.0.5 for a scraper
+// on another host. /admission changes the limits for everyone and nobody logs in to it, it is only served with
+// -Dchatwave.metrics.admission=true.
+// Recording is a nanoTime, a bucket increment and a few LongAdders per delivered frame, gauges are only
+// computed when scraped. -Dchatwave.metrics.enabled=false turns the recording into constant-folded no-ops.
+public final class ServerMetrics {
+    static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("chatwave.metrics.enabled", "true"));
+    // what a timed frame's latency is recorded under, see Frame.destination
+    static final int PRIVATE = 0;
+    static final int GROUP = 1;
+    private static final String[] DESTINATIONS = {"private", "group"};
+    private static final double[] QUANTILES = {0.5, 0.95, 0.99};
+
+    // message accepted from the sender to the frame written to a recipient's socket
+    private final LatencyHistogram[] delivery = {new LatencyHistogram(), new LatencyHistogram()};
+    private final LongAdder[] messages = {new LongAdder(), new LongAdder()};
+    final AtomicInteger openConnections = new AtomicInteger();
+    // frames dropped by connections that are closed by now, live ones are summed up when scraped
+    final LongAdder closedConnectionDrops = new LongAdder();
+    final LongAdder slowConsumerDisconnects = new LongAdder();
+    final LongAdder mailboxReplayed = new LongAdder();
+    // frames per socket write, more than one when coalesced (see Server.coalesceBytes)
+    private final LongAdder writes = new LongAdder();
+    private final LongAdder framesWritten = new LongAdder();
+    private final AtomicInteger maxFramesPerWrite = new AtomicInteger();
+
+    void accepted(int destination) {
+        if(ENABLED) messages[destination].increment();
+    }
+
+    // called by the writer once the frame is in the socket
+    void written(Frame frame) {
+        if(ENABLED && frame.acceptedAt != 0) delivery[frame.destination].record(System.nanoTime() - frame.acceptedAt);
+    }
+
+    // called by the writer for every write, with the number of frames it carried
+    void wrote(int frames) {
+        if(!ENABLED) return;
+        writes.increment();
+        framesWritten.add(frames);
+        if(frames > maxFramesPerWrite.get()) maxFramesPerWrite.accumulateAndGet(frames, Math::max);
+    }
+
+    void rotate() {
+        for(LatencyHistogram histogram : delivery) histogram.rotate();
+    }
+
+    // gauges are read from the server on every scrape
+    public void serve(Server server, String address, int port, boolean admission) throws IOException {
+        HttpServer http = HttpServer.create(new InetSocketAddress(address, port), 0);
+        http.createContext("/metrics", exchange -> {
+            byte[] body = scrape(server).getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try(OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        // the only HTTP the server has, so the admission limits are changed here too
+        if(admission) http.createContext("/admission", server.admission::handle);
+        http.start();
+        System.out.println("Metrics on http://" + address + ":" + port + "/metrics" + (admission ? ", admission limits on /admission" : ""));
+    }
+
+    public String scrape(Server server) {
+        StringBuilder out = new StringBuilder(4096);
+        out.append("# HELP chatwave_message_delivery_seconds Message accepted from the sender to the frame written to a recipient\n");
+        out.append("# TYPE chatwave_message_delivery_seconds summary\n");
+        for(int d = 0; d < DESTINATIONS.length; d++) {
+            String tag = "destination=\"" + DESTINATIONS[d] + "\"";
+            for(double q : QUANTILES) {
+                sample(out, "chatwave_message_delivery_seconds", tag + ",quantile=\"" + q + "\"", seconds(delivery[d].quantileNanos(q)));
+            }
+            sample(out, "chatwave_message_delivery_seconds_count", tag, delivery[d].count());
+            sample(out, "chatwave_message_delivery_seconds_sum", tag, seconds(delivery[d].sumNanos()));
+        }
+        out.append("# TYPE chatwave_message_delivery_seconds_max gauge\n");
+        for(int d = 0; d < DESTINATIONS.length; d++) {
+            sample(out, "chatwave_message_delivery_seconds_max", "destination=\"" + DESTINATIONS[d] + "\"", seconds(delivery[d].maxNanos()));
+        }
+        out.append("# TYPE chatwave_messages_total counter\n");
+        for(int d = 0; d < DESTINATIONS.length; d++) {
+            sample(out, "chatwave_messages_total", "destination=\"" + DESTINATIONS[d] + "\"", messages[d].sum());
+        }
+
+        gauge(out, "chatwave_sessions_active", "Open connections, logged in or not", openConnections.get());
+        gauge(out, "chatwave_users_online", "Logged in users", server.clients.size());
+        gauge(out, "chatwave_groups", "Groups that exist", server.getAllGroups().size());
+
+        long queued = 0, dropped = closedConnectionDrops.sum();
+        for(Server.ClientHandler client : server.clients.values()) {
+            queued += client.outbound.depth();
+            dropped += client.outbound.dropped();
+        }
+        gauge(out, "chatwave_outbound_queued", "Frames waiting in the outbound queues of logged in users", queued);
+        out.append("# TYPE chatwave_outbound_dropped_total counter\n");
+        sample(out, "chatwave_outbound_dropped_total", null, dropped);
+        out.append("# HELP chatwave_outbound_frames_per_write Frames carried by one socket write\n");
+        out.append("# TYPE chatwave_outbound_frames_per_write summary\n");
+        sample(out, "chatwave_outbound_frames_per_write_count", null, writes.sum());
+        sample(out, "chatwave_outbound_frames_per_write_sum", null, framesWritten.sum());
+        out.append("# TYPE chatwave_outbound_frames_per_write_max gauge\n");
+        sample(out, "chatwave_outbound_frames_per_write_max", null, maxFramesPerWrite.get());
+        out.append("# TYPE chatwave_slow_consumer_disconnects_total counter\n");
+        sample(out, "chatwave_slow_consumer_disconnects_total", null, slowConsumerDisconnects.sum());
+
+        out.append("# HELP chatwave_admission_throttled_total Messages refused by AdmissionControl\n");
+        out.append("# TYPE chatwave_admission_throttled_total counter\n");
+        sample(out, "chatwave_admission_throttled_total", "scope=\"" + AdmissionControl.USER + "\"", server.admission.throttledByUser.sum());
+        sample(out, "chatwave_admission_throttled_total", "scope=\"" + AdmissionControl.CONNECTION + "\"", server.admission.throttledByConnection.sum());
+
+        if(server.mailbox != null) {
+            gauge(out, "chatwave_mailbox_pending", "Messages waiting in the mailboxes of offline users", server.mailbox.pending());
+            gauge(out, "chatwave_mailbox_segments", "Mailbox log segments on disk", server.mailbox.segmentCount());
+            out.append("# TYPE chatwave_mailbox_replayed_total counter\n");
+            sample(out, "chatwave_mailbox_replayed_total", null, mailboxReplayed.sum());
+        }
+
+        // the same executor.* gauges Spring Boot publishes for the STOMP channel executors
+        if(server.reactors.isEmpty() && server.pool instanceof ThreadPoolExecutor pool) {
+            out.append("# TYPE executor_active_threads gauge\n");
+            sample(out, "executor_active_threads", "name=\"connectionPool\"", pool.getActiveCount());
+            out.append("# TYPE executor_pool_size_threads gauge\n");
+            sample(out, "executor_pool_size_threads", "name=\"connectionPool\"", pool.getPoolSize());
+        }
+        if(!server.reactors.isEmpty()) {
+            out.append("# TYPE executor_queued_tasks gauge\n");
+            for(int i = 0; i < server.reactors.size(); i++) {
+                sample(out, "executor_queued_tasks", "name=\"reactor-" + i + "\"", server.reactors.get(i).pendingTasks());
+            }
+        }
+        return out.toString();
+    }
+
+    private static void gauge(StringBuilder out, String name, String help, double value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" gauge\n");
+        sample(out, name, null, value);
+    }
+
+    private static void sample(StringBuilder out, String name, String tags, double value) {
+        out.append(name);
+        if(tags != null) out.append('{').append(tags).append('}');
+        out.append(' ').append(String.format(Locale.ROOT, "%s", value)).append('\n');
+    }
+
+    private static double seconds(long nanos) {
+        return nanos / 1e9;
+    }
+}
@@ -0,0 +1,209 @@
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.WebSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Time from launching the backend to the first STOMP connection it accepts, which is when a rolling
+// deploy or an autoscaler can start sending it clients. Every configuration is a name and the command that
+// starts the backend; the command is run <runs> times, each time a STOMP CONNECT is tried on /chat over
+// plain WebSocket every few milliseconds until one is answered with CONNECTED, then the process is stopped.
+// Next to it the startup time Spring Boot logs itself ("Started ... (process running for ...)") is reported,
+// from JVM start to the context being refreshed. The medians are compared with the first configuration.
+// Output of the last run of each goes to <logs>/<name>.log.
+//   java StartupProbe.java --port 8080 --runs 5 \
+//        "current=java -jar target/ChatWave-0.0.1-SNAPSHOT.jar" \
+//        "fast-start=java -XX:SharedArchiveFile=target/fast-start/application.jsa -Dspring.aot.enabled=true -Dspring.profiles.active=prod -jar target/fast-start/ChatWave-0.0.1-SNAPSHOT.jar"
+public class StartupProbe {
+    private static final HttpClient HTTP = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(1)).build();
+    private static final long RETRY_MILLIS = 10;
+    private static final Pattern STARTED = Pattern.compile("Started \\S+ in [0-9.]+ seconds \\(process running for ([0-9.]+)\\)");
+
+    private final String host;
+    private final int port;
+    private final URI uri;
+    private final int runs;
+    private final long timeoutNanos;
+    private final File logs;
+
+    private StartupProbe(Map<String, String> options) {
+        this.host = options.getOrDefault("host", "localhost");
+        this.port = Integer.parseInt(options.getOrDefault("port", "8080"));
+        this.uri = URI.create("ws://" + host + ":" + port + "/chat/websocket");
+        this.runs = Math.max(1, Integer.parseInt(options.getOrDefault("runs", "5")));
+        this.timeoutNanos = TimeUnit.SECONDS.toNanos(Integer.parseInt(options.getOrDefault("timeout", "180")));
+        this.logs = new File(options.getOrDefault("logs", System.getProperty("java.io.tmpdir")));
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        Map<String, List<String>> configurations = new LinkedHashMap<>();
+        for(int i = 0; i < args.length; i++) {
+            if(args[i].startsWith("--")) {
+                if(i + 1 == args.length) throw new IllegalArgumentException("no value for " + args[i]);
+                options.put(args[i].substring(2), args[++i]);
+                continue;
+            }
+            int eq = args[i].indexOf('=');
+            if(eq <= 0) throw new IllegalArgumentException("expected name=command, got " + args[i]);
+            configurations.put(args[i].substring(0, eq), Arrays.asList(args[i].substring(eq + 1).trim().split("\\s+")));
+        }
+        if(configurations.isEmpty()) throw new IllegalArgumentException("no configuration to start, expected name=command");
+        System.exit(new StartupProbe(options).run(configurations) ? 0 : 1);
+    }
+
+    private boolean run(Map<String, List<String>> configurations) throws Exception {
+        if(accepts(TimeUnit.SECONDS.toNanos(2))) {
+            System.err.println("something already accepts STOMP connections on " + uri + ", stop it first");
+            return false;
+        }
+        logs.mkdirs();
+        Map<String, long[]> connected = new LinkedHashMap<>();
+        Map<String, long[]> started = new LinkedHashMap<>();
+        for(Map.Entry<String, List<String>> configuration : configurations.entrySet()) {
+            String name = configuration.getKey();
+            long[] connectMillis = new long[runs];
+            long[] startedMillis = new long[runs];
+            for(int r = 0; r < runs; r++) {
+                connectMillis[r] = startOnce(name, configuration.getValue());
+                if(connectMillis[r] < 0) return false;
+                startedMillis[r] = startedMillis(new File(logs, name + ".log"));
+                System.out.printf(Locale.ROOT, "%s run %d : started after %s, first STOMP connection after %d ms%n",
+                        name, r + 1, startedMillis[r] < 0 ? "?" : startedMillis[r] + " ms", connectMillis[r]);
+            }
+            connected.put(name, connectMillis);
+            started.put(name, startedMillis);
+        }
+
+        report("startup time logged by Spring Boot (process running for), " + runs + " runs each", started);
+        report("time to the first accepted STOMP connection on " + uri + ", " + runs + " runs each", connected);
+        return true;
+    }
+
+    // medians compared with the first configuration, runs without a value (-1) are left out
+    private static void report(String title, Map<String, long[]> results) {
+        System.out.printf(Locale.ROOT, "%n%s%n", title);
+        long reference = -1;
+        for(Map.Entry<String, long[]> result : results.entrySet()) {
+            long[] millis = Arrays.stream(result.getValue()).filter(m -> m >= 0).sorted().toArray();
+            if(millis.length == 0) {
+                System.out.printf(Locale.ROOT, "%-16s not logged%n", result.getKey());
+                continue;
+            }
+            long median = millis[millis.length / 2];
+            String change = reference < 0 ? "" : String.format(Locale.ROOT, "   %+.1f%%", 100.0 * (median - reference) / reference);
+            if(reference < 0) reference = median;
+            System.out.printf(Locale.ROOT, "%-16s median %6d ms   min %6d ms   max %6d ms%s%n",
+                    result.getKey(), median, millis[0], millis[millis.length - 1], change);
+        }
+    }
+
+    // from the "Started ..." line of the run's output, -1 when there is none
+    private static long startedMillis(File log) throws IOException {
+        Matcher matcher = STARTED.matcher(new String(Files.readAllBytes(log.toPath()), StandardCharsets.UTF_8));
+        return matcher.find() ? Math.round(Double.parseDouble(matcher.group(1)) * 1000) : -1;
+    }
+
+    // milliseconds from starting the command to CONNECTED, -1 when it exited or timed out first
+    private long startOnce(String name, List<String> command) throws Exception {
+        File log = new File(logs, name + ".log");
+        ProcessBuilder builder = new ProcessBuilder(command).redirectErrorStream(true).redirectOutput(log);
+        long start = System.nanoTime();
+        Process process = builder.start();
+        try {
+            while(true) {
+                if(!process.isAlive()) {
+                    System.err.printf(Locale.ROOT, "%s exited with %d before accepting a connection, see %s%n", name, process.exitValue(), log);
+                    return -1;
+                }
+                if(accepts(TimeUnit.SECONDS.toNanos(5))) return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                if(System.nanoTime() - start > timeoutNanos) {
+                    System.err.printf(Locale.ROOT, "%s accepted no connection within %d s, see %s%n", name, TimeUnit.NANOSECONDS.toSeconds(timeoutNanos), log);
+                    return -1;
+                }
+                Thread.sleep(RETRY_MILLIS);
+            }
+        } finally {
+            stop(process);
+        }
+    }
+
+    // one WebSocket connection and STOMP CONNECT, true when it was answered with CONNECTED
+    private boolean accepts(long timeoutNanos) throws InterruptedException {
+        Connect connect = new Connect();
+        WebSocket webSocket = null;
+        try {
+            webSocket = HTTP.newWebSocketBuilder().buildAsync(uri, connect).get(timeoutNanos, TimeUnit.NANOSECONDS);
+            return connect.reply.get(timeoutNanos, TimeUnit.NANOSECONDS).startsWith("CONNECTED");
+        } catch (ExecutionException | TimeoutException e) {
+            // not listening yet, or the STOMP endpoint isn't mapped yet
+            return false;
+        } finally {
+            if(webSocket != null) webSocket.abort();
+        }
+    }
+
+    // the next run starts on the same port, so the backend has to be gone, the JVM of a launcher script too
+    private static void stop(Process process) throws InterruptedException {
+        List<ProcessHandle> children = process.descendants().toList();
+        process.destroy();
+        children.forEach(ProcessHandle::destroy);
+        if(!process.waitFor(30, TimeUnit.SECONDS)) process.destroyForcibly();
+        for(ProcessHandle child : children) {
+            child.onExit().orTimeout(30, TimeUnit.SECONDS).exceptionally(e -> {
+                child.destroyForcibly();
+                return child;
+            }).join();
+        }
+        process.waitFor();
+    }
+
+    private final class Connect implements WebSocket.Listener {
+        final CompletableFuture<String> reply = new CompletableFuture<>();
+        private final StringBuilder partial = new StringBuilder();
+
+        @Override
+        public void onOpen(WebSocket webSocket) {
+            webSocket.sendText("CONNECT\naccept-version:1.2\nhost:" + host + "\nlogin:startup-probe\nheart-beat:0,0\n\n\0", true);
+            webSocket.request(1);
+        }
+
+        @Override
+        public CompletionStage<?> onText(WebSocket webSocket, CharSequence data, boolean last) {
+            partial.append(data);
+            if(last) {
+                reply.complete(partial.toString());
+                partial.setLength(0);
+            }
+            webSocket.request(1);
+            return null;
+        }
+
+        @Override
+        public CompletionStage<?> onClose(WebSocket webSocket, int statusCode, String reason) {
+            reply.completeExceptionally(new IOException("closed with " + statusCode + " " + reason));
+            return null;
+        }
+
+        @Override
+        public void onError(WebSocket webSocket, Throwable error) {
+            reply.completeExceptionally(error);
+        }
+    }
+}